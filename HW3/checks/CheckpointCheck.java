@@ -0,0 +1,177 @@
+package checks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import main.Checkpoint;
+import main.PixelBuffer;
+import main.Tile;
+
+/**
+ * Writes a checkpoint, cuts its file at every byte of its last record (as a
+ * crash while writing it would), and reads it back: the tiles of the whole
+ * records have to be read with their pixels and samples, the cut record has
+ * to be dropped from the file, and the records written after resuming have to
+ * be read back too. A checkpoint of another render has to be ignored.
+ *
+ * Run with: java checks.CheckpointCheck
+ */
+public class CheckpointCheck {
+	private static final int width = 70, height = 45, tileSize = 16;
+	private static final int headerSize = 8 + 32;
+
+	public static void main(String[] args) throws IOException {
+		File dir = Files.createTempDirectory("checkpoint").toFile();
+		File full = new File(dir, "full.checkpoint");
+		File cut = new File(dir, "cut.checkpoint");
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) 7);
+		List<Tile> tiles = Tile.split(width, height, tileSize);
+		Random random = new Random(1);
+		int failures = 0;
+
+		for (boolean hasSampleMap : new boolean[] { false, true }) {
+			// Writes the records of the first tiles, with the length of the
+			// file after each of them
+			int recordsNum = 6;
+			PixelBuffer image = createImage(random);
+			PixelBuffer sampleMap = hasSampleMap ? createImage(random) : null;
+			Checkpoint checkpoint = new Checkpoint(full.getPath(), key, image, sampleMap);
+			checkpoint.open(3600);
+			long[] lengths = new long[recordsNum + 1];
+			lengths[0] = headerSize;
+			for (int i = 0; i < recordsNum; i++) {
+				checkpoint.add(tiles.get(i), 1000 + i);
+				lengths[i + 1] = lengths[i] + 24 + (long) tiles.get(i).getPixelsNum() * 3 * (hasSampleMap ? 2 : 1);
+			}
+			checkpoint.close();
+			if (full.length() != lengths[recordsNum]) {
+				System.out.println(String.format("FAILED sample map %b: the file is %d bytes instead of %d",
+						hasSampleMap, full.length(), lengths[recordsNum]));
+				failures++;
+				continue;
+			}
+
+			for (long length = lengths[recordsNum - 1]; length <= lengths[recordsNum]; length++) {
+				int wholeNum = length == lengths[recordsNum] ? recordsNum : recordsNum - 1;
+				Files.copy(full.toPath(), cut.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				try (RandomAccessFile raf = new RandomAccessFile(cut, "rw")) {
+					raf.setLength(length);
+				}
+				String error = checkRead(cut, key, tiles, wholeNum, lengths[wholeNum], image, sampleMap);
+				if (error != null) {
+					System.out.println(String.format("FAILED sample map %b, cut at %d: %s", hasSampleMap, length,
+							error));
+					failures++;
+				}
+			}
+
+			// The records written after resuming follow the ones read
+			Files.copy(full.toPath(), cut.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			try (RandomAccessFile raf = new RandomAccessFile(cut, "rw")) {
+				raf.setLength(lengths[recordsNum] - 5);
+			}
+			Checkpoint resumed = new Checkpoint(cut.getPath(), key, image, sampleMap);
+			resumed.read(tiles, new long[1]);
+			resumed.open(3600);
+			resumed.add(tiles.get(recordsNum - 1), 1000 + recordsNum - 1);
+			resumed.close();
+			String error = checkRead(cut, key, tiles, recordsNum, lengths[recordsNum], image, sampleMap);
+			if (error != null) {
+				System.out.println(String.format("FAILED sample map %b, resumed: %s", hasSampleMap, error));
+				failures++;
+			}
+
+			// A checkpoint of another render is not read, and not cut
+			byte[] otherKey = key.clone();
+			otherKey[31]++;
+			Files.copy(full.toPath(), cut.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			List<Tile> done = new Checkpoint(cut.getPath(), otherKey, createImage(random), null).read(tiles,
+					new long[1]);
+			if (!done.isEmpty() || cut.length() != full.length()) {
+				System.out.println(String.format("FAILED sample map %b, other render: read %d tiles", hasSampleMap,
+						done.size()));
+				failures++;
+			}
+		}
+
+		full.delete();
+		cut.delete();
+		dir.delete();
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	/**
+	 * Reads a checkpoint into new buffers and compares them with the buffers it
+	 * was written from.
+	 *
+	 * @param wholeNum
+	 *            - The number of whole records in the file
+	 * @param length
+	 *            - The length of the whole records, which the file has to be
+	 *            cut to
+	 * @return The error, or null if the checkpoint was read right
+	 */
+	private static String checkRead(File file, byte[] key, List<Tile> tiles, int wholeNum, long length,
+			PixelBuffer image, PixelBuffer sampleMap) throws IOException {
+		PixelBuffer readImage = PixelBuffer.create(width, height, null, Long.MAX_VALUE);
+		PixelBuffer readSampleMap = sampleMap != null ? PixelBuffer.create(width, height, null, Long.MAX_VALUE)
+				: null;
+		long[] samples = new long[1];
+		List<Tile> done = new Checkpoint(file.getPath(), key, readImage, readSampleMap).read(tiles, samples);
+
+		if (!done.equals(tiles.subList(0, wholeNum))) {
+			return String.format("read %d tiles instead of %d", done.size(), wholeNum);
+		}
+		long expectedSamples = 0;
+		for (int i = 0; i < wholeNum; i++) {
+			expectedSamples += 1000 + i;
+		}
+		if (samples[0] != expectedSamples) {
+			return String.format("read %d samples instead of %d", samples[0], expectedSamples);
+		}
+		if (file.length() != length) {
+			return String.format("the file was cut to %d bytes instead of %d", file.length(), length);
+		}
+		for (Tile tile : done) {
+			if (!isSameTile(tile, image, readImage)) {
+				return "the pixels of tile " + tile + " differ";
+			}
+			if (sampleMap != null && !isSameTile(tile, sampleMap, readSampleMap)) {
+				return "the samples map of tile " + tile + " differs";
+			}
+		}
+		return null;
+	}
+
+	private static boolean isSameTile(Tile tile, PixelBuffer a, PixelBuffer b) {
+		byte[] dataA = new byte[tile.getPixelsNum() * 3];
+		byte[] dataB = new byte[tile.getPixelsNum() * 3];
+		a.getTile(tile, dataA);
+		b.getTile(tile, dataB);
+		return Arrays.equals(dataA, dataB);
+	}
+
+	/**
+	 * @return An image of random pixels, on the heap
+	 */
+	private static PixelBuffer createImage(Random random) throws IOException {
+		PixelBuffer image = PixelBuffer.create(width, height, null, Long.MAX_VALUE);
+		byte[] row = new byte[width * 3];
+		for (int y = 0; y < height; y++) {
+			random.nextBytes(row);
+			image.setRow(0, y, row, 0, row.length);
+		}
+		return image;
+	}
+}
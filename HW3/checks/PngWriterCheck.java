@@ -0,0 +1,117 @@
+package checks;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import main.PngWriter;
+
+/**
+ * Writes images with the PngWriter, at every compression level and filter
+ * type, reads them back with ImageIO and compares the pixels. The images are
+ * large enough to be cut into several bands, so the dictionaries and the
+ * checksums carried from band to band are checked as well as the filters of
+ * the first row of every band.
+ *
+ * Run with: java checks.PngWriterCheck
+ */
+public class PngWriterCheck {
+	private static final int[] levels = { 0, 6, 9 };
+	// The image sizes: several bands of odd rows, a single row and a single
+	// column
+	private static final int[][] sizes = { { 301, 1000 }, { 2000, 1 }, { 1, 700 } };
+
+	public static void main(String[] args) throws IOException {
+		int failures = 0;
+		for (int[] size : sizes) {
+			byte[] pixels = createPixels(size[0], size[1], new Random(size[0] * 31 + size[1]));
+			for (int level : levels) {
+				for (int filter = 0; filter <= PngWriter.adaptiveFilter; filter++) {
+					for (int threadsNum : new int[] { 1, 3 }) {
+						String name = String.format("%dx%d level %d filter %d threads %d", size[0], size[1], level,
+								filter, threadsNum);
+						String error = check(size[0], size[1], pixels, level, filter, threadsNum);
+						if (error != null) {
+							System.out.println("FAILED " + name + ": " + error);
+							failures++;
+						}
+					}
+				}
+			}
+		}
+
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	/**
+	 * @return The error, or null if the image read back has the same pixels
+	 */
+	private static String check(int width, int height, byte[] pixels, int level, int filter, int threadsNum)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] row = new byte[width * 3];
+		try (PngWriter png = new PngWriter(out, width, height, level, filter, threadsNum)) {
+			for (int y = 0; y < height; y++) {
+				System.arraycopy(pixels, y * row.length, row, 0, row.length);
+				png.writeRow(row);
+			}
+		}
+
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+		if (image == null) {
+			return "ImageIO could not read the image";
+		}
+		if (image.getWidth() != width || image.getHeight() != height) {
+			return String.format("the image is %dx%d", image.getWidth(), image.getHeight());
+		}
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = (y * width + x) * 3;
+				int expected = (pixels[i] & 0xFF) << 16 | (pixels[i + 1] & 0xFF) << 8 | (pixels[i + 2] & 0xFF);
+				int rgb = image.getRGB(x, y) & 0xFFFFFF;
+				if (rgb != expected) {
+					return String.format("pixel %d,%d is %06x instead of %06x", x, y, rgb, expected);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return Pixels which every filter type has something to do with: smooth
+	 *         gradients, flat areas and noise
+	 */
+	private static byte[] createPixels(int width, int height, Random random) {
+		byte[] pixels = new byte[width * height * 3];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = (y * width + x) * 3;
+				switch ((x / 37 + y / 53) % 3) {
+				case 0:
+					pixels[i] = (byte) x;
+					pixels[i + 1] = (byte) y;
+					pixels[i + 2] = (byte) (x + y);
+					break;
+				case 1:
+					pixels[i] = (byte) 200;
+					pixels[i + 1] = (byte) 100;
+					pixels[i + 2] = (byte) 50;
+					break;
+				default:
+					pixels[i] = (byte) random.nextInt(256);
+					pixels[i + 1] = (byte) random.nextInt(256);
+					pixels[i + 2] = (byte) random.nextInt(256);
+				}
+			}
+		}
+		return pixels;
+	}
+}
@@ -0,0 +1,149 @@
+package geometry;
+
+import main.Ray;
+import utility.Vector;
+
+/**
+ * An axis aligned bounding box. Defined by a minimal corner and a maximal
+ * corner, every point (r) inside the box agrees with: min <= r <= max on every
+ * axis.
+ */
+public class BoundingBox {
+	// Small padding so flat shapes (an axis aligned triangle for example) still
+	// get a box with some volume
+	private static final double padding = 1E-6;
+
+	private double minX, minY, minZ;
+	private double maxX, maxY, maxZ;
+
+	/**
+	 * Creates an empty box, which contains no point. Extending it with any point
+	 * or box results in that point or box.
+	 */
+	public BoundingBox() {
+		this.minX = this.minY = this.minZ = Double.POSITIVE_INFINITY;
+		this.maxX = this.maxY = this.maxZ = Double.NEGATIVE_INFINITY;
+	}
+
+	public BoundingBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+		this.minX = minX - padding;
+		this.minY = minY - padding;
+		this.minZ = minZ - padding;
+		this.maxX = maxX + padding;
+		this.maxY = maxY + padding;
+		this.maxZ = maxZ + padding;
+	}
+
+	public BoundingBox(BoundingBox other) {
+		this.minX = other.minX;
+		this.minY = other.minY;
+		this.minZ = other.minZ;
+		this.maxX = other.maxX;
+		this.maxY = other.maxY;
+		this.maxZ = other.maxZ;
+	}
+
+	public double getMin(int axis) {
+		return axis == 0 ? minX : (axis == 1 ? minY : minZ);
+	}
+
+	public double getMax(int axis) {
+		return axis == 0 ? maxX : (axis == 1 ? maxY : maxZ);
+	}
+
+	public double getCenter(int axis) {
+		return (getMin(axis) + getMax(axis)) / 2;
+	}
+
+	public boolean isEmpty() {
+		return minX > maxX || minY > maxY || minZ > maxZ;
+	}
+
+	public BoundingBox extend(BoundingBox other) {
+		this.minX = Math.min(this.minX, other.minX);
+		this.minY = Math.min(this.minY, other.minY);
+		this.minZ = Math.min(this.minZ, other.minZ);
+		this.maxX = Math.max(this.maxX, other.maxX);
+		this.maxY = Math.max(this.maxY, other.maxY);
+		this.maxZ = Math.max(this.maxZ, other.maxZ);
+		return this;
+	}
+
+	public BoundingBox extend(Vector point) {
+		this.minX = Math.min(this.minX, point.getX());
+		this.minY = Math.min(this.minY, point.getY());
+		this.minZ = Math.min(this.minZ, point.getZ());
+		this.maxX = Math.max(this.maxX, point.getX());
+		this.maxY = Math.max(this.maxY, point.getY());
+		this.maxZ = Math.max(this.maxZ, point.getZ());
+		return this;
+	}
+
+	/**
+	 * The surface area of the box, used by the surface area heuristic when
+	 * building the hierarchy.
+	 *
+	 * @return The surface area, or 0.0 for an empty box
+	 */
+	public double surfaceArea() {
+		if (isEmpty()) {
+			return 0;
+		}
+		double dx = maxX - minX;
+		double dy = maxY - minY;
+		double dz = maxZ - minZ;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * Checks if a ray passes through the box (slab method) in the range [0,
+	 * tMax].
+	 *
+	 * @param ray
+	 *            - The ray to check with
+	 * @param tMax
+	 *            - The maximal distance along the ray to check
+	 * @return true if the ray enters the box before tMax
+	 */
+	public boolean hit(Ray ray, double tMax) {
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
+		return hit(o.getX(), o.getY(), o.getZ(), 1 / d.getX(), 1 / d.getY(), 1 / d.getZ(), tMax);
+	}
+
+	public boolean hit(double ox, double oy, double oz, double invDx, double invDy, double invDz, double tMax) {
+		return hit(minX, minY, minZ, maxX, maxY, maxZ, ox, oy, oz, invDx, invDy, invDz, tMax);
+	}
+
+	/**
+	 * The slab test on raw box bounds, so flattened structures do not need to
+	 * hold BoundingBox objects.
+	 */
+	public static boolean hit(double minX, double minY, double minZ, double maxX, double maxY, double maxZ,
+			double ox, double oy, double oz, double invDx, double invDy, double invDz, double tMax) {
+		double t1 = (minX - ox) * invDx;
+		double t2 = (maxX - ox) * invDx;
+		double tNear = Math.min(t1, t2);
+		double tFar = Math.max(t1, t2);
+
+		t1 = (minY - oy) * invDy;
+		t2 = (maxY - oy) * invDy;
+		tNear = Math.max(tNear, Math.min(t1, t2));
+		tFar = Math.min(tFar, Math.max(t1, t2));
+
+		t1 = (minZ - oz) * invDz;
+		t2 = (maxZ - oz) * invDz;
+		tNear = Math.max(tNear, Math.min(t1, t2));
+		tFar = Math.min(tFar, Math.max(t1, t2));
+
+		// Any NaN (origin on a slab with a zero direction) fails the comparison
+		// and is treated as a miss of that slab
+		return tFar >= tNear && tFar >= 0 && tNear <= tMax;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("<BoundingBox: [%.4f,%.4f,%.4f] - [%.4f,%.4f,%.4f]>", minX, minY, minZ, maxX, maxY,
+				maxZ);
+	}
+}
@@ -0,0 +1,262 @@
+package geometry;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import main.Ray;
+import utility.Vector;
+
+/**
+ * A triangle mesh, read from a mesh file. The vertices are shared by the
+ * faces and kept in flat buffers instead of objects:
+ * - Vertices: x, y, z of every vertex (3 floats).
+ * - Indices: the 3 vertices of every face, by their index (3 ints).
+ * The whole mesh has a single material. A mesh is a single primitive of the
+ * compiled scene with a hierarchy of its own over the faces, a hit on it is
+ * reported as a Face, which is the shape the colors are calculated for.
+ */
+public class Mesh extends Shape {
+	private FloatBuffer vertices;
+	private IntBuffer indices;
+	private BoundingBox bounds;
+
+	public Mesh(FloatBuffer vertices, IntBuffer indices, int materialIndex) {
+		super(materialIndex);
+		this.vertices = vertices;
+		this.indices = indices;
+
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < getVerticesNum() * 3; i += 3) {
+			minX = Math.min(minX, vertices.get(i));
+			minY = Math.min(minY, vertices.get(i + 1));
+			minZ = Math.min(minZ, vertices.get(i + 2));
+			maxX = Math.max(maxX, vertices.get(i));
+			maxY = Math.max(maxY, vertices.get(i + 1));
+			maxZ = Math.max(maxZ, vertices.get(i + 2));
+		}
+		this.bounds = getFacesNum() > 0 ? new BoundingBox(minX, minY, minZ, maxX, maxY, maxZ) : new BoundingBox();
+	}
+
+	/**
+	 * Creates the mesh from the parameters of its line, for the vertices and
+	 * faces read from its file. The parameters are the file, the material index
+	 * and an optional shadow flag.
+	 */
+	public Mesh(FloatBuffer vertices, IntBuffer indices, String[] params) {
+		this(vertices, indices, Integer.parseInt(params[1]));
+		parseShadowFlag(params, 2);
+	}
+
+	public int getVerticesNum() {
+		return vertices.limit() / 3;
+	}
+
+	public int getFacesNum() {
+		return indices.limit() / 3;
+	}
+
+	public FloatBuffer getVertices() {
+		return vertices;
+	}
+
+	public IntBuffer getIndices() {
+		return indices;
+	}
+
+	/**
+	 * Gets the offset of a vertex of a face in the vertices buffer.
+	 *
+	 * @param corner
+	 *            - The vertex of the face (0, 1 or 2)
+	 */
+	public int getVertexOffset(int face, int corner) {
+		return indices.get(face * 3 + corner) * 3;
+	}
+
+	/**
+	 * Intersects a ray with a face of the mesh.
+	 *
+	 * @return The intersection location, or 0.0 if no intersection
+	 */
+	public double hitFace(int face, double ox, double oy, double oz, double dx, double dy, double dz) {
+		FloatBuffer v = this.vertices;
+		int a = getVertexOffset(face, 0), b = getVertexOffset(face, 1), c = getVertexOffset(face, 2);
+		double v1x = v.get(a), v1y = v.get(a + 1), v1z = v.get(a + 2);
+		return Triangle.intersect(v1x, v1y, v1z, v.get(b) - v1x, v.get(b + 1) - v1y, v.get(b + 2) - v1z,
+				v.get(c) - v1x, v.get(c + 1) - v1y, v.get(c + 2) - v1z, ox, oy, oz, dx, dy, dz);
+	}
+
+	/**
+	 * Gets the normal of the plane of a face.
+	 */
+	public Vector getFaceNormal(int face, Vector out) {
+		FloatBuffer v = this.vertices;
+		int a = getVertexOffset(face, 0), b = getVertexOffset(face, 1), c = getVertexOffset(face, 2);
+		double e1x = v.get(b) - v.get(a), e1y = v.get(b + 1) - v.get(a + 1), e1z = v.get(b + 2) - v.get(a + 2);
+		double e2x = v.get(c) - v.get(a), e2y = v.get(c + 1) - v.get(a + 1), e2z = v.get(c + 2) - v.get(a + 2);
+		return out.set(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x).normalize();
+	}
+
+	/**
+	 * @return The squared distance from a point to a face
+	 */
+	public double getFaceDistanceSquared(int face, double x, double y, double z) {
+		FloatBuffer v = this.vertices;
+		int a = getVertexOffset(face, 0), b = getVertexOffset(face, 1), c = getVertexOffset(face, 2);
+		return Triangle.getDistanceSquared(v.get(a), v.get(a + 1), v.get(a + 2), v.get(b), v.get(b + 1),
+				v.get(b + 2), v.get(c), v.get(c + 1), v.get(c + 2), x, y, z);
+	}
+
+	/**
+	 * Finds the face closest to a point, which for a point on the surface of
+	 * the mesh is the face it is on. Checks all the faces.
+	 *
+	 * @return The face, or -1 if the mesh has no faces
+	 */
+	public int getFaceAt(double x, double y, double z) {
+		double nearest = Double.POSITIVE_INFINITY;
+		int nearestFace = -1;
+		for (int face = 0; face < getFacesNum(); face++) {
+			double distance = getFaceDistanceSquared(face, x, y, z);
+			if (distance < nearest) {
+				nearest = distance;
+				nearestFace = face;
+			}
+		}
+		return nearestFace;
+	}
+
+	public BoundingBox getFaceBoundingBox(int face) {
+		FloatBuffer v = this.vertices;
+		int a = getVertexOffset(face, 0), b = getVertexOffset(face, 1), c = getVertexOffset(face, 2);
+		return new BoundingBox(Math.min(v.get(a), Math.min(v.get(b), v.get(c))),
+				Math.min(v.get(a + 1), Math.min(v.get(b + 1), v.get(c + 1))),
+				Math.min(v.get(a + 2), Math.min(v.get(b + 2), v.get(c + 2))),
+				Math.max(v.get(a), Math.max(v.get(b), v.get(c))),
+				Math.max(v.get(a + 1), Math.max(v.get(b + 1), v.get(c + 1))),
+				Math.max(v.get(a + 2), Math.max(v.get(b + 2), v.get(c + 2))));
+	}
+
+	/**
+	 * Checks all the faces, the compiled scene uses the hierarchy of the mesh
+	 * instead.
+	 */
+	@Override
+	public double hit(Ray ray) {
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
+		return hit(o.getX(), o.getY(), o.getZ(), d.getX(), d.getY(), d.getZ());
+	}
+
+	/**
+	 * Same as hit(ray), the direction of the ray does not have to be
+	 * normalized.
+	 */
+	public double hit(double ox, double oy, double oz, double dx, double dy, double dz) {
+		double nearest = 0;
+		for (int face = 0; face < getFacesNum(); face++) {
+			double t = hitFace(face, ox, oy, oz, dx, dy, dz);
+			if (t > 0 && (nearest == 0 || t < nearest)) {
+				nearest = t;
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Gets the normal of the face the point is on. Checks all the faces, the
+	 * compiled scene reports a hit on a mesh as a Face, which has its normal.
+	 */
+	@Override
+	public Vector getNormalAt(Vector point, Vector out) {
+		int face = getFaceAt(point.getX(), point.getY(), point.getZ());
+		return face >= 0 ? getFaceNormal(face, out) : out.set(0, 0, 0);
+	}
+
+	@Override
+	public BoundingBox getBoundingBox() {
+		return bounds.isEmpty() ? null : bounds;
+	}
+
+	/**
+	 * A face of a mesh, as the shape of a hit. It is a view on the mesh (and its
+	 * placement, if it was placed by an instance) which is set again for every
+	 * hit, so no face objects are kept.
+	 */
+	public static class Face extends Shape {
+		private Mesh mesh;
+		private MeshInstance instance;
+		private int index;
+
+		public Face() {
+			super(0);
+		}
+
+		/**
+		 * @param instance
+		 *            - The placement of the mesh, or null if the mesh is placed
+		 *            as it is
+		 */
+		public Face set(Mesh mesh, MeshInstance instance, int index) {
+			this.mesh = mesh;
+			this.instance = instance;
+			this.index = index;
+			return this;
+		}
+
+		public Mesh getMesh() {
+			return mesh;
+		}
+
+		public MeshInstance getInstance() {
+			return instance;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		private Shape getPlacement() {
+			return instance != null ? instance : mesh;
+		}
+
+		@Override
+		public int getMaterialIndex() {
+			return getPlacement().getMaterialIndex();
+		}
+
+		@Override
+		public boolean isCastingShadows() {
+			return getPlacement().isCastingShadows();
+		}
+
+		@Override
+		public double hit(Ray ray) {
+			Vector o = ray.getOrigin();
+			Vector d = ray.getDirection();
+			if (instance != null) {
+				double[] m = instance.getInverse();
+				double ox = o.getX(), oy = o.getY(), oz = o.getZ();
+				double dx = d.getX(), dy = d.getY(), dz = d.getZ();
+				return mesh.hitFace(index, m[0] * ox + m[1] * oy + m[2] * oz + m[3],
+						m[4] * ox + m[5] * oy + m[6] * oz + m[7], m[8] * ox + m[9] * oy + m[10] * oz + m[11],
+						m[0] * dx + m[1] * dy + m[2] * dz, m[4] * dx + m[5] * dy + m[6] * dz,
+						m[8] * dx + m[9] * dy + m[10] * dz);
+			}
+			return mesh.hitFace(index, o.getX(), o.getY(), o.getZ(), d.getX(), d.getY(), d.getZ());
+		}
+
+		@Override
+		public Vector getNormalAt(Vector point, Vector out) {
+			mesh.getFaceNormal(index, out);
+			return instance != null ? MeshInstance.transformNormal(instance.getInverse(), out) : out;
+		}
+
+		@Override
+		public BoundingBox getBoundingBox() {
+			BoundingBox box = mesh.getFaceBoundingBox(index);
+			return instance != null ? instance.transformBox(box) : box;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package geometry;
+
+import main.Ray;
+import utility.Vector;
+
+/**
+ * A placement of a mesh defined once in the scene, with an affine transform
+ * and its own material. All the placements of a mesh share its vertices and
+ * the hierarchy over its faces: rays are moved into the space of the mesh by
+ * the inverse of the transform instead of moving the mesh.
+ *
+ * Transforms are 3x4 matrices, row by row, the last column is the
+ * translation. The transform of a placement scales the mesh first, then
+ * rotates it around the X, Y and Z axes (in this order) and then moves it.
+ */
+public class MeshInstance extends Shape {
+	private Mesh mesh;
+	private double[] transform; // from the space of the mesh to the scene
+	private double[] inverse; // from the scene to the space of the mesh
+
+	/**
+	 * Thrown for a transform which can not be inverted, which flattens the mesh
+	 * (a scale of 0).
+	 */
+	@SuppressWarnings({ "serial" })
+	public static class SingularTransformException extends Exception {
+		public SingularTransformException(String msg) {
+			super(msg);
+		}
+	}
+
+	/**
+	 * @param materialIndex
+	 *            - The material of the placement, 0 to keep the material of the
+	 *            mesh
+	 */
+	public MeshInstance(Mesh mesh, double[] transform, int materialIndex) throws SingularTransformException {
+		super(materialIndex);
+		this.mesh = mesh;
+		this.transform = transform;
+		this.inverse = invert(transform);
+	}
+
+	/**
+	 * Creates the placement from the parameters of its line: the name of the
+	 * mesh, the material index, the translation, the rotation (in degrees) and
+	 * the scale on each axis, and an optional shadow flag.
+	 */
+	public MeshInstance(Mesh mesh, String[] params) throws SingularTransformException {
+		this(mesh, createTransform(parse(params, 2), parse(params, 5), parse(params, 8)),
+				Integer.parseInt(params[1]));
+		parseShadowFlag(params, 11);
+	}
+
+	private static double[] parse(String[] params, int offset) {
+		return new double[] { Double.parseDouble(params[offset]), Double.parseDouble(params[offset + 1]),
+				Double.parseDouble(params[offset + 2]) };
+	}
+
+	/**
+	 * Creates the transform which scales, rotates around X, Y and Z and then
+	 * translates.
+	 *
+	 * @param rotation
+	 *            - The angles around the axes, in degrees
+	 */
+	public static double[] createTransform(double[] translation, double[] rotation, double[] scale) {
+		double cx = Math.cos(Math.toRadians(rotation[0])), sx = Math.sin(Math.toRadians(rotation[0]));
+		double cy = Math.cos(Math.toRadians(rotation[1])), sy = Math.sin(Math.toRadians(rotation[1]));
+		double cz = Math.cos(Math.toRadians(rotation[2])), sz = Math.sin(Math.toRadians(rotation[2]));
+		// R = Rz * Ry * Rx
+		double[] r = { cz * cy, cz * sy * sx - sz * cx, cz * sy * cx + sz * sx, sz * cy, sz * sy * sx + cz * cx,
+				sz * sy * cx - cz * sx, -sy, cy * sx, cy * cx };
+		double[] m = new double[12];
+		for (int row = 0; row < 3; row++) {
+			for (int col = 0; col < 3; col++) {
+				m[row * 4 + col] = r[row * 3 + col] * scale[col];
+			}
+			m[row * 4 + 3] = translation[row];
+		}
+		return m;
+	}
+
+	/**
+	 * Inverts an affine transform.
+	 *
+	 * @throws SingularTransformException
+	 *             If the transform can not be inverted
+	 */
+	public static double[] invert(double[] m) throws SingularTransformException {
+		// The inverse of the 3x3 part, by its cofactors
+		double c00 = m[5] * m[10] - m[6] * m[9];
+		double c01 = m[6] * m[8] - m[4] * m[10];
+		double c02 = m[4] * m[9] - m[5] * m[8];
+		double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+		if (det == 0) {
+			throw new SingularTransformException("The transform can not be inverted.");
+		}
+		double invDet = 1 / det;
+		double[] r = new double[12];
+		r[0] = c00 * invDet;
+		r[1] = (m[2] * m[9] - m[1] * m[10]) * invDet;
+		r[2] = (m[1] * m[6] - m[2] * m[5]) * invDet;
+		r[4] = c01 * invDet;
+		r[5] = (m[0] * m[10] - m[2] * m[8]) * invDet;
+		r[6] = (m[2] * m[4] - m[0] * m[6]) * invDet;
+		r[8] = c02 * invDet;
+		r[9] = (m[1] * m[8] - m[0] * m[9]) * invDet;
+		r[10] = (m[0] * m[5] - m[1] * m[4]) * invDet;
+		// The translation is moved back by the inverted 3x3 part
+		for (int row = 0; row < 3; row++) {
+			r[row * 4 + 3] = -(r[row * 4] * m[3] + r[row * 4 + 1] * m[7] + r[row * 4 + 2] * m[11]);
+		}
+		return r;
+	}
+
+	/**
+	 * Moves a normal of the mesh into the scene, by the transposed inverse of
+	 * the transform.
+	 *
+	 * @return The normal, normalized
+	 */
+	public static Vector transformNormal(double[] inverse, Vector normal) {
+		double x = normal.getX(), y = normal.getY(), z = normal.getZ();
+		return normal.set(inverse[0] * x + inverse[4] * y + inverse[8] * z,
+				inverse[1] * x + inverse[5] * y + inverse[9] * z, inverse[2] * x + inverse[6] * y + inverse[10] * z)
+				.normalize();
+	}
+
+	public Mesh getMesh() {
+		return mesh;
+	}
+
+	public double[] getTransform() {
+		return transform;
+	}
+
+	public double[] getInverse() {
+		return inverse;
+	}
+
+	@Override
+	public int getMaterialIndex() {
+		int materialIndex = super.getMaterialIndex();
+		return materialIndex >= 0 ? materialIndex : mesh.getMaterialIndex();
+	}
+
+	@Override
+	public double hit(Ray ray) {
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
+		double ox = o.getX(), oy = o.getY(), oz = o.getZ();
+		double dx = d.getX(), dy = d.getY(), dz = d.getZ();
+		double[] m = this.inverse;
+		// The direction is not normalized again, so the hit location is the same
+		return mesh.hit(m[0] * ox + m[1] * oy + m[2] * oz + m[3], m[4] * ox + m[5] * oy + m[6] * oz + m[7],
+				m[8] * ox + m[9] * oy + m[10] * oz + m[11], m[0] * dx + m[1] * dy + m[2] * dz,
+				m[4] * dx + m[5] * dy + m[6] * dz, m[8] * dx + m[9] * dy + m[10] * dz);
+	}
+
+	/**
+	 * Gets the normal of the face the point is on, as Mesh.getNormalAt does for
+	 * the point moved into the space of the mesh.
+	 */
+	@Override
+	public Vector getNormalAt(Vector point, Vector out) {
+		double x = point.getX(), y = point.getY(), z = point.getZ();
+		double[] m = this.inverse;
+		int face = mesh.getFaceAt(m[0] * x + m[1] * y + m[2] * z + m[3], m[4] * x + m[5] * y + m[6] * z + m[7],
+				m[8] * x + m[9] * y + m[10] * z + m[11]);
+		return face >= 0 ? transformNormal(m, mesh.getFaceNormal(face, out)) : out.set(0, 0, 0);
+	}
+
+	@Override
+	public BoundingBox getBoundingBox() {
+		BoundingBox local = mesh.getBoundingBox();
+		return local != null ? transformBox(local) : null;
+	}
+
+	/**
+	 * @return The box of the corners of a box in the space of the mesh, moved
+	 *         into the scene
+	 */
+	public BoundingBox transformBox(BoundingBox local) {
+		double[] m = this.transform;
+		BoundingBox result = new BoundingBox();
+		for (int corner = 0; corner < 8; corner++) {
+			double x = (corner & 1) == 0 ? local.getMin(0) : local.getMax(0);
+			double y = (corner & 2) == 0 ? local.getMin(1) : local.getMax(1);
+			double z = (corner & 4) == 0 ? local.getMin(2) : local.getMax(2);
+			result.extend(new Vector(m[0] * x + m[1] * y + m[2] * z + m[3], m[4] * x + m[5] * y + m[6] * z + m[7],
+					m[8] * x + m[9] * y + m[10] * z + m[11]));
+		}
+		return result;
+	}
+}
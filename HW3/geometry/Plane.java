@@ -20,6 +20,15 @@ public class Plane extends Shape {
 	public Plane(String[] params) {
 		this(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
 				Double.parseDouble(params[3]), Integer.parseInt(params[4]));
+		parseShadowFlag(params, 5);
+	}
+
+	/**
+	 * Creates the plane from the parameters of its line, parsed to numbers.
+	 */
+	public Plane(double[] params, int paramsNum) {
+		this(new Vector(params[0], params[1], params[2]), params[3], toInt(params[4]));
+		parseShadowFlag(params, paramsNum, 5);
 	}
 
 	public Plane(Vector normal, double offset, int materialIndex) {
@@ -42,7 +51,21 @@ public class Plane extends Shape {
 	}
 
 	@Override
-	public Vector getNormalAt(Vector point) {
-		return new Vector(this.normal).normalize();
+	public Vector getNormalAt(Vector point, Vector out) {
+		return out.set(this.normal).normalize();
+	}
+
+	public Vector getNormal() {
+		return normal;
+	}
+
+	public double getOffset() {
+		return offset;
+	}
+
+	@Override
+	public BoundingBox getBoundingBox() {
+		// A plane is infinite, thus can not be bounded
+		return null;
 	}
-}
\ No newline at end of file
+}
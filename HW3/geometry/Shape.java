@@ -5,15 +5,67 @@ import utility.Vector;
 
 public abstract class Shape {
 	private int materialIndex;
+	private boolean castsShadows;
 
 	public Shape(int materialIndex) {
 		this.materialIndex = materialIndex - 1;
+		this.castsShadows = true;
 	}
 
 	public int getMaterialIndex() {
 		return materialIndex;
 	}
 
+	public boolean isCastingShadows() {
+		return castsShadows;
+	}
+
+	public void setCastsShadows(boolean castsShadows) {
+		this.castsShadows = castsShadows;
+	}
+
+	/**
+	 * Reads the optional shadow flag of a shape from the scene file, which
+	 * follows the material index. A value of 0 means the shape does not cast
+	 * shadows.
+	 * 
+	 * @param params
+	 *            - The parameters of the shape line
+	 * @param index
+	 *            - The index of the flag in the parameters
+	 */
+	protected void parseShadowFlag(String[] params, int index) {
+		if (params.length > index) {
+			this.castsShadows = Integer.parseInt(params[index]) != 0;
+		}
+	}
+
+	/**
+	 * Same as parseShadowFlag(params, index), for parameters already parsed to
+	 * numbers.
+	 * 
+	 * @param paramsNum
+	 *            - The number of parameters in the line
+	 */
+	protected void parseShadowFlag(double[] params, int paramsNum, int index) {
+		if (paramsNum > index) {
+			this.castsShadows = toInt(params[index]) != 0;
+		}
+	}
+
+	/**
+	 * @return A parameter already parsed to a number, which has to be a whole
+	 *         number (an index or a flag)
+	 * @throws NumberFormatException
+	 *             - If it is not, as Integer.parseInt() of the parameter throws
+	 */
+	protected static int toInt(double param) {
+		if (param != Math.rint(param) || Math.abs(param) > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Not a whole number: " + param);
+		}
+		return (int) param;
+	}
+
 	/**
 	 * The function checks if a ray intersects the shape. Every derived shape
 	 * implements the function differently.
@@ -32,7 +84,28 @@ public abstract class Shape {
 	 *            - The point for calculation
 	 * @return A vector perpendicular to the surface at the point
 	 */
-	public abstract Vector getNormalAt(Vector point);
+	public Vector getNormalAt(Vector point) {
+		return getNormalAt(point, new Vector(0, 0, 0));
+	}
+
+	/**
+	 * Same as getNormalAt(point), but writes the normal into an existing vector.
+	 * 
+	 * @param point
+	 *            - The point for calculation
+	 * @param out
+	 *            - The vector to write the normal into
+	 * @return The out vector
+	 */
+	public abstract Vector getNormalAt(Vector point, Vector out);
+
+	/**
+	 * Gets the axis aligned box bounding the shape, used to build the bounding
+	 * volume hierarchy.
+	 * 
+	 * @return The bounding box, or null if the shape is unbounded
+	 */
+	public abstract BoundingBox getBoundingBox();
 
 	/**
 	 * Calculates the reflected ray direction at a certain point on the surface.
@@ -44,11 +117,19 @@ public abstract class Shape {
 	 * @return A vector representing the reflected ray direction
 	 */
 	public Ray getReflectedRay(Vector rayDirection, Vector point) {
-		Vector N = this.getNormalAt(point);
-		Vector V = new Vector(rayDirection);
+		return getReflectedRay(rayDirection, point, new Ray());
+	}
+
+	/**
+	 * Same as getReflectedRay(rayDirection, point), but sets an existing ray.
+	 */
+	public Ray getReflectedRay(Vector rayDirection, Vector point, Ray out) {
+		// The direction of the out ray holds the normal until it is reflected
+		Vector N = this.getNormalAt(point, out.getDirection());
+		N.mul(-2 * Vector.dot(N, rayDirection)).add(rayDirection).normalize();
+		out.getOrigin().set(point);
 
-		return new Ray(new Vector(point),
-				new Vector(N).mul(-2 * Vector.dot(N, V)).add(V));
+		return out;
 	}
 
 	/**
@@ -64,13 +145,22 @@ public abstract class Shape {
 	 * @return A new ray representing the refracted ray
 	 */
 	public Ray getRefractedRay(Vector rayDirection, Vector point, double transformFraction) {
-		Vector N = getNormalAt(point);
+		return getRefractedRay(rayDirection, point, transformFraction, new Ray());
+	}
+
+	/**
+	 * Same as getRefractedRay(rayDirection, point, transformFraction), but sets an
+	 * existing ray.
+	 */
+	public Ray getRefractedRay(Vector rayDirection, Vector point, double transformFraction, Ray out) {
+		// The direction of the out ray holds the normal until it is refracted
+		Vector N = getNormalAt(point, out.getDirection());
 		double c1 = -1 * Vector.dot(rayDirection, N);
 		double c2 = Math.sqrt(1 - Math.pow(transformFraction, 2) * (1 - Math.pow(c1, 2)));
 
-		Vector direction = new Vector(rayDirection).mul(transformFraction)
-				.add(new Vector(N).mul(transformFraction * c1 - c2));
+		N.mul(transformFraction * c1 - c2).addScaled(rayDirection, transformFraction).normalize();
+		out.getOrigin().set(point);
 
-		return new Ray(new Vector(point), direction.normalize());
+		return out;
 	}
 }
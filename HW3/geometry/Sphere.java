@@ -14,6 +14,15 @@ public class Sphere extends Shape {
 	public Sphere(String[] params) {
 		this(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
 				Double.parseDouble(params[3]), Integer.parseInt(params[4]));
+		parseShadowFlag(params, 5);
+	}
+
+	/**
+	 * Creates the sphere from the parameters of its line, parsed to numbers.
+	 */
+	public Sphere(double[] params, int paramsNum) {
+		this(new Vector(params[0], params[1], params[2]), params[3], toInt(params[4]));
+		parseShadowFlag(params, paramsNum, 5);
 	}
 
 	public Sphere(Vector center, double radius, int materialIndex) {
@@ -27,9 +36,13 @@ public class Sphere extends Shape {
 		// Based on the method found in:
 		// https://www.cs.unc.edu/~rademach/xroads-RT/RTarticle.html
 
-		Vector EO = new Vector(this.center).sub(ray.getOrigin());
-		double v = Vector.dot(EO, ray.getDirection());
-		double disc = Math.pow(this.radius, 2) - (Vector.dot(EO, EO) - Math.pow(v, 2));
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
+		double EOx = this.center.getX() - o.getX();
+		double EOy = this.center.getY() - o.getY();
+		double EOz = this.center.getZ() - o.getZ();
+		double v = EOx * d.getX() + EOy * d.getY() + EOz * d.getZ();
+		double disc = this.radius * this.radius - ((EOx * EOx + EOy * EOy + EOz * EOz) - v * v);
 		if (disc < 0) {
 			return 0;
 		} else {
@@ -38,7 +51,21 @@ public class Sphere extends Shape {
 	}
 
 	@Override
-	public Vector getNormalAt(Vector point) {
-		return new Vector(point).sub(this.center).normalize();
+	public Vector getNormalAt(Vector point, Vector out) {
+		return out.set(point).sub(this.center).normalize();
+	}
+
+	public Vector getCenter() {
+		return center;
+	}
+
+	public double getRadius() {
+		return radius;
+	}
+
+	@Override
+	public BoundingBox getBoundingBox() {
+		return new BoundingBox(center.getX() - radius, center.getY() - radius, center.getZ() - radius,
+				center.getX() + radius, center.getY() + radius, center.getZ() + radius);
 	}
-}
\ No newline at end of file
+}
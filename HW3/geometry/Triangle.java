@@ -16,12 +16,23 @@ public class Triangle extends Shape {
 	// -> [(v1 - v3) x (r - v3)] * n >= 0
 	// To find the intersection point (distance) it is the same as that of a plane.
 	private Vector v1, v2, v3;
+	private Vector normal; // the normal (n) of the plane, calculated once
 
 	public Triangle(String[] params) {
 		this(new Vector(Double.parseDouble(params[0]), Double.parseDouble(params[1]), Double.parseDouble(params[2])),
 				new Vector(Double.parseDouble(params[3]), Double.parseDouble(params[4]), Double.parseDouble(params[5])),
 				new Vector(Double.parseDouble(params[6]), Double.parseDouble(params[7]), Double.parseDouble(params[8])),
 				Integer.parseInt(params[9]));
+		parseShadowFlag(params, 10);
+	}
+
+	/**
+	 * Creates the triangle from the parameters of its line, parsed to numbers.
+	 */
+	public Triangle(double[] params, int paramsNum) {
+		this(new Vector(params[0], params[1], params[2]), new Vector(params[3], params[4], params[5]),
+				new Vector(params[6], params[7], params[8]), toInt(params[9]));
+		parseShadowFlag(params, paramsNum, 10);
 	}
 
 	public Triangle(Vector v1, Vector v2, Vector v3, int materialIndex) {
@@ -29,6 +40,7 @@ public class Triangle extends Shape {
 		this.v1 = v1;
 		this.v2 = v2;
 		this.v3 = v3;
+		this.normal = Vector.cross(new Vector(v2).sub(v1), new Vector(v3).sub(v1)).normalize();
 	}
 
 	@Override
@@ -36,32 +48,168 @@ public class Triangle extends Shape {
 		// OPTION 1
 		// Based on the method found in:
 		// https://courses.cs.washington.edu/courses/csep557/10au/lectures/triangle_intersection.pdf
-		Vector P_n = Vector.cross(new Vector(v2).sub(v1), new Vector(v3).sub(v1)).normalize();
+		Vector P_n = this.normal;
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
 
 		// Check that the point is on the plane P with normal P_n and point v1
-		if (Vector.dot(ray.getDirection(), P_n) == 0) {
+		double dn = Vector.dot(d, P_n);
+		if (dn == 0) {
 			return 0;
 		}
 
 		// t = (1/d_r*n) * (p_p * n - p_r * n)
-		double t = (Vector.dot(v1, P_n) - Vector.dot(ray.getOrigin(), P_n)) / Vector.dot(ray.getDirection(), P_n);
-		Vector r = new Vector(ray.getOrigin()).add(new Vector(ray.getDirection()).mul(t));
+		double t = (Vector.dot(v1, P_n) - Vector.dot(o, P_n)) / dn;
+		double rx = o.getX() + d.getX() * t;
+		double ry = o.getY() + d.getY() * t;
+		double rz = o.getZ() + d.getZ() * t;
 
 		// Check that the point is in the triangle
 		// If all conditions apply:
 		// [(v2 - v1) x (r - v1)] * n >= 0
 		// [(v3 - v2) x (r - v2)] * n >= 0
 		// [(v1 - v3) x (r - v3)] * n >= 0
-		if ((Vector.dot(Vector.cross(new Vector(v2).sub(v1), new Vector(r).sub(v1)), P_n) >= 0)
-				&& (Vector.dot(Vector.cross(new Vector(v3).sub(v2), new Vector(r).sub(v2)), P_n) >= 0)
-				&& (Vector.dot(Vector.cross(new Vector(v1).sub(v3), new Vector(r).sub(v3)), P_n) >= 0)) {
+		if (isLeftOfEdge(v1, v2, rx, ry, rz) && isLeftOfEdge(v2, v3, rx, ry, rz)
+				&& isLeftOfEdge(v3, v1, rx, ry, rz)) {
 			return t;
 		}
 		return 0;
 	}
 
+	/**
+	 * Intersects a ray with a triangle given by its first vertex and the two
+	 * edges from it, using the Moller-Trumbore test. Shared by the compiled
+	 * triangles and the faces of meshes.
+	 *
+	 * @return The intersection location, or 0.0 if no intersection
+	 */
+	public static double intersect(double v1x, double v1y, double v1z, double e1x, double e1y, double e1z,
+			double e2x, double e2y, double e2z, double ox, double oy, double oz, double dx, double dy, double dz) {
+		// p = d x e2
+		double px = dy * e2z - dz * e2y;
+		double py = dz * e2x - dx * e2z;
+		double pz = dx * e2y - dy * e2x;
+		double det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0) {
+			// The ray is parallel to the triangle plane
+			return 0;
+		}
+		double invDet = 1 / det;
+
+		// s = o - v1
+		double sx = ox - v1x, sy = oy - v1y, sz = oz - v1z;
+		double u = (sx * px + sy * py + sz * pz) * invDet;
+		if (u < 0 || u > 1) {
+			return 0;
+		}
+
+		// q = s x e1
+		double qx = sy * e1z - sz * e1y;
+		double qy = sz * e1x - sx * e1z;
+		double qz = sx * e1y - sy * e1x;
+		double v = (dx * qx + dy * qy + dz * qz) * invDet;
+		if (v < 0 || u + v > 1) {
+			return 0;
+		}
+
+		return (e2x * qx + e2y * qy + e2z * qz) * invDet;
+	}
+
+	/**
+	 * Gets the squared distance from a point to a triangle given by its
+	 * vertices, by the closest point of the triangle: a vertex, a point on an
+	 * edge or a point inside, found by the region of the point (as in Ericson,
+	 * Real-Time Collision Detection, 5.1.5).
+	 */
+	public static double getDistanceSquared(double ax, double ay, double az, double bx, double by, double bz,
+			double cx, double cy, double cz, double px, double py, double pz) {
+		double abx = bx - ax, aby = by - ay, abz = bz - az;
+		double acx = cx - ax, acy = cy - ay, acz = cz - az;
+		double apx = px - ax, apy = py - ay, apz = pz - az;
+		double d1 = abx * apx + aby * apy + abz * apz;
+		double d2 = acx * apx + acy * apy + acz * apz;
+		if (d1 <= 0 && d2 <= 0) {
+			return getDistanceSquared(ax, ay, az, px, py, pz);
+		}
+
+		double bpx = px - bx, bpy = py - by, bpz = pz - bz;
+		double d3 = abx * bpx + aby * bpy + abz * bpz;
+		double d4 = acx * bpx + acy * bpy + acz * bpz;
+		if (d3 >= 0 && d4 <= d3) {
+			return getDistanceSquared(bx, by, bz, px, py, pz);
+		}
+		double vc = d1 * d4 - d3 * d2;
+		if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+			double v = d1 / (d1 - d3);
+			return getDistanceSquared(ax + abx * v, ay + aby * v, az + abz * v, px, py, pz);
+		}
+
+		double cpx = px - cx, cpy = py - cy, cpz = pz - cz;
+		double d5 = abx * cpx + aby * cpy + abz * cpz;
+		double d6 = acx * cpx + acy * cpy + acz * cpz;
+		if (d6 >= 0 && d5 <= d6) {
+			return getDistanceSquared(cx, cy, cz, px, py, pz);
+		}
+		double vb = d5 * d2 - d1 * d6;
+		if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+			double w = d2 / (d2 - d6);
+			return getDistanceSquared(ax + acx * w, ay + acy * w, az + acz * w, px, py, pz);
+		}
+		double va = d3 * d6 - d5 * d4;
+		if (va <= 0 && d4 - d3 >= 0 && d5 - d6 >= 0) {
+			double w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+			return getDistanceSquared(bx + (cx - bx) * w, by + (cy - by) * w, bz + (cz - bz) * w, px, py, pz);
+		}
+
+		double denom = 1 / (va + vb + vc);
+		double v = vb * denom, w = vc * denom;
+		return getDistanceSquared(ax + abx * v + acx * w, ay + aby * v + acy * w, az + abz * v + acz * w, px, py,
+				pz);
+	}
+
+	private static double getDistanceSquared(double ax, double ay, double az, double px, double py, double pz) {
+		return (px - ax) * (px - ax) + (py - ay) * (py - ay) + (pz - az) * (pz - az);
+	}
+
+	/**
+	 * Checks the condition [(b - a) x (r - a)] * n >= 0 for the edge from a to b,
+	 * without creating temporary vectors.
+	 */
+	private boolean isLeftOfEdge(Vector a, Vector b, double rx, double ry, double rz) {
+		double ex = b.getX() - a.getX(), ey = b.getY() - a.getY(), ez = b.getZ() - a.getZ();
+		double px = rx - a.getX(), py = ry - a.getY(), pz = rz - a.getZ();
+		double cx = ey * pz - ez * py;
+		double cy = ez * px - ex * pz;
+		double cz = ex * py - ey * px;
+		return cx * normal.getX() + cy * normal.getY() + cz * normal.getZ() >= 0;
+	}
+
+	@Override
+	public Vector getNormalAt(Vector point, Vector out) {
+		return out.set(this.normal);
+	}
+
+	public Vector getV1() {
+		return v1;
+	}
+
+	public Vector getV2() {
+		return v2;
+	}
+
+	public Vector getV3() {
+		return v3;
+	}
+
+	public Vector getNormal() {
+		return normal;
+	}
+
 	@Override
-	public Vector getNormalAt(Vector point) {
-		return Vector.cross(new Vector(v2).sub(v1), new Vector(v3).sub(v1)).normalize();
+	public BoundingBox getBoundingBox() {
+		return new BoundingBox(Math.min(v1.getX(), Math.min(v2.getX(), v3.getX())),
+				Math.min(v1.getY(), Math.min(v2.getY(), v3.getY())), Math.min(v1.getZ(), Math.min(v2.getZ(), v3.getZ())),
+				Math.max(v1.getX(), Math.max(v2.getX(), v3.getX())), Math.max(v1.getY(), Math.max(v2.getY(), v3.getY())),
+				Math.max(v1.getZ(), Math.max(v2.getZ(), v3.getZ())));
 	}
 }
@@ -0,0 +1,647 @@
+package main;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import geometry.BoundingBox;
+import utility.Vector;
+
+/**
+ * A bounding volume hierarchy over the primitives of the compiled scene. The
+ * tree is built once using the surface area heuristic (SAH) and stored
+ * flattened in arrays, every node takes 6 doubles for its bounds and two ints:
+ * - For a leaf: the offset of its first primitive and the number of primitives.
+ * - For an inner node: the index of its second child and a count of 0, the
+ * first child is always the node following it.
+ * Unbounded primitives (planes) can not be placed in the tree and are kept in a
+ * side list which every query checks as well.
+ */
+public class BVH {
+	// Number of buckets used to estimate the SAH cost of a split
+	private static final int bucketsNum = 16;
+	// Maximal number of shapes in a leaf
+	private static final int maxLeafSize = 2;
+	// Relative costs of traversing a node and of intersecting a shape
+	private static final double traversalCost = 1;
+	private static final double intersectionCost = 2;
+
+	private CompiledScene scene;
+	private int[] primitives; // bounded primitives, ordered by leafs
+	private int[] unbounded; // primitives that have no bounding box
+	private double[] nodeBounds;
+	private int[] nodeOffsets;
+	private int[] nodeCounts;
+	private int[] nodeAxes;
+	private int nodesNum;
+	private int depth; // the depth of the deepest leaf, bounds the traversal stack
+
+	public BVH(CompiledScene scene) {
+		this(scene, allPrimitives(scene));
+	}
+
+	/**
+	 * Builds the hierarchy over some of the primitives of the scene.
+	 */
+	public BVH(CompiledScene scene, int[] scenePrimitives) {
+		this.scene = scene;
+		int boundedNum = 0;
+		for (int p : scenePrimitives) {
+			if (scene.getBoundingBox(p) != null) {
+				boundedNum++;
+			}
+		}
+		this.primitives = new int[boundedNum];
+		this.unbounded = new int[scenePrimitives.length - boundedNum];
+		boundedNum = 0;
+		int unboundedNum = 0;
+		for (int p : scenePrimitives) {
+			if (scene.getBoundingBox(p) != null) {
+				this.primitives[boundedNum++] = p;
+			} else {
+				this.unbounded[unboundedNum++] = p;
+			}
+		}
+
+		BoundingBox[] boxes = new BoundingBox[this.primitives.length];
+		for (int i = 0; i < boxes.length; i++) {
+			boxes[i] = scene.getBoundingBox(this.primitives[i]);
+		}
+		buildTree(boxes);
+	}
+
+	/**
+	 * Builds a hierarchy over boxes which are not primitives of the scene, the
+	 * leafs reference the indices of the boxes. Only the arrays of the tree are
+	 * used, by a caller that runs its own queries over them.
+	 */
+	BVH(BoundingBox[] boxes) {
+		this.primitives = new int[boxes.length];
+		for (int i = 0; i < boxes.length; i++) {
+			this.primitives[i] = i;
+		}
+		this.unbounded = new int[0];
+		buildTree(boxes);
+	}
+
+	private void buildTree(BoundingBox[] boxes) {
+		int n = boxes.length;
+		double[] centers = new double[n * 3];
+		for (int i = 0; i < n; i++) {
+			for (int axis = 0; axis < 3; axis++) {
+				centers[i * 3 + axis] = boxes[i].getCenter(axis);
+			}
+		}
+
+		// A binary tree with leafs of at least one shape has at most 2n - 1 nodes
+		int maxNodes = Math.max(1, 2 * n - 1);
+		this.nodeBounds = new double[maxNodes * 6];
+		this.nodeOffsets = new int[maxNodes];
+		this.nodeCounts = new int[maxNodes];
+		this.nodeAxes = new int[maxNodes];
+		this.nodesNum = 0;
+		this.depth = 0;
+
+		if (n > 0) {
+			build(boxes, centers, 0, n, 1);
+		}
+
+		// Most trees have fewer nodes, and large ones are kept for long
+		this.nodeBounds = Arrays.copyOf(this.nodeBounds, this.nodesNum * 6);
+		this.nodeOffsets = Arrays.copyOf(this.nodeOffsets, this.nodesNum);
+		this.nodeCounts = Arrays.copyOf(this.nodeCounts, this.nodesNum);
+		this.nodeAxes = Arrays.copyOf(this.nodeAxes, this.nodesNum);
+	}
+
+	/**
+	 * Reads a hierarchy written by write(), instead of building it.
+	 *
+	 * @param in
+	 *            - The buffer to read from, its position is moved past the
+	 *            hierarchy
+	 */
+	public BVH(CompiledScene scene, ByteBuffer in) {
+		this.scene = scene;
+		this.primitives = readInts(in);
+		this.unbounded = readInts(in);
+		this.nodesNum = in.getInt();
+		this.depth = in.getInt();
+		this.nodeBounds = new double[this.nodesNum * 6];
+		in.asDoubleBuffer().get(this.nodeBounds);
+		in.position(in.position() + this.nodeBounds.length * Double.BYTES);
+		this.nodeOffsets = readInts(in, this.nodesNum);
+		this.nodeCounts = readInts(in, this.nodesNum);
+		this.nodeAxes = readInts(in, this.nodesNum);
+	}
+
+	/**
+	 * Writes the hierarchy, so it can be read back instead of being built again.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		writeInts(out, this.primitives, this.primitives.length, true);
+		writeInts(out, this.unbounded, this.unbounded.length, true);
+		out.writeInt(this.nodesNum);
+		out.writeInt(this.depth);
+		for (int i = 0; i < this.nodesNum * 6; i++) {
+			out.writeDouble(this.nodeBounds[i]);
+		}
+		writeInts(out, this.nodeOffsets, this.nodesNum, false);
+		writeInts(out, this.nodeCounts, this.nodesNum, false);
+		writeInts(out, this.nodeAxes, this.nodesNum, false);
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values, int length, boolean withLength)
+			throws IOException {
+		if (withLength) {
+			out.writeInt(length);
+		}
+		for (int i = 0; i < length; i++) {
+			out.writeInt(values[i]);
+		}
+	}
+
+	private static int[] readInts(ByteBuffer in) {
+		return readInts(in, in.getInt());
+	}
+
+	private static int[] readInts(ByteBuffer in, int length) {
+		int[] result = new int[length];
+		in.asIntBuffer().get(result);
+		in.position(in.position() + length * Integer.BYTES);
+		return result;
+	}
+
+	private static int[] allPrimitives(CompiledScene scene) {
+		int[] result = new int[scene.getPrimitivesNum()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = i;
+		}
+		return result;
+	}
+
+	public int getNodesNum() {
+		return nodesNum;
+	}
+
+	public int getBoundedNum() {
+		return primitives.length;
+	}
+
+	public int getUnboundedNum() {
+		return unbounded.length;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	// The arrays of the tree, for queries over boxes which are not primitives
+	int[] getPrimitives() {
+		return primitives;
+	}
+
+	double[] getNodeBounds() {
+		return nodeBounds;
+	}
+
+	int[] getNodeOffsets() {
+		return nodeOffsets;
+	}
+
+	int[] getNodeCounts() {
+		return nodeCounts;
+	}
+
+	int[] getNodeAxes() {
+		return nodeAxes;
+	}
+
+	/**
+	 * Recursively builds the subtree for the primitives in [start, end) and
+	 * returns the index of its root node. The primitives are reordered in place so
+	 * each leaf
+	 * references a continuous range.
+	 */
+	private int build(BoundingBox[] boxes, double[] centers, int start, int end, int level) {
+		int node = this.nodesNum++;
+		int count = end - start;
+		this.depth = Math.max(this.depth, level);
+
+		BoundingBox bounds = new BoundingBox();
+		BoundingBox centerBounds = new BoundingBox();
+		for (int i = start; i < end; i++) {
+			bounds.extend(boxes[i]);
+			centerBounds.extend(new Vector(centers[i * 3], centers[i * 3 + 1], centers[i * 3 + 2]));
+		}
+		for (int axis = 0; axis < 3; axis++) {
+			this.nodeBounds[node * 6 + axis] = bounds.getMin(axis);
+			this.nodeBounds[node * 6 + 3 + axis] = bounds.getMax(axis);
+		}
+
+		if (count <= maxLeafSize) {
+			makeLeaf(node, start, count);
+			return node;
+		}
+
+		// Choose the axis with the largest spread of centers
+		int axis = 0;
+		double extent = -1;
+		for (int a = 0; a < 3; a++) {
+			double e = centerBounds.getMax(a) - centerBounds.getMin(a);
+			if (e > extent) {
+				extent = e;
+				axis = a;
+			}
+		}
+		if (extent <= 0) {
+			// All centers are at the same spot, no split will separate them
+			makeLeaf(node, start, count);
+			return node;
+		}
+
+		// Bin the shapes by their centers and evaluate the SAH for every bucket
+		// boundary
+		double minCenter = centerBounds.getMin(axis);
+		int[] bucketCounts = new int[bucketsNum];
+		BoundingBox[] bucketBounds = new BoundingBox[bucketsNum];
+		for (int b = 0; b < bucketsNum; b++) {
+			bucketBounds[b] = new BoundingBox();
+		}
+		for (int i = start; i < end; i++) {
+			int b = bucketOf(centers[i * 3 + axis], minCenter, extent);
+			bucketCounts[b]++;
+			bucketBounds[b].extend(boxes[i]);
+		}
+
+		double bestCost = Double.MAX_VALUE;
+		int bestSplit = -1;
+		double parentArea = bounds.surfaceArea();
+		for (int split = 0; split < bucketsNum - 1; split++) {
+			BoundingBox left = new BoundingBox();
+			BoundingBox right = new BoundingBox();
+			int leftCount = 0, rightCount = 0;
+			for (int b = 0; b <= split; b++) {
+				left.extend(bucketBounds[b]);
+				leftCount += bucketCounts[b];
+			}
+			for (int b = split + 1; b < bucketsNum; b++) {
+				right.extend(bucketBounds[b]);
+				rightCount += bucketCounts[b];
+			}
+			if (leftCount == 0 || rightCount == 0) {
+				continue;
+			}
+			double cost = traversalCost + intersectionCost
+					* (left.surfaceArea() * leftCount + right.surfaceArea() * rightCount) / parentArea;
+			if (cost < bestCost) {
+				bestCost = cost;
+				bestSplit = split;
+			}
+		}
+
+		if (bestSplit < 0 || bestCost >= intersectionCost * count) {
+			// Splitting is not cheaper than testing all the primitives
+			makeLeaf(node, start, count);
+			return node;
+		}
+
+		// Partition the range around the chosen bucket boundary
+		int mid = start;
+		for (int i = start; i < end; i++) {
+			if (bucketOf(centers[i * 3 + axis], minCenter, extent) <= bestSplit) {
+				swap(boxes, centers, i, mid);
+				mid++;
+			}
+		}
+
+		this.nodeAxes[node] = axis;
+		this.nodeCounts[node] = 0;
+		build(boxes, centers, start, mid, level + 1);
+		this.nodeOffsets[node] = build(boxes, centers, mid, end, level + 1);
+		return node;
+	}
+
+	private void makeLeaf(int node, int start, int count) {
+		this.nodeOffsets[node] = start;
+		this.nodeCounts[node] = count;
+	}
+
+	private static int bucketOf(double center, double minCenter, double extent) {
+		int b = (int) (bucketsNum * (center - minCenter) / extent);
+		return Math.min(b, bucketsNum - 1);
+	}
+
+	private void swap(BoundingBox[] boxes, double[] centers, int i, int j) {
+		int p = this.primitives[i];
+		this.primitives[i] = this.primitives[j];
+		this.primitives[j] = p;
+		BoundingBox b = boxes[i];
+		boxes[i] = boxes[j];
+		boxes[j] = b;
+		for (int axis = 0; axis < 3; axis++) {
+			double c = centers[i * 3 + axis];
+			centers[i * 3 + axis] = centers[j * 3 + axis];
+			centers[j * 3 + axis] = c;
+		}
+	}
+
+	private boolean hitNode(int node, double ox, double oy, double oz, double invDx, double invDy, double invDz,
+			double tMax) {
+		int b = node * 6;
+		return BoundingBox.hit(nodeBounds[b], nodeBounds[b + 1], nodeBounds[b + 2], nodeBounds[b + 3],
+				nodeBounds[b + 4], nodeBounds[b + 5], ox, oy, oz, invDx, invDy, invDz, tMax);
+	}
+
+	/**
+	 * Finds the closest primitive intersected by the ray.
+	 *
+	 * @param ray
+	 *            The ray to check for
+	 * @param result
+	 *            The intersection to fill with the primitive, shape and hit value
+	 *            found
+	 * @return true if any primitive was intersected
+	 */
+	public boolean getFirstIntersection(Ray ray, Intersection result) {
+		return getFirstIntersection(ray, result, createStack());
+	}
+
+	/**
+	 * Creates a traversal stack large enough for any query on this tree. Callers
+	 * that run many queries should create one and pass it to every query.
+	 */
+	public int[] createStack() {
+		return new int[this.depth + 1];
+	}
+
+	/**
+	 * Same as getFirstIntersection(ray, result), using the given traversal stack.
+	 */
+	public boolean getFirstIntersection(Ray ray, Intersection result, int[] stack) {
+		double nearestHitValue = Double.MAX_VALUE;
+		int nearestPrimitive = -1;
+
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
+		double ox = o.getX(), oy = o.getY(), oz = o.getZ();
+		double dx = d.getX(), dy = d.getY(), dz = d.getZ();
+
+		for (int p : this.unbounded) {
+			double tempHitValue = this.scene.hit(p, ox, oy, oz, dx, dy, dz, nearestHitValue, result);
+			if (tempHitValue >= RayTracer.epsilon && tempHitValue < nearestHitValue) {
+				nearestHitValue = tempHitValue;
+				nearestPrimitive = p;
+			}
+		}
+
+		if (this.nodesNum > 0) {
+			double invDx = 1 / dx, invDy = 1 / dy, invDz = 1 / dz;
+
+			int stackSize = 0;
+			int node = 0;
+			while (true) {
+				if (hitNode(node, ox, oy, oz, invDx, invDy, invDz, nearestHitValue)) {
+					int count = this.nodeCounts[node];
+					if (count > 0) {
+						int offset = this.nodeOffsets[node];
+						for (int i = offset; i < offset + count; i++) {
+							int p = this.primitives[i];
+							double tempHitValue = this.scene.hit(p, ox, oy, oz, dx, dy, dz, nearestHitValue, result);
+							if (tempHitValue >= RayTracer.epsilon && tempHitValue < nearestHitValue) {
+								nearestHitValue = tempHitValue;
+								nearestPrimitive = p;
+							}
+						}
+					} else if (isDirectionNegative(this.nodeAxes[node], invDx, invDy, invDz)) {
+						// Visit the closer child first, so far nodes can be culled by
+						// the hit found in the near one
+						stack[stackSize++] = node + 1;
+						node = this.nodeOffsets[node];
+						continue;
+					} else {
+						stack[stackSize++] = this.nodeOffsets[node];
+						node = node + 1;
+						continue;
+					}
+				}
+				if (stackSize == 0) {
+					break;
+				}
+				node = stack[--stackSize];
+			}
+		}
+
+		if (nearestPrimitive < 0) {
+			result.shape = null;
+			return false;
+		}
+		result.primitive = nearestPrimitive;
+		result.tValue = nearestHitValue;
+		this.scene.setShape(result);
+		return true;
+	}
+
+	/**
+	 * Calculates the amount of light passing along a ray up to a given distance.
+	 * Every primitive in the way multiplies the light by its transparency, an
+	 * opaque one blocks it completely.
+	 *
+	 * @param lightRay
+	 *            The ray from the light
+	 * @param T
+	 *            The distance to the point being lit
+	 * @return The light level, between 0 (blocked) and 1 (clear)
+	 */
+	public double getLightLevel(Ray lightRay, double T) {
+		return getLightLevel(lightRay, T, createStack());
+	}
+
+	/**
+	 * Same as getLightLevel(lightRay, T), using the given traversal stack.
+	 */
+	public double getLightLevel(Ray lightRay, double T, int[] stack) {
+		double lightLevel = 1;
+
+		Vector o = lightRay.getOrigin();
+		Vector d = lightRay.getDirection();
+		double ox = o.getX(), oy = o.getY(), oz = o.getZ();
+		double dx = d.getX(), dy = d.getY(), dz = d.getZ();
+
+		for (int p : this.unbounded) {
+			lightLevel *= getTransparency(p, ox, oy, oz, dx, dy, dz, T);
+			if (lightLevel == 0) {
+				return 0;
+			}
+		}
+
+		if (this.nodesNum > 0) {
+			double invDx = 1 / dx, invDy = 1 / dy, invDz = 1 / dz;
+
+			int stackSize = 0;
+			stack[stackSize++] = 0;
+			while (stackSize > 0) {
+				int node = stack[--stackSize];
+				if (!hitNode(node, ox, oy, oz, invDx, invDy, invDz, T)) {
+					continue;
+				}
+				int count = this.nodeCounts[node];
+				if (count > 0) {
+					int offset = this.nodeOffsets[node];
+					for (int i = offset; i < offset + count; i++) {
+						lightLevel *= getTransparency(this.primitives[i], ox, oy, oz, dx, dy, dz, T);
+						if (lightLevel == 0) {
+							return 0;
+						}
+					}
+				} else {
+					stack[stackSize++] = this.nodeOffsets[node];
+					stack[stackSize++] = node + 1;
+				}
+			}
+		}
+		return lightLevel;
+	}
+
+	/**
+	 * Any-hit query: finds some primitive blocking the ray before the distance T.
+	 * Unlike getFirstIntersection it does not look for the closest one, the search
+	 * stops at the first primitive found.
+	 *
+	 * @param ray
+	 *            The ray to check for
+	 * @param T
+	 *            The distance along the ray to check up to
+	 * @param stack
+	 *            The traversal stack
+	 * @return The index of a blocking primitive, or -1 if none
+	 */
+	public int getOccluder(Ray ray, double T, int[] stack) {
+		return getOccluder(ray, T, stack, null, 0);
+	}
+
+	/**
+	 * Same as getOccluder(ray, T, stack), also telling the face in the way if
+	 * the blocking primitive is a mesh.
+	 *
+	 * @param faces
+	 *            Receives the face in the way in faces[index], -1 if the
+	 *            blocking primitive is not a mesh (see
+	 *            CompiledScene.isBlocking)
+	 */
+	public int getOccluder(Ray ray, double T, int[] stack, int[] faces, int index) {
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
+		double ox = o.getX(), oy = o.getY(), oz = o.getZ();
+		double dx = d.getX(), dy = d.getY(), dz = d.getZ();
+
+		for (int p : this.unbounded) {
+			if (this.scene.isBlocking(p, ox, oy, oz, dx, dy, dz, T, faces, index)) {
+				return p;
+			}
+		}
+
+		if (this.nodesNum > 0) {
+			double invDx = 1 / dx, invDy = 1 / dy, invDz = 1 / dz;
+
+			int stackSize = 0;
+			stack[stackSize++] = 0;
+			while (stackSize > 0) {
+				int node = stack[--stackSize];
+				if (!hitNode(node, ox, oy, oz, invDx, invDy, invDz, T)) {
+					continue;
+				}
+				int count = this.nodeCounts[node];
+				if (count > 0) {
+					int offset = this.nodeOffsets[node];
+					for (int i = offset; i < offset + count; i++) {
+						if (this.scene.isBlocking(this.primitives[i], ox, oy, oz, dx, dy, dz, T, faces, index)) {
+							return this.primitives[i];
+						}
+					}
+				} else {
+					stack[stackSize++] = this.nodeOffsets[node];
+					stack[stackSize++] = node + 1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isDirectionNegative(int axis, double invDx, double invDy, double invDz) {
+		return (axis == 0 ? invDx : (axis == 1 ? invDy : invDz)) < 0;
+	}
+
+	/**
+	 * Finds the closest primitive intersected by every ray of a packet, into the
+	 * hit values and primitives of the packet. A node is entered if any of the
+	 * rays hits it, and its primitives are tested with all the rays at once,
+	 * both by the kernel. The near child is chosen by the direction of the first ray,
+	 * which for coherent rays is the direction of all of them.
+	 *
+	 * @param packet
+	 *            - The rays to check for
+	 * @param kernel
+	 *            - The intersection tests to use
+	 * @param stack
+	 *            - A traversal stack created by createStack()
+	 */
+	public void getFirstIntersections(RayPacket packet, PacketKernel kernel, int[] stack) {
+		for (int p : this.unbounded) {
+			kernel.intersect(this.scene, p, packet);
+		}
+		if (this.nodesNum == 0 || packet.size == 0) {
+			return;
+		}
+
+		int stackSize = 0;
+		int node = 0;
+		while (true) {
+			if (kernel.hitBox(this.nodeBounds, node * 6, packet)) {
+				int count = this.nodeCounts[node];
+				if (count > 0) {
+					int offset = this.nodeOffsets[node];
+					for (int i = offset; i < offset + count; i++) {
+						kernel.intersect(this.scene, this.primitives[i], packet);
+					}
+				} else if (isDirectionNegative(this.nodeAxes[node], packet.invDx[0], packet.invDy[0],
+						packet.invDz[0])) {
+					stack[stackSize++] = node + 1;
+					node = this.nodeOffsets[node];
+					continue;
+				} else {
+					stack[stackSize++] = this.nodeOffsets[node];
+					node = node + 1;
+					continue;
+				}
+			}
+			if (stackSize == 0) {
+				break;
+			}
+			node = stack[--stackSize];
+		}
+	}
+
+	/**
+	 * The fraction of light a primitive lets through along a ray segment of
+	 * length T, 1.0 if it is not in the way.
+	 */
+	private double getTransparency(int p, double ox, double oy, double oz, double dx, double dy, double dz,
+			double T) {
+		if (this.scene.getType(p) == CompiledScene.MESH) {
+			// Every face in the way lets part of the light through
+			return Math.pow(this.scene.getTransparency(p), this.scene.getCrossingsNum(p, ox, oy, oz, dx, dy, dz, T));
+		}
+		if (isBlocking(p, ox, oy, oz, dx, dy, dz, T)) {
+			return this.scene.getTransparency(p);
+		}
+		return 1;
+	}
+
+	/**
+	 * Checks if a primitive is hit along a ray segment of length T.
+	 */
+	private boolean isBlocking(int p, double ox, double oy, double oz, double dx, double dy, double dz, double T) {
+		return this.scene.isBlocking(p, ox, oy, oz, dx, dy, dz, T);
+	}
+}
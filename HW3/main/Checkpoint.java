@@ -0,0 +1,293 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The tiles of a render done so far, kept in a file next to the output image,
+ * so a render which is stopped (it crashes, or its machine is taken back) can
+ * be resumed from them instead of starting over.
+ *
+ * The file is a header followed by a record for every tile done: its place,
+ * its samples and its pixels (and its pixels of the samples map, if one is
+ * made). The records are appended as the tiles are done and written to the
+ * disk every interval, so a crash loses the tiles of the last interval at
+ * most, and a record cut by a crash is dropped when resuming.
+ *
+ * The samples of a pixel are taken by the key of the pixel (and the shadow
+ * patterns by the keys of the lights), not by a running state, so there is no
+ * sampler state to keep: the tiles left render as they would have without
+ * the stop (except for the random sampler, which takes new random numbers).
+ * What has to match is the render, so the header holds a key of the scene
+ * file, the image and the options which change the pixels, and a checkpoint
+ * of another render is ignored.
+ */
+public class Checkpoint {
+	private static final int magic = 0x52544350; // "RTCP"
+	private static final int version = 2;
+
+	private final String fileName;
+	private final byte[] key;
+	private final PixelBuffer image;
+	private final PixelBuffer sampleMap;
+	private byte[] data = new byte[0]; // the pixels of a tile, read or written
+
+	private final ConcurrentLinkedQueue<Record> done = new ConcurrentLinkedQueue<Record>(); // not written yet
+	private boolean isRead; // whether the file is a checkpoint of this render, which read() read
+	private FileOutputStream file;
+	private DataOutputStream out;
+	private ScheduledExecutorService writer; // writes the records every interval
+	private Thread onExit; // writes the records when the JVM shuts down
+
+	/**
+	 * A tile which is done, with the samples its pixels took.
+	 */
+	private static class Record {
+		final Tile tile;
+		final long samples;
+
+		Record(Tile tile, long samples) {
+			this.tile = tile;
+			this.samples = samples;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            - The key of the render
+	 * @param image
+	 *            - The buffer of the whole image
+	 * @param sampleMap
+	 *            - The buffer of the samples map, or null
+	 */
+	public Checkpoint(String fileName, byte[] key, PixelBuffer image, PixelBuffer sampleMap) {
+		this.fileName = fileName;
+		this.key = key;
+		this.image = image;
+		this.sampleMap = sampleMap;
+	}
+
+	/**
+	 * @return The name of the checkpoint file of an output image
+	 */
+	public static String getFileName(String outputFileName) {
+		return outputFileName + ".checkpoint";
+	}
+
+	/**
+	 * Reads the tiles of the checkpoint file into the image, and drops a record
+	 * cut by a crash from the end of the file.
+	 *
+	 * @param tiles
+	 *            - The tiles of the image
+	 * @param samples
+	 *            - Receives the samples of the tiles read
+	 * @return The tiles which were done, none if there is no checkpoint file of
+	 *         this render
+	 */
+	public List<Tile> read(List<Tile> tiles, long[] samples) throws IOException {
+		List<Tile> done = new ArrayList<Tile>();
+		File file = new File(this.fileName);
+		if (!file.isFile()) {
+			return done;
+		}
+		Map<Long, Tile> tilesByPlace = new HashMap<Long, Tile>();
+		for (Tile tile : tiles) {
+			tilesByPlace.put(getPlace(tile.x, tile.y), tile);
+		}
+
+		long length = 0; // the length of the whole records
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != magic || in.readInt() != version) {
+				return done;
+			}
+			byte[] key = new byte[this.key.length];
+			in.readFully(key);
+			if (!Arrays.equals(key, this.key)) {
+				return done;
+			}
+			this.isRead = true;
+			length = 8 + key.length;
+			while (true) {
+				Tile tile = tilesByPlace.get(getPlace(in.readInt(), in.readInt()));
+				if (tile == null || in.readInt() != tile.width || in.readInt() != tile.height) {
+					break;
+				}
+				long tileSamples = in.readLong();
+				readTile(in, tile, this.image);
+				if (this.sampleMap != null) {
+					readTile(in, tile, this.sampleMap);
+				}
+				length += 24 + (long) tile.getPixelsNum() * 3 * (this.sampleMap != null ? 2 : 1);
+				done.add(tile);
+				samples[0] += tileSamples;
+			}
+		} catch (EOFException e) {
+			// The last record was cut
+		}
+		if (this.isRead) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(length);
+			}
+		}
+		return done;
+	}
+
+	private void readTile(DataInputStream in, Tile tile, PixelBuffer image) throws IOException {
+		byte[] data = getData(tile);
+		in.readFully(data, 0, tile.getPixelsNum() * 3);
+		image.setTile(tile, data);
+	}
+
+	/**
+	 * @return The buffer of the pixels of a tile, 3 bytes per pixel
+	 */
+	private byte[] getData(Tile tile) {
+		if (this.data.length < tile.getPixelsNum() * 3) {
+			this.data = new byte[tile.getPixelsNum() * 3];
+		}
+		return this.data;
+	}
+
+	private static long getPlace(int x, int y) {
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Opens the checkpoint file for the records of the tiles, after the tiles
+	 * read by read(), or as a new file if they were not read. The records are
+	 * written every interval, and when the JVM shuts down (by Ctrl+C, or when
+	 * the machine is taken back), until close().
+	 *
+	 * @param interval
+	 *            - The seconds between the writes
+	 */
+	public synchronized void open(double interval) throws IOException {
+		boolean isNew = !this.isRead;
+		this.file = new FileOutputStream(this.fileName, !isNew);
+		this.out = new DataOutputStream(new BufferedOutputStream(this.file, 1 << 16));
+		if (isNew) {
+			this.out.writeInt(magic);
+			this.out.writeInt(version);
+			this.out.write(this.key);
+			flush();
+		}
+
+		this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "checkpoint");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long millis = Math.max(1, (long) (interval * 1000));
+		this.writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (IOException e) {
+					System.out.println(String.format("\nWARNING: Could not write checkpoint %s: %s", fileName,
+							e.getMessage()));
+				}
+			}
+		}, millis, millis, TimeUnit.MILLISECONDS);
+		this.onExit = new Thread() {
+			@Override
+			public void run() {
+				try {
+					close();
+					System.out.println("\nStopped, the tiles done so far are in " + fileName);
+				} catch (IOException e) {
+					System.out.println("\nStopped, could not write checkpoint " + fileName);
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(this.onExit);
+	}
+
+	/**
+	 * Adds a tile which is done, written with the next flush().
+	 *
+	 * @param samples
+	 *            - The samples the pixels of the tile took
+	 */
+	public void add(Tile tile, long samples) {
+		this.done.add(new Record(tile, samples));
+	}
+
+	/**
+	 * Writes the records of the tiles added since the last flush, and waits
+	 * until they are on the disk.
+	 */
+	public synchronized void flush() throws IOException {
+		if (this.out == null) {
+			return;
+		}
+		Record record;
+		while ((record = this.done.poll()) != null) {
+			Tile tile = record.tile;
+			this.out.writeInt(tile.x);
+			this.out.writeInt(tile.y);
+			this.out.writeInt(tile.width);
+			this.out.writeInt(tile.height);
+			this.out.writeLong(record.samples);
+			writeTile(tile, this.image);
+			if (this.sampleMap != null) {
+				writeTile(tile, this.sampleMap);
+			}
+		}
+		this.out.flush();
+		this.file.getChannel().force(false);
+	}
+
+	private void writeTile(Tile tile, PixelBuffer image) throws IOException {
+		byte[] data = getData(tile);
+		image.getTile(tile, data);
+		this.out.write(data, 0, tile.getPixelsNum() * 3);
+	}
+
+	/**
+	 * Writes the tiles left and closes the file.
+	 */
+	public synchronized void close() throws IOException {
+		if (this.writer != null) {
+			this.writer.shutdownNow();
+			this.writer = null;
+			if (Thread.currentThread() != this.onExit) {
+				Runtime.getRuntime().removeShutdownHook(this.onExit);
+			}
+		}
+		if (this.out != null) {
+			flush();
+			this.out.close();
+			this.out = null;
+		}
+	}
+
+	/**
+	 * Deletes the checkpoint file, once the image it is of was saved.
+	 */
+	public void delete() {
+		new File(this.fileName).delete();
+	}
+}
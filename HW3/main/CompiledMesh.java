@@ -0,0 +1,457 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import geometry.BoundingBox;
+import geometry.Mesh;
+import geometry.MeshInstance;
+import utility.Vector;
+
+/**
+ * The hierarchy over the faces of a mesh, which the compiled scene queries
+ * for a ray that reaches the mesh. The faces are read straight from the
+ * buffers of the mesh, and the nodes straight from buffers of their own: for
+ * a mesh mapped from a MeshStore both are views of the mapping, so nothing
+ * of the size of the mesh is kept on the heap.
+ *
+ * Every node is a record of 64 bytes, so a node is read from a single cache
+ * line: its bounds (the minimum and maximum x, y and z, 6 doubles), its
+ * offset (the first face of a leaf, or the second child of an inner node,
+ * whose first child is the node after it), its number of faces (0 for an
+ * inner node) and the axis it is split on. The records are kept in segments
+ * like the bytes of a PixelBuffer, a record never crosses the end of a
+ * segment.
+ *
+ * A mesh placed more than once (by instances) has a single hierarchy, shared
+ * by the placements. The queries take the inverse transform of the placement,
+ * which moves the ray into the space of the mesh, or null for a mesh placed
+ * as it is. The direction is not normalized again, so the intersection
+ * locations are the same as in the scene.
+ */
+class CompiledMesh {
+	private static final int nodeBits = 6; // 64 bytes a node
+	private static final int segmentNodesBits = PixelBuffer.segmentBits - nodeBits;
+	private static final int segmentNodesMask = (1 << segmentNodesBits) - 1;
+
+	private final Mesh mesh;
+	private final IntBuffer faces; // ordered by leafs
+	private final ByteBuffer[] nodes;
+	private final int nodesNum;
+	private final int depth;
+
+	// The scene hit tests take no traversal stack, every thread keeps its own
+	private final ThreadLocal<Scratch> scratches;
+
+	/**
+	 * The scratch space of the queries of a thread. Nothing is kept in it from
+	 * one query to the next, the results are all returned.
+	 */
+	private static class Scratch {
+		final int[] stack;
+		final double[] local = new double[6]; // a ray moved into the space of the mesh
+
+		Scratch(int stackSize) {
+			this.stack = new int[stackSize];
+		}
+
+		/**
+		 * Moves a ray into the space of the mesh.
+		 *
+		 * @return The origin and direction of the moved ray
+		 */
+		double[] toLocal(double[] m, double ox, double oy, double oz, double dx, double dy, double dz) {
+			double[] r = this.local;
+			r[0] = m[0] * ox + m[1] * oy + m[2] * oz + m[3];
+			r[1] = m[4] * ox + m[5] * oy + m[6] * oz + m[7];
+			r[2] = m[8] * ox + m[9] * oy + m[10] * oz + m[11];
+			r[3] = m[0] * dx + m[1] * dy + m[2] * dz;
+			r[4] = m[4] * dx + m[5] * dy + m[6] * dz;
+			r[5] = m[8] * dx + m[9] * dy + m[10] * dz;
+			return r;
+		}
+	}
+
+	CompiledMesh(Mesh mesh) {
+		this.mesh = mesh;
+		BoundingBox[] boxes = new BoundingBox[mesh.getFacesNum()];
+		for (int i = 0; i < boxes.length; i++) {
+			boxes[i] = mesh.getFaceBoundingBox(i);
+		}
+		BVH bvh = new BVH(boxes);
+		this.nodesNum = bvh.getNodesNum();
+		this.depth = bvh.getDepth();
+		this.faces = IntBuffer.wrap(bvh.getPrimitives());
+		this.nodes = createNodes(this.nodesNum);
+		double[] bounds = bvh.getNodeBounds();
+		int[] offsets = bvh.getNodeOffsets(), counts = bvh.getNodeCounts(), axes = bvh.getNodeAxes();
+		for (int node = 0; node < this.nodesNum; node++) {
+			ByteBuffer segment = getSegment(node);
+			int b = getIndex(node);
+			for (int i = 0; i < 6; i++) {
+				segment.putDouble(b + i * Double.BYTES, bounds[node * 6 + i]);
+			}
+			segment.putInt(b + 48, offsets[node]);
+			segment.putInt(b + 52, counts[node]);
+			segment.putInt(b + 56, axes[node]);
+		}
+		this.scratches = createScratches(this.depth + 1);
+	}
+
+	/**
+	 * Uses a hierarchy built before, from the buffers getFaces() and getNodes()
+	 * returned, which are used as they are and not copied.
+	 *
+	 * @param depth
+	 *            - The depth of the hierarchy
+	 * @param nodes
+	 *            - The segments of the node records, of getSegmentSizes()
+	 */
+	CompiledMesh(Mesh mesh, int depth, IntBuffer faces, ByteBuffer[] nodes, int nodesNum) {
+		this.mesh = mesh;
+		this.nodesNum = nodesNum;
+		this.depth = depth;
+		this.faces = faces;
+		this.nodes = nodes;
+		this.scratches = createScratches(this.depth + 1);
+	}
+
+	/**
+	 * @return The sizes in bytes of the segments of the records of a hierarchy
+	 *         of nodesNum nodes
+	 */
+	static long[] getSegmentSizes(int nodesNum) {
+		long size = (long) nodesNum << nodeBits;
+		long[] sizes = new long[(int) ((size + PixelBuffer.segmentSize - 1) >> PixelBuffer.segmentBits)];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = Math.min(PixelBuffer.segmentSize, size - i * PixelBuffer.segmentSize);
+		}
+		return sizes;
+	}
+
+	/**
+	 * @return Segments for the records of the nodes on the heap, in the byte
+	 *         order of the mesh stores, so they are written as they are
+	 */
+	private static ByteBuffer[] createNodes(int nodesNum) {
+		long[] sizes = getSegmentSizes(nodesNum);
+		ByteBuffer[] nodes = new ByteBuffer[sizes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = ByteBuffer.allocate((int) sizes[i]).order(MeshStore.order);
+		}
+		return nodes;
+	}
+
+	private ByteBuffer getSegment(int node) {
+		return this.nodes[node >>> segmentNodesBits];
+	}
+
+	private static int getIndex(int node) {
+		return (node & segmentNodesMask) << nodeBits;
+	}
+
+	private int getNodeOffset(int node) {
+		return getSegment(node).getInt(getIndex(node) + 48);
+	}
+
+	private int getNodeCount(int node) {
+		return getSegment(node).getInt(getIndex(node) + 52);
+	}
+
+	private int getNodeAxis(int node) {
+		return getSegment(node).getInt(getIndex(node) + 56);
+	}
+
+	private static ThreadLocal<Scratch> createScratches(final int stackSize) {
+		return new ThreadLocal<Scratch>() {
+			@Override
+			protected Scratch initialValue() {
+				return new Scratch(stackSize);
+			}
+		};
+	}
+
+	public Mesh getMesh() {
+		return mesh;
+	}
+
+	int getNodesNum() {
+		return nodesNum;
+	}
+
+	int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return The faces, ordered by the leafs which hold them
+	 */
+	IntBuffer getFaces() {
+		return faces.duplicate();
+	}
+
+	/**
+	 * @return The segments of the records of the nodes
+	 */
+	ByteBuffer[] getNodes() {
+		ByteBuffer[] nodes = new ByteBuffer[this.nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = this.nodes[i].duplicate().order(this.nodes[i].order());
+		}
+		return nodes;
+	}
+
+	/**
+	 * Finds the closest face hit by the ray before tMax.
+	 *
+	 * @param inverse
+	 *            - The inverse transform of the placement, or null
+	 * @param tMax
+	 *            - The distance to search up to
+	 * @return The face, or -1 if none
+	 */
+	public int getNearestFace(double[] inverse, double ox, double oy, double oz, double dx, double dy, double dz,
+			double tMax) {
+		Scratch scratch = this.scratches.get();
+		if (inverse != null) {
+			double[] r = scratch.toLocal(inverse, ox, oy, oz, dx, dy, dz);
+			return getNearestFace(r[0], r[1], r[2], r[3], r[4], r[5], tMax, scratch.stack);
+		}
+		return getNearestFace(ox, oy, oz, dx, dy, dz, tMax, scratch.stack);
+	}
+
+	/**
+	 * Intersects the ray with a face, same contract as Shape.hit.
+	 *
+	 * @return The intersection location, or 0.0 if no intersection
+	 */
+	public double hitFace(double[] inverse, int face, double ox, double oy, double oz, double dx, double dy,
+			double dz) {
+		if (inverse != null) {
+			double[] r = this.scratches.get().toLocal(inverse, ox, oy, oz, dx, dy, dz);
+			return this.mesh.hitFace(face, r[0], r[1], r[2], r[3], r[4], r[5]);
+		}
+		return this.mesh.hitFace(face, ox, oy, oz, dx, dy, dz);
+	}
+
+	/**
+	 * Counts the faces crossed by a ray segment of length T (ignoring hits too
+	 * close to both ends of it), for the light passing through a transparent
+	 * mesh.
+	 */
+	public int getCrossingsNum(double[] inverse, double ox, double oy, double oz, double dx, double dy, double dz,
+			double T) {
+		if (this.nodesNum == 0) {
+			return 0;
+		}
+		Scratch scratch = this.scratches.get();
+		if (inverse != null) {
+			double[] r = scratch.toLocal(inverse, ox, oy, oz, dx, dy, dz);
+			return getCrossings(r[0], r[1], r[2], r[3], r[4], r[5], T, false, scratch.stack);
+		}
+		return getCrossings(ox, oy, oz, dx, dy, dz, T, false, scratch.stack);
+	}
+
+	/**
+	 * Finds a face blocking a ray segment of length T, stopping at the first
+	 * one found.
+	 *
+	 * @return The face, or -1 if none
+	 */
+	public int getBlockingFace(double[] inverse, double ox, double oy, double oz, double dx, double dy, double dz,
+			double T) {
+		if (this.nodesNum == 0) {
+			return -1;
+		}
+		Scratch scratch = this.scratches.get();
+		if (inverse != null) {
+			double[] r = scratch.toLocal(inverse, ox, oy, oz, dx, dy, dz);
+			return getCrossings(r[0], r[1], r[2], r[3], r[4], r[5], T, true, scratch.stack);
+		}
+		return getCrossings(ox, oy, oz, dx, dy, dz, T, true, scratch.stack);
+	}
+
+	/**
+	 * Same as getBlockingFace(), testing a single face.
+	 */
+	public boolean isBlocking(double[] inverse, int face, double ox, double oy, double oz, double dx, double dy,
+			double dz, double T) {
+		double t = hitFace(inverse, face, ox, oy, oz, dx, dy, dz);
+		return t > RayTracer.epsilon && t < T - RayTracer.epsilon;
+	}
+
+	/**
+	 * The traversal of getCrossingsNum() and getBlockingFace(), in the space
+	 * of the mesh.
+	 *
+	 * @param isAnyHit
+	 *            - Whether to stop at the first face crossed
+	 * @return The first face crossed (or -1) if isAnyHit, otherwise the
+	 *         number of faces crossed
+	 */
+	private int getCrossings(double ox, double oy, double oz, double dx, double dy, double dz, double T,
+			boolean isAnyHit, int[] stack) {
+		double invDx = 1 / dx, invDy = 1 / dy, invDz = 1 / dz;
+		int crossingsNum = 0;
+
+		int stackSize = 0;
+		stack[stackSize++] = 0;
+		while (stackSize > 0) {
+			int node = stack[--stackSize];
+			if (!hitNode(node, ox, oy, oz, invDx, invDy, invDz, T)) {
+				continue;
+			}
+			int count = getNodeCount(node);
+			if (count > 0) {
+				int offset = getNodeOffset(node);
+				for (int i = offset; i < offset + count; i++) {
+					double t = this.mesh.hitFace(this.faces.get(i), ox, oy, oz, dx, dy, dz);
+					if (t > RayTracer.epsilon && t < T - RayTracer.epsilon) {
+						if (isAnyHit) {
+							return this.faces.get(i);
+						}
+						crossingsNum++;
+					}
+				}
+			} else {
+				stack[stackSize++] = getNodeOffset(node);
+				stack[stackSize++] = node + 1;
+			}
+		}
+		return isAnyHit ? -1 : crossingsNum;
+	}
+
+	/**
+	 * Gets the normal of a face, moved into the scene by the placement.
+	 */
+	public Vector getNormal(double[] inverse, int face, Vector out) {
+		this.mesh.getFaceNormal(face, out);
+		return inverse != null ? MeshInstance.transformNormal(inverse, out) : out;
+	}
+
+	/**
+	 * Gets the normal of the face a point is on, moved into the scene by the
+	 * placement.
+	 *
+	 * @param point
+	 *            - A point on the surface of the mesh, in the scene
+	 */
+	public Vector getNormalAt(double[] inverse, Vector point, Vector out) {
+		double x = point.getX(), y = point.getY(), z = point.getZ();
+		if (inverse != null) {
+			double[] m = inverse;
+			double lx = m[0] * x + m[1] * y + m[2] * z + m[3];
+			double ly = m[4] * x + m[5] * y + m[6] * z + m[7];
+			double lz = m[8] * x + m[9] * y + m[10] * z + m[11];
+			x = lx;
+			y = ly;
+			z = lz;
+		}
+		int face = getFaceAt(x, y, z, this.scratches.get().stack);
+		return face >= 0 ? getNormal(inverse, face, out) : out.set(0, 0, 0);
+	}
+
+	/**
+	 * The same search as Mesh.getFaceAt, over the hierarchy: the nodes farther
+	 * from the point than the closest face found so far are skipped.
+	 *
+	 * @return The closest face, or -1 if none
+	 */
+	private int getFaceAt(double x, double y, double z, int[] stack) {
+		if (this.nodesNum == 0) {
+			return -1;
+		}
+		double nearest = Double.POSITIVE_INFINITY;
+		int nearestFace = -1;
+
+		int stackSize = 0;
+		stack[stackSize++] = 0;
+		while (stackSize > 0) {
+			int node = stack[--stackSize];
+			if (getNodeDistanceSquared(node, x, y, z) > nearest) {
+				continue;
+			}
+			int count = getNodeCount(node);
+			if (count > 0) {
+				int offset = getNodeOffset(node);
+				for (int i = offset; i < offset + count; i++) {
+					double distance = this.mesh.getFaceDistanceSquared(this.faces.get(i), x, y, z);
+					if (distance < nearest) {
+						nearest = distance;
+						nearestFace = this.faces.get(i);
+					}
+				}
+			} else {
+				stack[stackSize++] = getNodeOffset(node);
+				stack[stackSize++] = node + 1;
+			}
+		}
+		return nearestFace;
+	}
+
+	private double getNodeDistanceSquared(int node, double x, double y, double z) {
+		ByteBuffer s = getSegment(node);
+		int b = getIndex(node);
+		double dx = Math.max(0, Math.max(s.getDouble(b) - x, x - s.getDouble(b + 24)));
+		double dy = Math.max(0, Math.max(s.getDouble(b + 8) - y, y - s.getDouble(b + 32)));
+		double dz = Math.max(0, Math.max(s.getDouble(b + 16) - z, z - s.getDouble(b + 40)));
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * The closest-hit traversal of BVH.getFirstIntersection, over the faces.
+	 *
+	 * @param tMax
+	 *            - The distance to search up to
+	 * @return The closest face, or -1 if none
+	 */
+	private int getNearestFace(double ox, double oy, double oz, double dx, double dy, double dz, double tMax,
+			int[] stack) {
+		if (this.nodesNum == 0) {
+			return -1;
+		}
+		double invDx = 1 / dx, invDy = 1 / dy, invDz = 1 / dz;
+		double nearestHitValue = tMax;
+		int nearestFace = -1;
+
+		int stackSize = 0;
+		int node = 0;
+		while (true) {
+			if (hitNode(node, ox, oy, oz, invDx, invDy, invDz, nearestHitValue)) {
+				int count = getNodeCount(node);
+				if (count > 0) {
+					int offset = getNodeOffset(node);
+					for (int i = offset; i < offset + count; i++) {
+						int face = this.faces.get(i);
+						double t = this.mesh.hitFace(face, ox, oy, oz, dx, dy, dz);
+						if (t >= RayTracer.epsilon && t < nearestHitValue) {
+							nearestHitValue = t;
+							nearestFace = face;
+						}
+					}
+				} else if ((getNodeAxis(node) == 0 ? invDx : (getNodeAxis(node) == 1 ? invDy : invDz)) < 0) {
+					stack[stackSize++] = node + 1;
+					node = getNodeOffset(node);
+					continue;
+				} else {
+					stack[stackSize++] = getNodeOffset(node);
+					node = node + 1;
+					continue;
+				}
+			}
+			if (stackSize == 0) {
+				break;
+			}
+			node = stack[--stackSize];
+		}
+		return nearestFace;
+	}
+
+	private boolean hitNode(int node, double ox, double oy, double oz, double invDx, double invDy, double invDz,
+			double tMax) {
+		ByteBuffer s = getSegment(node);
+		int b = getIndex(node);
+		return BoundingBox.hit(s.getDouble(b), s.getDouble(b + 8), s.getDouble(b + 16), s.getDouble(b + 24),
+				s.getDouble(b + 32), s.getDouble(b + 40), ox, oy, oz, invDx, invDy, invDz, tMax);
+	}
+}
@@ -0,0 +1,413 @@
+package main;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import geometry.BoundingBox;
+import geometry.Mesh;
+import geometry.MeshInstance;
+import geometry.Plane;
+import geometry.Shape;
+import geometry.Sphere;
+import geometry.Triangle;
+import scene.Material;
+import utility.Vector;
+
+/**
+ * A flat representation of the scene geometry used for intersection tests.
+ * Every shape of the world becomes a primitive (with the same index as in the
+ * shapes list), and the data of each primitive type is packed into its own
+ * array with everything that does not depend on the ray calculated once:
+ * - Spheres: center and radius^2 (4 doubles).
+ * - Planes: normalized normal and offset (4 doubles).
+ * - Triangles: first vertex, the two edges from it and the normal (12 doubles).
+ * - Meshes: the hierarchy over their faces (a CompiledMesh), and for the
+ * instances of a mesh their placement. The instances of a mesh share its
+ * hierarchy.
+ * Intersection tests switch on the primitive type and run a kernel over these
+ * arrays, instead of a virtual Shape.hit call on an object graph.
+ */
+public class CompiledScene {
+	public static final byte SPHERE = 0;
+	public static final byte PLANE = 1;
+	public static final byte TRIANGLE = 2;
+	public static final byte MESH = 3;
+
+	private static final int sphereStride = 4;
+	private static final int planeStride = 4;
+	private static final int triangleStride = 12;
+
+	private Shape[] shapes; // the original shape of every primitive
+	private byte[] types; // the type of every primitive
+	private int[] offsets; // the offset of every primitive in the array of its type
+	private float[] transparencies; // the transparency of the material of every primitive
+
+	private double[] spheres;
+	private double[] planes;
+	private double[] triangles;
+	private CompiledMesh[] meshes;
+	private MeshInstance[] instances; // the placement of every mesh, null for a mesh placed as it is
+
+	/**
+	 * @param stores
+	 *            - The stores the meshes were mapped from, to read the
+	 *            hierarchies over their faces from instead of building them
+	 */
+	public CompiledScene(List<Shape> sceneShapes, List<Material> materials, Map<Mesh, MeshStore> stores) {
+		int n = sceneShapes.size();
+		this.shapes = sceneShapes.toArray(new Shape[n]);
+		this.types = new byte[n];
+		this.offsets = new int[n];
+		this.transparencies = new float[n];
+
+		int spheresNum = 0, planesNum = 0, trianglesNum = 0, meshesNum = 0;
+		for (Shape s : this.shapes) {
+			if (s instanceof Sphere) {
+				spheresNum++;
+			} else if (s instanceof Plane) {
+				planesNum++;
+			} else if (s instanceof Triangle) {
+				trianglesNum++;
+			} else if (s instanceof Mesh || s instanceof MeshInstance) {
+				meshesNum++;
+			} else {
+				throw new IllegalArgumentException("Can not compile shape " + s.getClass().getName());
+			}
+		}
+		this.spheres = new double[spheresNum * sphereStride];
+		this.planes = new double[planesNum * planeStride];
+		this.triangles = new double[trianglesNum * triangleStride];
+		this.meshes = new CompiledMesh[meshesNum];
+		this.instances = new MeshInstance[meshesNum];
+		Map<Mesh, CompiledMesh> compiledMeshes = new IdentityHashMap<Mesh, CompiledMesh>();
+
+		spheresNum = planesNum = trianglesNum = meshesNum = 0;
+		for (int i = 0; i < n; i++) {
+			Shape s = this.shapes[i];
+			this.transparencies[i] = materials.get(s.getMaterialIndex()).getTranparency();
+
+			if (s instanceof Sphere) {
+				Sphere sphere = (Sphere) s;
+				int o = spheresNum++ * sphereStride;
+				this.types[i] = SPHERE;
+				this.offsets[i] = o;
+				put(this.spheres, o, sphere.getCenter());
+				this.spheres[o + 3] = sphere.getRadius() * sphere.getRadius();
+			} else if (s instanceof Plane) {
+				Plane plane = (Plane) s;
+				int o = planesNum++ * planeStride;
+				this.types[i] = PLANE;
+				this.offsets[i] = o;
+				put(this.planes, o, plane.getNormal());
+				this.planes[o + 3] = plane.getOffset();
+			} else if (s instanceof Mesh || s instanceof MeshInstance) {
+				MeshInstance instance = s instanceof MeshInstance ? (MeshInstance) s : null;
+				Mesh mesh = instance != null ? instance.getMesh() : (Mesh) s;
+				CompiledMesh compiled = compiledMeshes.get(mesh);
+				if (compiled == null) {
+					MeshStore store = stores.get(mesh);
+					compiled = store != null ? store.compile() : new CompiledMesh(mesh);
+					compiledMeshes.put(mesh, compiled);
+				}
+				this.types[i] = MESH;
+				this.offsets[i] = meshesNum;
+				this.instances[meshesNum] = instance;
+				this.meshes[meshesNum++] = compiled;
+			} else {
+				Triangle triangle = (Triangle) s;
+				int o = trianglesNum++ * triangleStride;
+				this.types[i] = TRIANGLE;
+				this.offsets[i] = o;
+				put(this.triangles, o, triangle.getV1());
+				put(this.triangles, o + 3, new Vector(triangle.getV2()).sub(triangle.getV1()));
+				put(this.triangles, o + 6, new Vector(triangle.getV3()).sub(triangle.getV1()));
+				put(this.triangles, o + 9, triangle.getNormal());
+			}
+		}
+	}
+
+	private static void put(double[] data, int offset, Vector v) {
+		data[offset] = v.getX();
+		data[offset + 1] = v.getY();
+		data[offset + 2] = v.getZ();
+	}
+
+	public int getPrimitivesNum() {
+		return shapes.length;
+	}
+
+	public Shape getShape(int primitive) {
+		return shapes[primitive];
+	}
+
+	public byte getType(int primitive) {
+		return types[primitive];
+	}
+
+	public float getTransparency(int primitive) {
+		return transparencies[primitive];
+	}
+
+	// The packed data, for the packet kernels
+	int getOffset(int primitive) {
+		return offsets[primitive];
+	}
+
+	double[] getSpheres() {
+		return spheres;
+	}
+
+	double[] getPlanes() {
+		return planes;
+	}
+
+	double[] getTriangles() {
+		return triangles;
+	}
+
+	/**
+	 * @return The bounding box of the primitive, or null if it is unbounded
+	 */
+	public BoundingBox getBoundingBox(int primitive) {
+		return shapes[primitive].getBoundingBox();
+	}
+
+	/**
+	 * Checks if a ray intersects a primitive. Same contract as Shape.hit, the ray
+	 * is given by its origin and normalized direction.
+	 *
+	 * @return The intersection location, or 0.0 if no intersection
+	 */
+	public double hit(int primitive, double ox, double oy, double oz, double dx, double dy, double dz) {
+		switch (types[primitive]) {
+		case SPHERE:
+			return hitSphere(offsets[primitive], ox, oy, oz, dx, dy, dz);
+		case PLANE:
+			return hitPlane(offsets[primitive], ox, oy, oz, dx, dy, dz);
+		case MESH:
+			return hitMesh(primitive, getNearestFace(primitive, ox, oy, oz, dx, dy, dz, Double.MAX_VALUE), ox, oy,
+					oz, dx, dy, dz);
+		default:
+			return hitTriangle(offsets[primitive], ox, oy, oz, dx, dy, dz);
+		}
+	}
+
+	/**
+	 * Same as hit(primitive, ox, oy, oz, dx, dy, dz), for the closest-hit
+	 * searches: a mesh primitive is searched only up to tMax, the closest hit
+	 * found so far, and the face of a hit on it is set in the intersection.
+	 *
+	 * @param result
+	 *            - Receives the face of a hit on a mesh primitive before tMax,
+	 *            untouched otherwise
+	 */
+	public double hit(int primitive, double ox, double oy, double oz, double dx, double dy, double dz, double tMax,
+			Intersection result) {
+		if (types[primitive] != MESH) {
+			return hit(primitive, ox, oy, oz, dx, dy, dz);
+		}
+		int face = getNearestFace(primitive, ox, oy, oz, dx, dy, dz, tMax);
+		if (face >= 0) {
+			result.face = face;
+		}
+		return hitMesh(primitive, face, ox, oy, oz, dx, dy, dz);
+	}
+
+	/**
+	 * Same as hit(primitive, ox, oy, oz, dx, dy, dz, tMax, result), setting the
+	 * face of a hit on a mesh primitive in faces[index].
+	 */
+	public double hit(int primitive, double ox, double oy, double oz, double dx, double dy, double dz, double tMax,
+			int[] faces, int index) {
+		if (types[primitive] != MESH) {
+			return hit(primitive, ox, oy, oz, dx, dy, dz);
+		}
+		int face = getNearestFace(primitive, ox, oy, oz, dx, dy, dz, tMax);
+		if (face >= 0) {
+			faces[index] = face;
+		}
+		return hitMesh(primitive, face, ox, oy, oz, dx, dy, dz);
+	}
+
+	private int getNearestFace(int primitive, double ox, double oy, double oz, double dx, double dy, double dz,
+			double tMax) {
+		return meshes[offsets[primitive]].getNearestFace(getInverse(primitive), ox, oy, oz, dx, dy, dz, tMax);
+	}
+
+	/**
+	 * @return The intersection location on a face of a mesh primitive, 0.0 for
+	 *         no face
+	 */
+	private double hitMesh(int primitive, int face, double ox, double oy, double oz, double dx, double dy,
+			double dz) {
+		return face >= 0 ? meshes[offsets[primitive]].hitFace(getInverse(primitive), face, ox, oy, oz, dx, dy, dz)
+				: 0;
+	}
+
+	public double hit(int primitive, Ray ray) {
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
+		return hit(primitive, o.getX(), o.getY(), o.getZ(), d.getX(), d.getY(), d.getZ());
+	}
+
+	/**
+	 * Sets the shape of an intersection, by its primitive. A hit on a mesh is
+	 * set to the face that was hit, which the search set in the intersection.
+	 */
+	public void setShape(Intersection hit) {
+		if (types[hit.primitive] != MESH) {
+			hit.shape = shapes[hit.primitive];
+			hit.face = -1;
+			return;
+		}
+		int o = offsets[hit.primitive];
+		hit.shape = hit.getMeshFace().set(meshes[o].getMesh(), instances[o], hit.face);
+	}
+
+	/**
+	 * @return The inverse transform of a mesh primitive, or null if it is not
+	 *         an instance
+	 */
+	private double[] getInverse(int primitive) {
+		MeshInstance instance = instances[offsets[primitive]];
+		return instance != null ? instance.getInverse() : null;
+	}
+
+	/**
+	 * Counts how many times a ray segment of length T passes through the
+	 * surface of a primitive: the faces it crosses for a mesh, and at most one
+	 * for the other primitives.
+	 */
+	public int getCrossingsNum(int primitive, double ox, double oy, double oz, double dx, double dy, double dz,
+			double T) {
+		if (types[primitive] == MESH) {
+			return meshes[offsets[primitive]].getCrossingsNum(getInverse(primitive), ox, oy, oz, dx, dy, dz, T);
+		}
+		double t = hit(primitive, ox, oy, oz, dx, dy, dz);
+		return t > RayTracer.epsilon && t < T - RayTracer.epsilon ? 1 : 0;
+	}
+
+	/**
+	 * Checks if a primitive blocks a ray segment of length T (ignoring hits too
+	 * close to both ends of it).
+	 */
+	public boolean isBlocking(int primitive, Ray ray, double T) {
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
+		return isBlocking(primitive, o.getX(), o.getY(), o.getZ(), d.getX(), d.getY(), d.getZ(), T);
+	}
+
+	/**
+	 * Same as isBlocking(primitive, ray, T), testing a single face of a mesh.
+	 *
+	 * @param face
+	 *            - The face of a mesh primitive, or -1 for the whole primitive
+	 */
+	public boolean isBlocking(int primitive, int face, Ray ray, double T) {
+		if (face < 0) {
+			return isBlocking(primitive, ray, T);
+		}
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
+		return meshes[offsets[primitive]].isBlocking(getInverse(primitive), face, o.getX(), o.getY(), o.getZ(),
+				d.getX(), d.getY(), d.getZ(), T);
+	}
+
+	/**
+	 * Same as isBlocking(primitive, ray, T), for a mesh it stops at the first
+	 * face found in the way.
+	 */
+	public boolean isBlocking(int primitive, double ox, double oy, double oz, double dx, double dy, double dz,
+			double T) {
+		return isBlocking(primitive, ox, oy, oz, dx, dy, dz, T, null, 0);
+	}
+
+	/**
+	 * Same as isBlocking(primitive, ox, oy, oz, dx, dy, dz, T), also telling
+	 * the face in the way, for caching the occluders of shadow rays.
+	 *
+	 * @param faces
+	 *            - Receives the face in the way of a blocking mesh primitive in
+	 *            faces[index], or -1 for a blocking primitive of another type
+	 *            (untouched if the primitive is not blocking, or if null)
+	 */
+	public boolean isBlocking(int primitive, double ox, double oy, double oz, double dx, double dy, double dz,
+			double T, int[] faces, int index) {
+		int face = -1;
+		if (types[primitive] == MESH) {
+			face = meshes[offsets[primitive]].getBlockingFace(getInverse(primitive), ox, oy, oz, dx, dy, dz, T);
+			if (face < 0) {
+				return false;
+			}
+		} else {
+			double t = hit(primitive, ox, oy, oz, dx, dy, dz);
+			if (t <= RayTracer.epsilon || t >= T - RayTracer.epsilon) {
+				return false;
+			}
+		}
+		if (faces != null) {
+			faces[index] = face;
+		}
+		return true;
+	}
+
+	private double hitSphere(int o, double ox, double oy, double oz, double dx, double dy, double dz) {
+		double[] s = this.spheres;
+		double EOx = s[o] - ox;
+		double EOy = s[o + 1] - oy;
+		double EOz = s[o + 2] - oz;
+		double v = EOx * dx + EOy * dy + EOz * dz;
+		double disc = s[o + 3] - ((EOx * EOx + EOy * EOy + EOz * EOz) - v * v);
+		if (disc < 0) {
+			return 0;
+		}
+		return v - Math.sqrt(disc);
+	}
+
+	private double hitPlane(int o, double ox, double oy, double oz, double dx, double dy, double dz) {
+		double[] p = this.planes;
+		double dn = dx * p[o] + dy * p[o + 1] + dz * p[o + 2];
+		if (dn == 0) {
+			return 0;
+		}
+		return (p[o + 3] - (ox * p[o] + oy * p[o + 1] + oz * p[o + 2])) / dn;
+	}
+
+	private double hitTriangle(int o, double ox, double oy, double oz, double dx, double dy, double dz) {
+		// Moller-Trumbore, using the edges calculated at compile time
+		double[] t = this.triangles;
+		return Triangle.intersect(t[o], t[o + 1], t[o + 2], t[o + 3], t[o + 4], t[o + 5], t[o + 6], t[o + 7],
+				t[o + 8], ox, oy, oz, dx, dy, dz);
+	}
+
+	/**
+	 * Gets the normal of a primitive at a point on its surface, from the
+	 * compiled data.
+	 */
+	public Vector getNormalAt(int primitive, Vector point, Vector out) {
+		int o = offsets[primitive];
+		switch (types[primitive]) {
+		case SPHERE:
+			return out.set(point.getX() - spheres[o], point.getY() - spheres[o + 1], point.getZ() - spheres[o + 2])
+					.normalize();
+		case PLANE:
+			return out.set(planes[o], planes[o + 1], planes[o + 2]);
+		case MESH:
+			return meshes[o].getNormalAt(getInverse(primitive), point, out);
+		default:
+			return out.set(triangles[o + 9], triangles[o + 10], triangles[o + 11]);
+		}
+	}
+
+	/**
+	 * Same as getNormalAt(primitive, point, out), for the primitive and point of
+	 * an intersection, which also tells the face of a mesh.
+	 */
+	public Vector getNormalAt(Intersection hit, Vector out) {
+		if (types[hit.primitive] == MESH) {
+			return meshes[offsets[hit.primitive]].getNormal(getInverse(hit.primitive), hit.face, out);
+		}
+		return getNormalAt(hit.primitive, hit.point, out);
+	}
+}
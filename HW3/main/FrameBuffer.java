@@ -0,0 +1,170 @@
+package main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import utility.Color;
+
+/**
+ * The sums of the samples of every pixel of the image, in floats, with the
+ * number of samples of every pixel. The samples of a pixel are added in
+ * passes, and the image can be taken from it at any time, as the average of
+ * the samples taken so far.
+ *
+ * Every pixel takes a record of 16 bytes, its 3 sums and its number of
+ * samples. The records are addressed by longs and kept in segments like the
+ * bytes of a PixelBuffer, on the heap or mapped from a file, and a record
+ * never crosses the end of a segment.
+ *
+ * The tiles are added whole under the lock of the buffer, and the image is
+ * taken a row at a time under it, so an image taken while the render threads
+ * add to it never has a pixel half added, and the render threads wait for a
+ * row at most.
+ */
+public class FrameBuffer implements Closeable {
+	private static final int recordBits = 4;
+
+	private final int width, height;
+	private final ByteBuffer[] segments;
+	private final File file; // the mapped file, null on the heap
+
+	private FrameBuffer(int width, int height, ByteBuffer[] segments, File file) {
+		this.width = width;
+		this.height = height;
+		this.segments = segments;
+		this.file = file;
+		for (ByteBuffer segment : segments) {
+			segment.order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * Creates a buffer of pixels with no samples.
+	 *
+	 * @param fileName
+	 *            - The file to map the buffer from if it is larger than
+	 *            maxHeapSize
+	 * @param maxHeapSize
+	 *            - The size in bytes of the largest buffer kept on the heap
+	 */
+	public static FrameBuffer create(int width, int height, String fileName, long maxHeapSize) throws IOException {
+		long size = (long) width * height << recordBits;
+		File file = size <= maxHeapSize ? null : new File(fileName);
+		return new FrameBuffer(width, height, PixelBuffer.createSegments(size, file), file);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return Whether the buffer is mapped from a file
+	 */
+	public boolean isMapped() {
+		return file != null;
+	}
+
+	private ByteBuffer getSegment(long pixel) {
+		return this.segments[(int) ((pixel << recordBits) >> PixelBuffer.segmentBits)];
+	}
+
+	private static int getIndex(long pixel) {
+		return (int) ((pixel << recordBits) & (PixelBuffer.segmentSize - 1));
+	}
+
+	/**
+	 * Copies the sums of the pixels of a tile, row by row, to add the samples of
+	 * the next pass to them.
+	 *
+	 * @param sums
+	 *            - The sums of the tile, 3 floats per pixel
+	 */
+	public synchronized void getTile(Tile tile, float[] sums) {
+		int i = 0;
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			long first = (long) y * this.width + tile.x;
+			for (long pixel = first; pixel < first + tile.width; pixel++) {
+				ByteBuffer segment = getSegment(pixel);
+				int index = getIndex(pixel);
+				sums[i++] = segment.getFloat(index);
+				sums[i++] = segment.getFloat(index + 4);
+				sums[i++] = segment.getFloat(index + 8);
+			}
+		}
+	}
+
+	/**
+	 * Sets the sums of the pixels of a tile, after samples were added to the
+	 * sums of getTile().
+	 *
+	 * @param samplesNum
+	 *            - The number of samples added to every pixel
+	 */
+	public synchronized void setTile(Tile tile, float[] sums, int samplesNum) {
+		int i = 0;
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			long first = (long) y * this.width + tile.x;
+			for (long pixel = first; pixel < first + tile.width; pixel++) {
+				ByteBuffer segment = getSegment(pixel);
+				int index = getIndex(pixel);
+				segment.putFloat(index, sums[i++]);
+				segment.putFloat(index + 4, sums[i++]);
+				segment.putFloat(index + 8, sums[i++]);
+				segment.putInt(index + 12, segment.getInt(index + 12) + samplesNum);
+			}
+		}
+	}
+
+	public synchronized int getSamplesNum(int x, int y) {
+		long pixel = (long) y * this.width + x;
+		return getSegment(pixel).getInt(getIndex(pixel) + 12);
+	}
+
+	/**
+	 * Writes the average of the samples of every pixel as RGB bytes. Pixels
+	 * with no samples yet are black. The buffer is locked a row at a time, so
+	 * the render threads go on adding tiles between the rows.
+	 *
+	 * @param image
+	 *            - The buffer of the whole image
+	 */
+	public void getRGB(PixelBuffer image) {
+		Color clr = new Color(0, 0, 0);
+		byte[] row = new byte[this.width * 3];
+		for (int y = 0; y < this.height; y++) {
+			synchronized (this) {
+				for (int x = 0; x < this.width; x++) {
+					long pixel = (long) y * this.width + x;
+					ByteBuffer segment = getSegment(pixel);
+					int index = getIndex(pixel);
+					int samplesNum = segment.getInt(index + 12);
+					if (samplesNum == 0) {
+						clr.set(0, 0, 0);
+					} else {
+						clr.set(segment.getFloat(index), segment.getFloat(index + 4), segment.getFloat(index + 8))
+								.div(samplesNum);
+					}
+					clr.getRGB(row, x * 3);
+				}
+			}
+			image.setRow(0, y, row, 0, row.length);
+		}
+	}
+
+	/**
+	 * Deletes the mapped file. The buffer can not be used after it is closed.
+	 */
+	@Override
+	public void close() {
+		if (this.file != null) {
+			this.file.delete();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package main;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Saves an image in png format while it is rendered: the rows are compressed
+ * and written as soon as the tiles covering them are done, on a thread of its
+ * own, so the saving overlaps the render instead of coming after it. The
+ * image is written aside and moved over the output file once it is complete,
+ * so the image of a render which stopped is never taken for a complete one.
+ */
+public class ImageStream {
+	private final PixelBuffer image;
+	private final File file;
+	private final File temp;
+	private final int level, filter, threadsNum;
+	private final int[] donePixels; // the pixels done of every row
+	private int doneRows; // the rows done from the top, under the lock of the stream
+	private Thread writer;
+	private IOException error; // the error of the writer
+
+	/**
+	 * @param level
+	 *            - The compression level, 0 to 9
+	 * @param filter
+	 *            - The filter type of the rows, or PngWriter.adaptiveFilter
+	 * @param threadsNum
+	 *            - The number of threads compressing the rows
+	 */
+	public ImageStream(PixelBuffer image, String fileName, int level, int filter, int threadsNum) {
+		this.image = image;
+		this.file = new File(fileName);
+		this.temp = new File(fileName + ".tmp");
+		this.level = level;
+		this.filter = filter;
+		this.threadsNum = threadsNum;
+		this.donePixels = new int[image.getHeight()];
+	}
+
+	/**
+	 * Starts writing the rows, as they are done.
+	 */
+	public void start() {
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeRows();
+			}
+		}, "png-stream");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Counts the pixels of a tile as done, once they are in the image.
+	 */
+	public synchronized void tileDone(Tile tile) {
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			this.donePixels[y] += tile.width;
+		}
+		int doneRows = this.doneRows;
+		while (this.doneRows < this.donePixels.length
+				&& this.donePixels[this.doneRows] == this.image.getWidth()) {
+			this.doneRows++;
+		}
+		if (this.doneRows > doneRows) {
+			notifyAll();
+		}
+	}
+
+	private void writeRows() {
+		byte[] row = new byte[this.image.getWidth() * 3];
+		try (PngWriter png = new PngWriter(new FileOutputStream(this.temp), this.image.getWidth(),
+				this.image.getHeight(), this.level, this.filter, this.threadsNum)) {
+			for (int y = 0; y < this.image.getHeight(); y++) {
+				synchronized (this) {
+					while (this.doneRows <= y) {
+						wait();
+					}
+				}
+				this.image.getRow(0, y, row, 0, row.length);
+				png.writeRow(row);
+			}
+		} catch (IOException e) {
+			this.error = e;
+		} catch (InterruptedException e) {
+			this.error = new InterruptedIOException("The image was not complete.");
+		}
+	}
+
+	/**
+	 * Waits until all the rows are written, once all the tiles are done, and
+	 * moves the image over the output file.
+	 */
+	public void finish() throws IOException {
+		try {
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			abort();
+			throw new InterruptedIOException("Interrupted while the image was saved.");
+		}
+		if (this.error != null) {
+			this.temp.delete();
+			throw this.error;
+		}
+		Files.move(this.temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Stops writing the rows, for a render which failed, and deletes what was
+	 * written.
+	 */
+	public void abort() {
+		this.writer.interrupt();
+		try {
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.temp.delete();
+	}
+}
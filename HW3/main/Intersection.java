@@ -1,17 +1,43 @@
 package main;
 
+import geometry.Mesh;
 import geometry.Shape;
 import utility.Vector;
 
 public class Intersection {
 	public Shape shape;
+	public int primitive; // the index of the shape in the compiled scene
 	public Vector point;
 	public double tValue;
+	public int face; // the face of a mesh primitive, -1 for the other shapes
+	private Mesh.Face meshFace; // the shape of hits on meshes, set again for every hit
 
 	public Intersection() {
 		this.shape = null;
+		this.primitive = -1;
 		this.point = null;
 		this.tValue = 0;
+		this.face = -1;
+	}
+
+	/**
+	 * @return The face object of this intersection, for setting a hit on a mesh
+	 */
+	public Mesh.Face getMeshFace() {
+		if (this.meshFace == null) {
+			this.meshFace = new Mesh.Face();
+		}
+		return this.meshFace;
+	}
+
+	/**
+	 * Creates an intersection with its own point vector, to be reused for many
+	 * queries.
+	 */
+	public static Intersection createReusable() {
+		Intersection result = new Intersection();
+		result.point = new Vector(0, 0, 0);
+		return result;
 	}
 }
 
@@ -0,0 +1,219 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import geometry.Mesh;
+
+/**
+ * A binary copy of a mesh file, kept next to it: the vertices and faces of
+ * the mesh and the hierarchy over the faces. The mesh is used straight from a
+ * memory mapping of the file, so its geometry is kept outside of the heap
+ * (and out of the way of the garbage collector), the operating system reads
+ * the pages which the rays reach and may drop them again when memory runs
+ * low. Later renders of the same mesh file skip both the reading and the
+ * building of the hierarchy.
+ *
+ * The file is a header followed by sections: the vertices, the indices, the
+ * faces of the hierarchy ordered by leafs, and the records of its nodes in
+ * segments of up to 1 GB. Every section is mapped on its own, like the
+ * segments of a PixelBuffer, so the store may be larger than the 2 GB of a
+ * single mapping; the vertices and the indices still have to fit in one
+ * (about 178 million of either). The sections start on 8 bytes, so their
+ * doubles are aligned.
+ *
+ * The store is keyed by a hash of the content of the mesh file, a store of
+ * any other content (or version of the format) is ignored and written again.
+ * The numbers are kept in little endian order, the order of the machines
+ * rendered on, so the buffers are read without swapping bytes.
+ */
+public class MeshStore {
+	private static final int magic = 0x52544d53; // "RTMS"
+	private static final int version = 4;
+	private static final int headerSize = 24 + SceneParser.hashLength;
+	static final ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+	// The sections before the segments of the nodes
+	private static final int meshSectionsNum = 3;
+
+	private final Mesh mesh;
+	// The hierarchy over the faces, in the mapping
+	private final int depth;
+	private final IntBuffer faces;
+	private final ByteBuffer[] nodes;
+	private final int nodesNum;
+
+	private MeshStore(Mesh mesh, int depth, IntBuffer faces, ByteBuffer[] nodes, int nodesNum) {
+		this.mesh = mesh;
+		this.depth = depth;
+		this.faces = faces;
+		this.nodes = nodes;
+		this.nodesNum = nodesNum;
+	}
+
+	/**
+	 * @return The name of the store file of a mesh file
+	 */
+	public static String getFileName(String meshFileName) {
+		return meshFileName + ".cache";
+	}
+
+	/**
+	 * @return The mesh, with its buffers in the mapping
+	 */
+	public Mesh getMesh() {
+		return mesh;
+	}
+
+	/**
+	 * @return The hierarchy over the faces of the mesh, traversed straight from
+	 *         the mapping
+	 */
+	CompiledMesh compile() {
+		ByteBuffer[] nodes = new ByteBuffer[this.nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = this.nodes[i].duplicate().order(order);
+		}
+		return new CompiledMesh(this.mesh, this.depth, this.faces.duplicate(), nodes, this.nodesNum);
+	}
+
+	/**
+	 * Writes the store of a mesh, building the hierarchy over its faces. The
+	 * file is written aside and then moved over the old one, so a store is
+	 * never seen half written.
+	 *
+	 * @param key
+	 *            - The hash of the mesh file content
+	 */
+	public static void write(String fileName, byte[] key, Mesh mesh) throws IOException {
+		CompiledMesh compiled = new CompiledMesh(mesh);
+		int verticesNum = mesh.getVerticesNum(), facesNum = mesh.getFacesNum();
+		long[] sizes = getSectionSizes(verticesNum, facesNum, compiled.getNodesNum());
+		long[] offsets = getSectionOffsets(sizes);
+
+		File file = new File(fileName);
+		File temp = new File(fileName + ".tmp");
+		try (RandomAccessFile raf = new RandomAccessFile(temp, "rw"); FileChannel channel = raf.getChannel()) {
+			raf.setLength(offsets[sizes.length]);
+			ByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, headerSize);
+			header.putInt(magic);
+			header.putInt(version);
+			header.put(key);
+			header.putInt(verticesNum);
+			header.putInt(facesNum);
+			header.putInt(compiled.getNodesNum());
+			header.putInt(compiled.getDepth());
+
+			FileChannel.MapMode mode = FileChannel.MapMode.READ_WRITE;
+			mapSection(channel, mode, sizes, offsets, 0).asFloatBuffer().put(mesh.getVertices().duplicate().rewind());
+			mapSection(channel, mode, sizes, offsets, 1).asIntBuffer().put(mesh.getIndices().duplicate().rewind());
+			mapSection(channel, mode, sizes, offsets, 2).asIntBuffer().put(compiled.getFaces());
+			ByteBuffer[] nodes = compiled.getNodes();
+			for (int i = 0; i < nodes.length; i++) {
+				mapSection(channel, mode, sizes, offsets, meshSectionsNum + i).put(nodes[i].rewind());
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Maps a store file.
+	 *
+	 * @param key
+	 *            - The hash of the mesh file content
+	 * @param params
+	 *            - The parameters of the mesh line in the scene
+	 * @return The store, or null if there is no store file of this content
+	 */
+	public static MeshStore read(String fileName, byte[] key, String[] params) throws IOException {
+		File file = new File(fileName);
+		if (!file.isFile()) {
+			return null;
+		}
+		// The mappings stay valid after the channel is closed
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() < headerSize) {
+				return null;
+			}
+			ByteBuffer in = map(channel, FileChannel.MapMode.READ_ONLY, 0, headerSize);
+			if (in.getInt() != magic || in.getInt() != version) {
+				return null;
+			}
+			byte[] hash = new byte[SceneParser.hashLength];
+			in.get(hash);
+			if (!Arrays.equals(hash, key)) {
+				return null;
+			}
+			int verticesNum = in.getInt();
+			int facesNum = in.getInt();
+			int nodesNum = in.getInt();
+			int depth = in.getInt();
+			if (verticesNum < 0 || facesNum < 0 || nodesNum < 0 || depth < 0) {
+				return null;
+			}
+			long[] sizes = getSectionSizes(verticesNum, facesNum, nodesNum);
+			long[] offsets = getSectionOffsets(sizes);
+			if (offsets[sizes.length] != channel.size()) {
+				return null;
+			}
+
+			FileChannel.MapMode mode = FileChannel.MapMode.READ_ONLY;
+			Mesh mesh = new Mesh(mapSection(channel, mode, sizes, offsets, 0).asFloatBuffer(),
+					mapSection(channel, mode, sizes, offsets, 1).asIntBuffer(), params);
+			ByteBuffer[] nodes = new ByteBuffer[sizes.length - meshSectionsNum];
+			for (int i = 0; i < nodes.length; i++) {
+				nodes[i] = mapSection(channel, mode, sizes, offsets, meshSectionsNum + i);
+			}
+			return new MeshStore(mesh, depth, mapSection(channel, mode, sizes, offsets, 2).asIntBuffer(), nodes,
+					nodesNum);
+		}
+	}
+
+	/**
+	 * @return The sizes of the sections in bytes, the segments of the nodes
+	 *         last
+	 */
+	private static long[] getSectionSizes(int verticesNum, int facesNum, int nodesNum) {
+		long[] segmentSizes = CompiledMesh.getSegmentSizes(nodesNum);
+		long[] sizes = new long[meshSectionsNum + segmentSizes.length];
+		sizes[0] = verticesNum * 3L * Float.BYTES;
+		sizes[1] = facesNum * 3L * Integer.BYTES;
+		sizes[2] = (long) facesNum * Integer.BYTES;
+		System.arraycopy(segmentSizes, 0, sizes, meshSectionsNum, segmentSizes.length);
+		return sizes;
+	}
+
+	/**
+	 * @return The offsets of the sections in the file, each on 8 bytes, and the
+	 *         size of the file after them
+	 */
+	private static long[] getSectionOffsets(long[] sizes) {
+		long[] offsets = new long[sizes.length + 1];
+		offsets[0] = headerSize;
+		for (int i = 0; i < sizes.length; i++) {
+			offsets[i + 1] = (offsets[i] + sizes[i] + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+		}
+		return offsets;
+	}
+
+	private static ByteBuffer mapSection(FileChannel channel, FileChannel.MapMode mode, long[] sizes,
+			long[] offsets, int section) throws IOException {
+		return map(channel, mode, offsets[section], sizes[section]);
+	}
+
+	private static ByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long offset, long size)
+			throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("The mesh is too large, a section of its store is larger than a mapping.");
+		}
+		return channel.map(mode, offset, size).order(order);
+	}
+}
@@ -0,0 +1,91 @@
+package main;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import geometry.Mesh;
+import main.RayTracer.RayTracerException;
+
+/**
+ * Reads the geometry of a Wavefront OBJ file into a mesh. Only the vertices
+ * (v lines) and the faces (f lines) are used, faces of more than 3 vertices
+ * are split to triangles around their first vertex. Texture coordinates,
+ * normals, groups and materials of the file are ignored, the mesh takes its
+ * material from the scene.
+ */
+public class ObjReader {
+	private float[] vertices = new float[3 * 1024];
+	private int verticesNum;
+	private int[] indices = new int[3 * 1024];
+	private int facesNum;
+
+	/**
+	 * Reads a mesh file.
+	 *
+	 * @param params
+	 *            - The parameters of the mesh line in the scene
+	 */
+	public static Mesh read(String fileName, String[] params) throws IOException, RayTracerException {
+		ObjReader reader = new ObjReader();
+		reader.parse(fileName);
+		return new Mesh(FloatBuffer.wrap(reader.vertices, 0, reader.verticesNum * 3),
+				IntBuffer.wrap(reader.indices, 0, reader.facesNum * 3), params);
+	}
+
+	private void parse(String fileName) throws IOException, RayTracerException {
+		SceneParser parser = new SceneParser(fileName, true);
+		int[] polygon = new int[16];
+		while (parser.nextLine()) {
+			if (parser.isCode("v")) {
+				if (this.verticesNum * 3 == this.vertices.length) {
+					this.vertices = Arrays.copyOf(this.vertices, this.vertices.length * 2);
+				}
+				// A fourth (w) coordinate is ignored
+				for (int i = 0; i < 3; i++) {
+					this.vertices[this.verticesNum * 3 + i] = (float) parser.getDouble(i);
+				}
+				this.verticesNum++;
+			} else if (parser.isCode("f")) {
+				int n = parser.getParamsNum();
+				if (n < 3) {
+					throw new RayTracerException(String.format("Face with less than 3 vertices in line: %d of %s.",
+							parser.getLineNum(), fileName));
+				}
+				if (n > polygon.length) {
+					polygon = new int[n];
+				}
+				for (int i = 0; i < n; i++) {
+					polygon[i] = toVertex(parser.getIndex(i), parser, fileName);
+				}
+				for (int i = 1; i < n - 1; i++) {
+					addFace(polygon[0], polygon[i], polygon[i + 1]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Converts an index of the file (starting from 1, or negative from the last
+	 * vertex read) to the index of the vertex.
+	 */
+	private int toVertex(int index, SceneParser parser, String fileName) throws RayTracerException {
+		int vertex = index > 0 ? index - 1 : this.verticesNum + index;
+		if (index == 0 || vertex < 0 || vertex >= this.verticesNum) {
+			throw new RayTracerException(String.format("Invalid vertex %d in line: %d of %s.", index,
+					parser.getLineNum(), fileName));
+		}
+		return vertex;
+	}
+
+	private void addFace(int a, int b, int c) {
+		if (this.facesNum * 3 == this.indices.length) {
+			this.indices = Arrays.copyOf(this.indices, this.indices.length * 2);
+		}
+		this.indices[this.facesNum * 3] = a;
+		this.indices[this.facesNum * 3 + 1] = b;
+		this.indices[this.facesNum * 3 + 2] = c;
+		this.facesNum++;
+	}
+}
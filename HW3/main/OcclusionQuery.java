@@ -0,0 +1,136 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Answers shadow ray queries: how much light passes between a light sample and
+ * a point. The primitives casting shadows are split by their material into two
+ * hierarchies:
+ * - Opaque primitives, which are checked first with an any-hit query that stops
+ * at the first primitive found, since a single one blocks all the light.
+ * - Transparent primitives, which are checked only if no opaque one is in the
+ * way, accumulating their transparencies.
+ * Primitives that do not cast shadows are left out of both.
+ * Callers may pass a cache of the last opaque occluder found for a shadow
+ * sample: neighbouring points are usually blocked by the same primitive, which
+ * is then tested alone before searching the hierarchy.
+ */
+public class OcclusionQuery {
+	private CompiledScene scene;
+	private BVH opaque;
+	private BVH transparent;
+
+	public OcclusionQuery(CompiledScene scene) {
+		this.scene = scene;
+		List<Integer> opaquePrimitives = new ArrayList<Integer>();
+		List<Integer> transparentPrimitives = new ArrayList<Integer>();
+		for (int p = 0; p < scene.getPrimitivesNum(); p++) {
+			if (!scene.getShape(p).isCastingShadows()) {
+				continue;
+			}
+			if (scene.getTransparency(p) == 0) {
+				opaquePrimitives.add(p);
+			} else {
+				transparentPrimitives.add(p);
+			}
+		}
+		this.opaque = new BVH(scene, toArray(opaquePrimitives));
+		this.transparent = new BVH(scene, toArray(transparentPrimitives));
+	}
+
+	/**
+	 * Creates the query from hierarchies built before over the same scene.
+	 */
+	public OcclusionQuery(CompiledScene scene, BVH opaque, BVH transparent) {
+		this.scene = scene;
+		this.opaque = opaque;
+		this.transparent = transparent;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	public BVH getOpaqueBVH() {
+		return opaque;
+	}
+
+	public BVH getTransparentBVH() {
+		return transparent;
+	}
+
+	/**
+	 * @return The size of a traversal stack large enough for both hierarchies
+	 */
+	public int getStackSize() {
+		return Math.max(opaque.createStack().length, transparent.createStack().length);
+	}
+
+	/**
+	 * Calculates the amount of light passing along a ray up to a given distance.
+	 *
+	 * @param lightRay
+	 *            The ray from the light
+	 * @param T
+	 *            The distance to the point being lit
+	 * @param stack
+	 *            The traversal stack
+	 * @return The light level, between 0 (blocked) and 1 (clear)
+	 */
+	public double getLightLevel(Ray lightRay, double T, int[] stack) {
+		if (this.opaque.getOccluder(lightRay, T, stack) >= 0) {
+			return 0;
+		}
+		return this.transparent.getLightLevel(lightRay, T, stack);
+	}
+
+	/**
+	 * Same as getLightLevel(lightRay, T, stack), checking the cached occluder of
+	 * the shadow sample first and updating the cache.
+	 *
+	 * @param cache
+	 *            The cache of the calling thread, holds a primitive index (or -1)
+	 *            per shadow sample
+	 * @param slot
+	 *            The index of the shadow sample in the cache
+	 */
+	public double getLightLevel(Ray lightRay, double T, int[] stack, OccluderCache cache, int slot) {
+		int cached = cache.occluders[slot];
+		if (cached >= 0 && this.scene.isBlocking(cached, cache.faces[slot], lightRay, T)) {
+			cache.hits++;
+			return 0;
+		}
+		cache.misses++;
+
+		int occluder = this.opaque.getOccluder(lightRay, T, stack, cache.faces, slot);
+		if (occluder >= 0) {
+			cache.occluders[slot] = occluder;
+			return 0;
+		}
+		return this.transparent.getLightLevel(lightRay, T, stack);
+	}
+
+	/**
+	 * The last opaque occluder found for every shadow sample (and its face, if it
+	 * is a mesh), with counters of how often it was still blocking. Not thread safe, every render thread has
+	 * its own.
+	 */
+	public static class OccluderCache {
+		public final int[] occluders;
+		public final int[] faces;
+		public long hits;
+		public long misses;
+
+		public OccluderCache(int slotsNum) {
+			this.occluders = new int[slotsNum];
+			Arrays.fill(this.occluders, -1);
+			this.faces = new int[slotsNum];
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package main;
+
+/**
+ * Intersects a primitive of the compiled scene with all the rays of a packet.
+ * Every ray that hits the primitive closer than its nearest hit so far (and
+ * not closer than epsilon) takes the primitive as its nearest hit. Also tests
+ * the nodes of the hierarchy against the packet.
+ */
+public interface PacketKernel {
+	// Needs the jdk.incubator.vector module, both to compile and to run
+	static final String vectorKernelClass = "main.VectorPacketKernel";
+
+	public void intersect(CompiledScene scene, int primitive, RayPacket packet);
+
+	/**
+	 * Checks if any ray of the packet enters a box before its nearest hit.
+	 *
+	 * @param bounds
+	 *            - The minimal and then the maximal corner of the box, from the
+	 *            offset on
+	 */
+	public boolean hitBox(double[] bounds, int offset, RayPacket packet);
+
+	public String getName();
+
+	/**
+	 * Creates the SIMD kernel when the vector API is available, and the scalar
+	 * kernel otherwise.
+	 */
+	public static PacketKernel create() {
+		try {
+			return (PacketKernel) Class.forName(vectorKernelClass).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return new ScalarPacketKernel();
+		}
+	}
+}
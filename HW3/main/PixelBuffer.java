@@ -0,0 +1,177 @@
+package main;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The RGB bytes of an image, 3 bytes per pixel, row by row. The bytes are
+ * addressed by longs and kept in segments of up to 1 GB, so an image is not
+ * limited to the 2 GB of an array.
+ *
+ * Small images are kept on the heap. Large ones are kept in a file mapped into
+ * memory, outside of the heap: the operating system writes the pages out to
+ * the file when memory runs low and reads them back when they are used, so an
+ * image may be larger than the memory. The file is deleted when the buffer is
+ * closed.
+ *
+ * The tiles are set from the render threads, a tile at a time, into their own
+ * part of the buffer, so they do not have to be synchronized.
+ */
+public class PixelBuffer implements Closeable {
+	static final int segmentBits = 30;
+	static final long segmentSize = 1L << segmentBits;
+
+	private final int width, height;
+	private final ByteBuffer[] segments;
+	private final File file; // the mapped file, null on the heap
+
+	private PixelBuffer(int width, int height, ByteBuffer[] segments, File file) {
+		this.width = width;
+		this.height = height;
+		this.segments = segments;
+		this.file = file;
+	}
+
+	/**
+	 * Creates a buffer of black pixels.
+	 *
+	 * @param fileName
+	 *            - The file to map the buffer from if it is larger than
+	 *            maxHeapSize
+	 * @param maxHeapSize
+	 *            - The size in bytes of the largest buffer kept on the heap
+	 */
+	public static PixelBuffer create(int width, int height, String fileName, long maxHeapSize) throws IOException {
+		long size = (long) width * height * 3;
+		File file = size <= maxHeapSize ? null : new File(fileName);
+		return new PixelBuffer(width, height, createSegments(size, file), file);
+	}
+
+	/**
+	 * Creates the segments of a buffer of zeros, addressed by longs.
+	 *
+	 * @param size
+	 *            - The size of the buffer in bytes
+	 * @param file
+	 *            - The file to map the buffer from, or null to keep it on the
+	 *            heap. The file is deleted when the JVM exits.
+	 */
+	static ByteBuffer[] createSegments(long size, File file) throws IOException {
+		ByteBuffer[] segments = new ByteBuffer[(int) ((size + segmentSize - 1) >> segmentBits)];
+		if (file == null) {
+			for (int i = 0; i < segments.length; i++) {
+				segments[i] = ByteBuffer.allocate((int) Math.min(segmentSize, size - i * segmentSize));
+			}
+			return segments;
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			// A new file reads as zeros, the pages are taken only when written
+			raf.setLength(0);
+			raf.setLength(size);
+			for (int i = 0; i < segments.length; i++) {
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * segmentSize,
+						Math.min(segmentSize, size - i * segmentSize));
+			}
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+		// Also when the JVM is stopped before the buffer is closed (and where a
+		// file can not be deleted while it is mapped)
+		file.deleteOnExit();
+		// The mappings stay valid after the channel is closed
+		return segments;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return Whether the buffer is mapped from a file
+	 */
+	public boolean isMapped() {
+		return file != null;
+	}
+
+	/**
+	 * Sets the pixels of a tile.
+	 *
+	 * @param data
+	 *            - The pixels of the tile, row by row
+	 */
+	public void setTile(Tile tile, byte[] data) {
+		for (int row = 0; row < tile.height; row++) {
+			setRow(tile.x, tile.y + row, data, row * tile.width * 3, tile.width * 3);
+		}
+	}
+
+	/**
+	 * Gets the pixels of a tile.
+	 *
+	 * @param data
+	 *            - Receives the pixels of the tile, row by row
+	 */
+	public void getTile(Tile tile, byte[] data) {
+		for (int row = 0; row < tile.height; row++) {
+			getRow(tile.x, tile.y + row, data, row * tile.width * 3, tile.width * 3);
+		}
+	}
+
+	/**
+	 * Sets pixels of a row, from pixel x on.
+	 *
+	 * @param length
+	 *            - The number of bytes to set
+	 */
+	public void setRow(int x, int y, byte[] data, int offset, int length) {
+		long position = ((long) y * this.width + x) * 3;
+		while (length > 0) {
+			ByteBuffer segment = this.segments[(int) (position >> segmentBits)];
+			int index = (int) (position & (segmentSize - 1));
+			int n = Math.min(length, segment.capacity() - index);
+			segment.put(index, data, offset, n);
+			position += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Gets pixels of a row, from pixel x on.
+	 *
+	 * @param length
+	 *            - The number of bytes to get
+	 */
+	public void getRow(int x, int y, byte[] data, int offset, int length) {
+		long position = ((long) y * this.width + x) * 3;
+		while (length > 0) {
+			ByteBuffer segment = this.segments[(int) (position >> segmentBits)];
+			int index = (int) (position & (segmentSize - 1));
+			int n = Math.min(length, segment.capacity() - index);
+			segment.get(index, data, offset, n);
+			position += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Deletes the mapped file. The buffer can not be used after it is closed.
+	 */
+	@Override
+	public void close() {
+		if (this.file != null) {
+			this.file.delete();
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an RGB image, 8 bits per channel, in png format, row by row: the
+ * rows are filtered and compressed as they are written, so the image is never
+ * held whole, however large it is.
+ *
+ * The rows are cut into bands which are filtered and compressed in parallel,
+ * as pigz does: every band is compressed on its own, with the end of the band
+ * before it as its dictionary (so it compresses nearly as well as a single
+ * stream), and ends on a byte boundary (a sync flush), so the compressed bands
+ * join into a single zlib stream, written in IDAT chunks of up to 64 KB. The
+ * checksum of the stream is combined from the checksums of the bands.
+ *
+ * The rows are filtered by a single filter, or by the filter which leaves the
+ * smallest sum of the differences it makes (as signed bytes) for every row,
+ * the choice of libpng.
+ */
+public class PngWriter implements Closeable {
+	public static final int adaptiveFilter = 5; // after the filter types of png, 0 to 4
+	private static final String[] filterNames = { "none", "sub", "up", "average", "paeth", "adaptive" };
+
+	private static final byte[] signature = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final int chunkSize = 1 << 16;
+	private static final int bandSize = 1 << 18; // the least bytes of rows in a band
+	private static final int dictionarySize = 1 << 15; // the window of deflate
+
+	private final DataOutputStream out;
+	private final int width, height;
+	private final int level;
+	private final int filter;
+	private final ExecutorService pool;
+	private final int maxPending;
+	private final ArrayDeque<Future<Band>> pending = new ArrayDeque<Future<Band>>(); // bands being compressed
+	private final byte[] chunk = new byte[chunkSize]; // the IDAT chunk being filled
+	private int chunkLength;
+	private long checksum = 1; // the Adler-32 of the rows compressed so far
+	private Band band; // the band being filled
+	private Band previous; // the band before, its last row is filtered against
+	private int rowsNum; // the rows written so far
+
+	/**
+	 * Writes the header of the image.
+	 *
+	 * @param out
+	 *            - The stream of the file, closed by close()
+	 * @param level
+	 *            - The compression level, 0 to 9
+	 * @param filter
+	 *            - The filter type of the rows, or adaptiveFilter
+	 * @param threadsNum
+	 *            - The number of threads compressing the bands
+	 */
+	public PngWriter(OutputStream out, int width, int height, int level, int filter, int threadsNum)
+			throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out, chunkSize));
+		this.width = width;
+		this.height = height;
+		this.level = level;
+		this.filter = filter;
+		this.out.write(signature);
+		byte[] header = new byte[13];
+		setInt(header, 0, width);
+		setInt(header, 4, height);
+		header[8] = 8; // bits per channel
+		header[9] = 2; // RGB
+		// The compression, filter and interlace methods are 0
+		writeChunk("IHDR", header, header.length);
+
+		// The zlib header, with the level it was compressed at
+		int flags = (0x78 << 8) | ((level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3) << 6);
+		writeData(new byte[] { (byte) (flags >> 8), (byte) (flags + 31 - flags % 31) }, 2);
+
+		this.pool = Executors.newFixedThreadPool(threadsNum, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "png");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.maxPending = threadsNum * 2;
+	}
+
+	/**
+	 * @return The filter type of a filter name, -1 if there is no such filter
+	 */
+	public static int parseFilter(String name) {
+		for (int type = 0; type < filterNames.length; type++) {
+			if (filterNames[type].equalsIgnoreCase(name)) {
+				return type;
+			}
+		}
+		return -1;
+	}
+
+	private static void setInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	private void writeChunk(String type, byte[] bytes, int length) throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(bytes, 0, length);
+		this.out.writeInt(length);
+		this.out.write(typeBytes);
+		this.out.write(bytes, 0, length);
+		this.out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Writes compressed bytes into IDAT chunks.
+	 */
+	private void writeData(byte[] bytes, int length) throws IOException {
+		for (int offset = 0; offset < length;) {
+			int n = Math.min(length - offset, this.chunk.length - this.chunkLength);
+			System.arraycopy(bytes, offset, this.chunk, this.chunkLength, n);
+			this.chunkLength += n;
+			offset += n;
+			if (this.chunkLength == this.chunk.length) {
+				flushData();
+			}
+		}
+	}
+
+	private void flushData() throws IOException {
+		if (this.chunkLength > 0) {
+			writeChunk("IDAT", this.chunk, this.chunkLength);
+			this.chunkLength = 0;
+		}
+	}
+
+	/**
+	 * A band of rows, filtered and compressed on a thread of the pool.
+	 */
+	private class Band implements Callable<Band> {
+		final byte[] rows; // the pixels of the rows, 3 bytes per pixel
+		int rowsNum;
+		final byte[] above; // the row above the band, zeros above the first row
+		Band previous; // the band before, for its dictionary
+		boolean isLast;
+
+		byte[] filtered; // the rows after their filter types
+		final CountDownLatch isFiltered = new CountDownLatch(1);
+		long checksum; // the Adler-32 of the filtered rows
+		ByteArrayOutputStream compressed;
+
+		Band(byte[] above) {
+			int rowSize = width * 3;
+			this.rows = new byte[Math.max(1, Math.min(height, bandSize / rowSize)) * rowSize];
+			this.above = above;
+		}
+
+		boolean isFull() {
+			return (this.rowsNum + 1) * width * 3 > this.rows.length;
+		}
+
+		@Override
+		public Band call() throws InterruptedException {
+			int rowSize = width * 3;
+			this.filtered = new byte[this.rowsNum * (1 + rowSize)];
+			for (int row = 0; row < this.rowsNum; row++) {
+				byte[] above = row > 0 ? this.rows : this.above;
+				int aboveOffset = row > 0 ? (row - 1) * rowSize : 0;
+				filterRow(this.rows, row * rowSize, above, aboveOffset, this.filtered, row * (1 + rowSize));
+			}
+			Adler32 adler = new Adler32();
+			adler.update(this.filtered);
+			this.checksum = adler.getValue();
+			this.isFiltered.countDown();
+
+			Deflater deflater = new Deflater(level, true);
+			try {
+				if (this.previous != null) {
+					// The band before is filtered first, its thread took it before this one
+					this.previous.isFiltered.await();
+					byte[] dictionary = this.previous.filtered;
+					int n = Math.min(dictionarySize, dictionary.length);
+					deflater.setDictionary(dictionary, dictionary.length - n, n);
+					this.previous = null;
+				}
+				deflater.setInput(this.filtered);
+				this.compressed = new ByteArrayOutputStream(this.filtered.length / 4 + 64);
+				byte[] buffer = new byte[chunkSize];
+				if (this.isLast) {
+					deflater.finish();
+					while (!deflater.finished()) {
+						this.compressed.write(buffer, 0, deflater.deflate(buffer));
+					}
+				} else {
+					// The buffer is filled when there may be more to flush
+					int n;
+					do {
+						n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+						this.compressed.write(buffer, 0, n);
+					} while (n == buffer.length);
+				}
+			} finally {
+				deflater.end();
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Filters a row, after its filter type.
+	 *
+	 * @param above
+	 *            - The row above, from offset aboveOffset
+	 */
+	private void filterRow(byte[] row, int offset, byte[] above, int aboveOffset, byte[] out, int outOffset) {
+		int rowSize = this.width * 3;
+		int type = this.filter;
+		if (type == adaptiveFilter) {
+			long[] sums = new long[5];
+			for (int i = 0; i < rowSize; i++) {
+				int x = row[offset + i] & 0xFF;
+				int a = i >= 3 ? row[offset + i - 3] & 0xFF : 0; // the pixel on the left
+				int b = above[aboveOffset + i] & 0xFF; // the pixel above
+				int c = i >= 3 ? above[aboveOffset + i - 3] & 0xFF : 0; // the pixel above on the left
+				sums[0] += Math.abs((byte) x);
+				sums[1] += Math.abs((byte) (x - a));
+				sums[2] += Math.abs((byte) (x - b));
+				sums[3] += Math.abs((byte) (x - ((a + b) >> 1)));
+				sums[4] += Math.abs((byte) (x - predictPaeth(a, b, c)));
+			}
+			type = 0;
+			for (int t = 1; t < 5; t++) {
+				if (sums[t] < sums[type]) {
+					type = t;
+				}
+			}
+		}
+
+		out[outOffset] = (byte) type;
+		for (int i = 0; i < rowSize; i++) {
+			int x = row[offset + i] & 0xFF;
+			int a = i >= 3 ? row[offset + i - 3] & 0xFF : 0;
+			int b = above[aboveOffset + i] & 0xFF;
+			int c = i >= 3 ? above[aboveOffset + i - 3] & 0xFF : 0;
+			int predicted;
+			switch (type) {
+			case 1:
+				predicted = a;
+				break;
+			case 2:
+				predicted = b;
+				break;
+			case 3:
+				predicted = (a + b) >> 1;
+				break;
+			case 4:
+				predicted = predictPaeth(a, b, c);
+				break;
+			default:
+				predicted = 0;
+			}
+			out[outOffset + 1 + i] = (byte) (x - predicted);
+		}
+	}
+
+	private static int predictPaeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	/**
+	 * Writes the next row of the image. The rows are compressed in bands, and
+	 * written to the file once the bands before are.
+	 *
+	 * @param row
+	 *            - The pixels of the row, 3 bytes per pixel
+	 */
+	public void writeRow(byte[] row) throws IOException {
+		if (this.rowsNum == this.height) {
+			throw new IOException("The image has no more rows.");
+		}
+		int rowSize = this.width * 3;
+		if (this.band == null) {
+			byte[] above = new byte[rowSize];
+			if (this.previous != null) {
+				System.arraycopy(this.previous.rows, (this.previous.rowsNum - 1) * rowSize, above, 0, rowSize);
+			}
+			this.band = new Band(above);
+			this.band.previous = this.previous;
+		}
+		System.arraycopy(row, 0, this.band.rows, this.band.rowsNum * rowSize, rowSize);
+		this.band.rowsNum++;
+		this.rowsNum++;
+		if (this.band.isFull() || this.rowsNum == this.height) {
+			this.band.isLast = this.rowsNum == this.height;
+			while (this.pending.size() >= this.maxPending) {
+				writeBand();
+			}
+			this.pending.addLast(this.pool.submit(this.band));
+			this.previous = this.band;
+			this.band = null;
+		}
+	}
+
+	/**
+	 * Waits for the first band being compressed and writes it.
+	 */
+	private void writeBand() throws IOException {
+		Band band;
+		try {
+			band = this.pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while the image was compressed.");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not compress the image.", e.getCause());
+		}
+		this.checksum = combineAdler32(this.checksum, band.checksum, band.filtered.length);
+		byte[] compressed = band.compressed.toByteArray();
+		writeData(compressed, compressed.length);
+	}
+
+	/**
+	 * Combines the Adler-32 of two byte sequences into the Adler-32 of both (as
+	 * adler32_combine of zlib).
+	 *
+	 * @param length2
+	 *            - The length of the second sequence
+	 */
+	private static long combineAdler32(long adler1, long adler2, long length2) {
+		final long base = 65521;
+		long remainder = length2 % base;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (remainder * sum1) % base;
+		sum1 += (adler2 & 0xFFFF) + base - 1;
+		sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - remainder;
+		if (sum1 >= base) {
+			sum1 -= base;
+		}
+		if (sum1 >= base) {
+			sum1 -= base;
+		}
+		if (sum2 >= base << 1) {
+			sum2 -= base << 1;
+		}
+		if (sum2 >= base) {
+			sum2 -= base;
+		}
+		return sum1 | (sum2 << 16);
+	}
+
+	/**
+	 * Writes the bands left and the end of the image, and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (this.rowsNum < this.height) {
+				throw new IOException(String.format("The image has %d of %d rows.", this.rowsNum, this.height));
+			}
+			while (!this.pending.isEmpty()) {
+				writeBand();
+			}
+			byte[] trailer = new byte[4];
+			setInt(trailer, 0, (int) this.checksum);
+			writeData(trailer, trailer.length);
+			flushData();
+			writeChunk("IEND", new byte[0], 0);
+			this.out.flush();
+		} finally {
+			this.pool.shutdownNow();
+			this.out.close();
+		}
+	}
+}
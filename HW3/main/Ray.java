@@ -18,6 +18,25 @@ public class Ray {
 		this.direction.normalize();
 	}
 
+	/**
+	 * Creates a ray with its own origin and direction vectors, to be reused with
+	 * set().
+	 */
+	public Ray() {
+		this.origin = new Vector(0, 0, 0);
+		this.direction = new Vector(0, 0, 1);
+	}
+
+	/**
+	 * Copies the given origin and direction into the ray. The direction is
+	 * normalized, the given vectors are not changed.
+	 */
+	public Ray set(Vector origin, Vector direction) {
+		this.origin.set(origin);
+		this.direction.set(direction).normalize();
+		return this;
+	}
+
 	public Vector getOrigin() {
 		return origin;
 	}
@@ -0,0 +1,104 @@
+package main;
+
+import java.util.Arrays;
+
+import utility.Vector;
+
+/**
+ * A group of rays traced through the hierarchy together. The rays are stored
+ * as a structure of arrays (one array per component) so the intersection
+ * kernels can load the same component of several rays at once. Every ray keeps
+ * the nearest hit found so far, and the pixel sample it belongs to for
+ * shading.
+ */
+public class RayPacket {
+	// The arrays of the rays are longer than the capacity by up to a vector of
+	// doubles (a 2048 bit vector at most), so kernels can load whole vectors
+	// without masks even at the end of the packet. The unused rays have a NaN
+	// nearest hit, which fails every comparison, so they never hit anything.
+	private static final int padding = 32;
+
+	public final int capacity;
+	public int size;
+
+	// The rays, directions are normalized
+	public final double[] ox, oy, oz;
+	public final double[] dx, dy, dz;
+	public final double[] invDx, invDy, invDz;
+
+	// The nearest hit of every ray, Double.MAX_VALUE and -1 when nothing was hit
+	// (NaN for the unused rays), and the face hit if the primitive is a mesh
+	public final double[] tHit;
+	public final int[] primitives;
+	public final int[] faces;
+
+	// The pixel sample of every ray
+	public final int[] pixels; // the index of the pixel in the tile
+	public final long[] sampleKeys;
+	public final int[] sampleIndices;
+	public final int[] sampleCounts;
+
+	public RayPacket(int capacity) {
+		this.capacity = capacity;
+		int length = capacity + padding;
+		this.ox = new double[length];
+		this.oy = new double[length];
+		this.oz = new double[length];
+		this.dx = new double[length];
+		this.dy = new double[length];
+		this.dz = new double[length];
+		this.invDx = new double[length];
+		this.invDy = new double[length];
+		this.invDz = new double[length];
+		this.tHit = new double[length];
+		Arrays.fill(this.tHit, Double.NaN);
+		this.primitives = new int[capacity];
+		this.faces = new int[capacity];
+		this.pixels = new int[capacity];
+		this.sampleKeys = new long[capacity];
+		this.sampleIndices = new int[capacity];
+		this.sampleCounts = new int[capacity];
+	}
+
+	public boolean isFull() {
+		return this.size == this.capacity;
+	}
+
+	public void clear() {
+		Arrays.fill(this.tHit, 0, this.size, Double.NaN);
+		this.size = 0;
+	}
+
+	/**
+	 * Adds a ray to the packet, with no hit yet.
+	 *
+	 * @return The index of the ray in the packet
+	 */
+	public int add(Ray ray) {
+		int i = this.size++;
+		Vector o = ray.getOrigin();
+		Vector d = ray.getDirection();
+		this.ox[i] = o.getX();
+		this.oy[i] = o.getY();
+		this.oz[i] = o.getZ();
+		this.dx[i] = d.getX();
+		this.dy[i] = d.getY();
+		this.dz[i] = d.getZ();
+		this.invDx[i] = 1 / d.getX();
+		this.invDy[i] = 1 / d.getY();
+		this.invDz[i] = 1 / d.getZ();
+		this.tHit[i] = Double.MAX_VALUE;
+		this.primitives[i] = -1;
+		this.faces[i] = -1;
+		return i;
+	}
+
+	/**
+	 * Copies a ray of the packet into a ray object.
+	 */
+	public Ray getRay(int i, Ray out) {
+		out.getOrigin().set(this.ox[i], this.oy[i], this.oz[i]);
+		out.getDirection().set(this.dx[i], this.dy[i], this.dz[i]);
+		return out;
+	}
+}
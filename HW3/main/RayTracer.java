@@ -1,23 +1,41 @@
 package main;
 
-import java.awt.Transparency;
-import java.awt.color.*;
-import java.awt.image.*;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Random;
-
-import javax.imageio.ImageIO;
-
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import geometry.Mesh;
+import geometry.MeshInstance;
+import geometry.MeshInstance.SingularTransformException;
 import geometry.Plane;
 import geometry.Shape;
 import geometry.Sphere;
 import geometry.Triangle;
 import scene.Camera;
 import scene.Light;
+import scene.LightSampler;
+import scene.LightTree;
 import scene.Material;
+import sampling.Sampler;
+import sampling.Samplers;
 import utility.Color;
 import utility.Vector;
 
@@ -26,13 +44,60 @@ import utility.Vector;
  */
 public class RayTracer {
 	// Static parameters
-	public static final Random rand = new Random();
 	public static final float epsilon = 1E-5F;
 
 	// Output image parameters
 	int imageWidth;
 	int imageHeight;
 
+	// Render parameters
+	int threadsNum;
+	int tileSize;
+	Sampler sampler; // the source of the pixel and shadow samples
+	int packetSize; // the number of primary rays traced together, 0 traces them one by one
+	PacketKernel packetKernel; // the intersection tests of the packets, null when not used
+	int wavefrontSize; // the number of primary rays traced breadth first together, 0 traces depth first
+	private boolean useWavefront;
+	String sampleMapFileName; // debug image of the samples taken per pixel
+	private long renderedPixels;
+	private int progressMarks;
+	private final AtomicLong totalSamples = new AtomicLong();
+	private final AtomicLong occluderCacheHits = new AtomicLong();
+	private final AtomicLong occluderCacheLookups = new AtomicLong();
+	private final AtomicLong secondaryRays = new AtomicLong();
+	private final AtomicLong prunedRays = new AtomicLong();
+	private PixelBuffer sampleMap;
+
+	// Progressive rendering. The samples of the pixels are taken in passes of
+	// doubling size (1, 1, 2, 4...) into a frame buffer, and the image of the
+	// samples taken so far is saved after every pass and every previewInterval
+	// seconds (0 disables it).
+	double previewInterval;
+	private FrameBuffer frameBuffer; // the sums of the passes, null when not rendering in passes
+	private int passFirst, passLast; // the samples of the pixels taken by the current pass
+	private final Object previewLock = new Object();
+
+	// Time budgeted rendering. The render has to be done timeBudget seconds
+	// after the program started (0 for no budget): the shadow rays and the
+	// recursion depth are lowered until a pass fits, and the passes take only
+	// the samples which fit before the deadline.
+	double timeBudget;
+	long startTime; // when the program started
+	private long deadline; // when the passes have to stop, 0 for no budget
+
+	// Scratch objects of every render thread
+	private final ThreadLocal<TraceContext> traceContexts = new ThreadLocal<TraceContext>() {
+		@Override
+		protected TraceContext initialValue() {
+			TraceContext context = new TraceContext(recursionsMaxLevel, scene.getStackSize(),
+					scene.lights.size() * shadowRaysNum * shadowRaysNum, packetKernel != null ? packetSize : 0);
+			if (useWavefront) {
+				context.wavefront = new WavefrontRenderer(RayTracer.this, wavefrontSize);
+			}
+			return context;
+		}
+	};
+
 	// Ray trace parameters
 	World scene;
 	Color backgroundColor;
@@ -40,6 +105,69 @@ public class RayTracer {
 	int recursionsMaxLevel;
 	int superSamplingLevel;
 
+	// Adaptive anti-aliasing parameters. Pixels start with a grid of
+	// adaptiveMinLevel^2 samples which is refined up to the super sampling level
+	// while the samples deviate more than the threshold. A threshold of 0
+	// disables it, a negative value means it was not set yet.
+	float adaptiveThreshold;
+	int adaptiveMinLevel;
+
+	// Path termination parameters. Reflected and refracted rays whose weight in
+	// the pixel color is below minContribution are not traced. From
+	// rouletteDepth on, rays lighter than 1 survive with a probability of their
+	// weight and are scaled up to keep the expected color (0 disables it).
+	float minContribution;
+	int rouletteDepth;
+
+	// Many lights parameter. With more lights than lightSamplesNum, every
+	// shading point takes lightSamplesNum lights picked by the light tree
+	// instead of all the lights (0 disables it).
+	int lightSamplesNum;
+
+	// Whether parsed and compiled scenes are cached next to the scene file, and
+	// meshes next to their mesh files
+	boolean useSceneCache;
+	File sceneDirectory; // the directory of the scene file, other files are relative to it
+
+	// The threads the tiles are rendered on when rendering for the server,
+	// shared with the other renders of the server. Null to render on a pool of
+	// threadsNum threads of this render.
+	TileScheduler tileScheduler;
+
+	// Distributed rendering. The tiles are rendered by the workers of
+	// workerAddresses instead of on the threads of this render (null to render
+	// here), and the scene is sent to them as its cache.
+	List<InetSocketAddress> workerAddresses;
+	final List<String[]> givenOptions = new ArrayList<String[]>(); // the name and value of every option set
+	String sceneFileName; // the absolute path of the scene file
+	SceneCache sceneCache; // the scene as it was parsed, when sent to workers
+	byte[] sceneKey; // the hash of the content of the scene file
+	// The hashes of the content of the files the scene reads, by name, so every
+	// file is hashed once a run
+	final Map<String, byte[]> contentHashes = new HashMap<String, byte[]>();
+	final List<String> sceneFiles = new ArrayList<String>(); // the files the scene reads (meshes), in order
+
+	// Checkpoints. The tiles done are written every checkpointInterval seconds
+	// (0 disables it) into a file next to the output image, and a render which
+	// is resumed takes the tiles done from it.
+	double checkpointInterval;
+	boolean resume;
+	private Checkpoint checkpoint; // the checkpoint of the render, null when not taken
+
+	// Images of more than maxHeapImage bytes are kept in a file mapped into
+	// memory next to the output image, instead of on the heap, so an image may
+	// be larger than the heap and the memory. The image is saved row by row.
+	long maxHeapImage;
+
+	// The png output. The rows are compressed at pngLevel (0 to 9) after the
+	// filter pngFilter (a png filter type or PngWriter.adaptiveFilter), in
+	// bands on all the threads, and are saved while the image is rendered when
+	// streamImage is set (not when rendering in passes).
+	int pngLevel;
+	int pngFilter;
+	boolean streamImage;
+	private ImageStream imageStream; // the rows saved while rendering, null when not streamed
+
 	/**
 	 * Custom exception for Ray Tracing errors.
 	 */
@@ -58,25 +186,72 @@ public class RayTracer {
 
 		try {
 
-			RayTracer tracer = new RayTracer();
-
-			// Default values:
-			tracer.imageWidth = 500;
-			tracer.imageHeight = 500;
+			RayTracer tracer = create();
+			tracer.startTime = System.currentTimeMillis();
+			int serverPort = 0;
+			int serverJobsNum = 2;
+			int serverScenesNum = 4;
+			int workerPort = 0;
+
+			// Options are given as "--name value" pairs, the rest of the arguments
+			// are positional
+			List<String> positional = new ArrayList<String>();
+			for (int i = 0; i < args.length; i++) {
+				if (!args[i].startsWith("--")) {
+					positional.add(args[i]);
+					continue;
+				}
+				String option = args[i].substring(2).toLowerCase();
+				if (i + 1 >= args.length)
+					throw new RayTracerException(String.format("Missing value for option --%s.", option));
+				String value = args[++i];
+
+				if (option.equals("server")) {
+					serverPort = Integer.parseInt(value);
+				} else if (option.equals("server-jobs")) {
+					serverJobsNum = Integer.parseInt(value);
+				} else if (option.equals("server-scenes")) {
+					serverScenesNum = Integer.parseInt(value);
+				} else if (option.equals("worker")) {
+					workerPort = Integer.parseInt(value);
+				} else if (option.equals("workers")) {
+					tracer.workerAddresses = TileCoordinator.parseAddresses(value);
+				} else {
+					tracer.parseOption(option, value);
+				}
+			}
+			tracer.checkOptions();
+
+			if (serverPort > 0) {
+				if (serverJobsNum < 1 || serverScenesNum < 1)
+					throw new RayTracerException("Server jobs and scenes numbers must be positive.");
+				new RenderServer(serverPort, tracer.threadsNum, serverJobsNum, serverScenesNum, tracer.useSceneCache)
+						.start();
+				return;
+			}
+			if (workerPort > 0) {
+				new TileWorker(workerPort, tracer.threadsNum).run();
+				return;
+			}
+			if (tracer.workerAddresses != null) {
+				if (tracer.previewInterval > 0 || tracer.timeBudget > 0)
+					throw new RayTracerException("Progressive and time budgeted renders are not distributed.");
+				if (tracer.sampleMapFileName != null)
+					throw new RayTracerException("A samples map is not made when rendering on workers.");
+			}
 
-			if (args.length < 2)
+			if (positional.size() < 2)
 				throw new RayTracerException(
 						"Not enough arguments provided. Please specify an input scene file and an output image file for rendering.");
-
 			String sceneFileName;
 			String outputFileName;
 
-			sceneFileName = args[0];
-			outputFileName = args[1];
+			sceneFileName = positional.get(0);
+			outputFileName = positional.get(1);
 
-			if (args.length > 3) {
-				tracer.imageWidth = Integer.parseInt(args[2]);
-				tracer.imageHeight = Integer.parseInt(args[3]);
+			if (positional.size() > 3) {
+				tracer.imageWidth = Integer.parseInt(positional.get(2));
+				tracer.imageHeight = Integer.parseInt(positional.get(3));
 			}
 
 			// Parse scene file:
@@ -94,77 +269,253 @@ public class RayTracer {
 		}
 	}
 
+	/**
+	 * Creates a ray tracer with the default values of the options.
+	 */
+	static RayTracer create() {
+		RayTracer tracer = new RayTracer();
+		tracer.imageWidth = 500;
+		tracer.imageHeight = 500;
+		tracer.threadsNum = Runtime.getRuntime().availableProcessors();
+		tracer.tileSize = 16;
+		tracer.packetSize = 0;
+		tracer.wavefrontSize = 0;
+		tracer.sampler = Samplers.create("random");
+		tracer.adaptiveThreshold = -1;
+		tracer.adaptiveMinLevel = 0;
+		tracer.minContribution = 1.0F / 512;
+		tracer.rouletteDepth = 0;
+		tracer.lightSamplesNum = 0;
+		tracer.previewInterval = 0;
+		tracer.timeBudget = 0;
+		tracer.checkpointInterval = 0;
+		tracer.resume = false;
+		tracer.useSceneCache = true;
+		tracer.maxHeapImage = 256L << 20;
+		tracer.pngLevel = 6;
+		tracer.pngFilter = PngWriter.adaptiveFilter;
+		tracer.streamImage = true;
+		return tracer;
+	}
+
+	/**
+	 * Sets an option of the render.
+	 *
+	 * @param option
+	 *            - The name of the option, without the leading "--"
+	 */
+	void parseOption(String option, String value) throws RayTracerException {
+		this.givenOptions.add(new String[] { option, value });
+		if (option.equals("threads")) {
+			this.threadsNum = Integer.parseInt(value);
+		} else if (option.equals("tile-size")) {
+			this.tileSize = Integer.parseInt(value);
+		} else if (option.equals("packet-size")) {
+			this.packetSize = Integer.parseInt(value);
+		} else if (option.equals("wavefront")) {
+			this.wavefrontSize = Integer.parseInt(value);
+		} else if (option.equals("adaptive")) {
+			this.adaptiveThreshold = Float.parseFloat(value);
+		} else if (option.equals("adaptive-min")) {
+			this.adaptiveMinLevel = Integer.parseInt(value);
+		} else if (option.equals("min-contribution")) {
+			this.minContribution = Float.parseFloat(value);
+		} else if (option.equals("rr-depth")) {
+			this.rouletteDepth = Integer.parseInt(value);
+		} else if (option.equals("light-samples")) {
+			this.lightSamplesNum = Integer.parseInt(value);
+		} else if (option.equals("progressive")) {
+			this.previewInterval = Double.parseDouble(value);
+		} else if (option.equals("time-budget")) {
+			this.timeBudget = Double.parseDouble(value);
+		} else if (option.equals("sampler")) {
+			this.sampler = Samplers.create(value.toLowerCase());
+			if (this.sampler == null)
+				throw new RayTracerException(String.format("Unknown sampler %s.", value));
+		} else if (option.equals("scene-cache")) {
+			if (!value.equalsIgnoreCase("on") && !value.equalsIgnoreCase("off"))
+				throw new RayTracerException("Scene cache must be on or off.");
+			this.useSceneCache = value.equalsIgnoreCase("on");
+		} else if (option.equals("checkpoint")) {
+			this.checkpointInterval = Double.parseDouble(value);
+		} else if (option.equals("resume")) {
+			if (!value.equalsIgnoreCase("on") && !value.equalsIgnoreCase("off"))
+				throw new RayTracerException("Resume must be on or off.");
+			this.resume = value.equalsIgnoreCase("on");
+		} else if (option.equals("sample-map")) {
+			this.sampleMapFileName = value;
+		} else if (option.equals("heap-image")) {
+			this.maxHeapImage = Long.parseLong(value) << 20;
+		} else if (option.equals("png-level")) {
+			this.pngLevel = Integer.parseInt(value);
+		} else if (option.equals("png-filter")) {
+			this.pngFilter = PngWriter.parseFilter(value);
+			if (this.pngFilter < 0)
+				throw new RayTracerException(String.format("Unknown png filter %s.", value));
+		} else if (option.equals("png-stream")) {
+			if (!value.equalsIgnoreCase("on") && !value.equalsIgnoreCase("off"))
+				throw new RayTracerException("Png stream must be on or off.");
+			this.streamImage = value.equalsIgnoreCase("on");
+		} else {
+			throw new RayTracerException(String.format("Unknown option --%s.", option));
+		}
+	}
+
+	/**
+	 * Checks the values of the options.
+	 */
+	void checkOptions() throws RayTracerException {
+		if (this.threadsNum < 1 || this.tileSize < 1)
+			throw new RayTracerException("Threads number and tile size must be positive.");
+		if (this.packetSize < 0 || this.wavefrontSize < 0)
+			throw new RayTracerException("Packet and wavefront sizes can not be negative.");
+		if (this.minContribution < 0 || this.rouletteDepth < 0)
+			throw new RayTracerException("Minimal contribution and roulette depth can not be negative.");
+		if (this.lightSamplesNum < 0)
+			throw new RayTracerException("Light samples can not be negative.");
+		if (this.previewInterval < 0)
+			throw new RayTracerException("Preview interval can not be negative.");
+		if (this.timeBudget < 0)
+			throw new RayTracerException("Time budget can not be negative.");
+		if (this.checkpointInterval < 0)
+			throw new RayTracerException("Checkpoint interval can not be negative.");
+		if (this.maxHeapImage < 0)
+			throw new RayTracerException("Heap image size can not be negative.");
+		if (this.pngLevel < 0 || this.pngLevel > 9)
+			throw new RayTracerException("Png level must be between 0 and 9.");
+		if ((this.checkpointInterval > 0 || this.resume) && (this.previewInterval > 0 || this.timeBudget > 0))
+			throw new RayTracerException("Checkpoints are not taken of progressive and time budgeted renders.");
+	}
+
+	/**
+	 * Renders the scene parsed by another ray tracer, instead of parsing it
+	 * again. The scene is shared, except for the camera (which is set up for
+	 * the image size of this ray tracer) and the shadow patterns of the lights
+	 * (which are taken from its sampler). The settings of the scene file are
+	 * copied, the options of this ray tracer take precedence as when parsing.
+	 *
+	 * @param parsed
+	 *            - A ray tracer which parsed a scene, with the default options
+	 */
+	void useScene(RayTracer parsed) {
+		this.scene = parsed.scene.copy();
+		this.sceneDirectory = parsed.sceneDirectory;
+		this.backgroundColor = parsed.backgroundColor;
+		this.shadowRaysNum = parsed.shadowRaysNum;
+		this.recursionsMaxLevel = parsed.recursionsMaxLevel;
+		this.superSamplingLevel = parsed.superSamplingLevel;
+		if (this.adaptiveThreshold < 0) {
+			this.adaptiveThreshold = parsed.adaptiveThreshold;
+		}
+		if (this.adaptiveMinLevel <= 0) {
+			this.adaptiveMinLevel = parsed.adaptiveMinLevel;
+		}
+		this.scene.camera.setAspectRatio((double) this.imageHeight / this.imageWidth);
+		this.scene.camera.setupCamera();
+		this.scene.createLightSamplers(this.shadowRaysNum, this.sampler);
+	}
+
 	/**
 	 * Parses the scene file and creates the scene.
 	 * 
 	 * @throws RayTracerException
 	 */
 	public void parseScene(String sceneFileName) throws IOException, RayTracerException {
-		FileReader fr = new FileReader(sceneFileName);
+		parseScene(sceneFileName, null);
+	}
 
-		BufferedReader r = new BufferedReader(fr);
-		String line = null;
-		int lineNum = 0;
+	/**
+	 * Same as parseScene(sceneFileName), with the scene taken from a cache
+	 * received from the coordinator of a distributed render instead of the file.
+	 *
+	 * @param received
+	 *            - The cache of the scene, or null to parse the file
+	 */
+	void parseScene(String sceneFileName, SceneCache received) throws IOException, RayTracerException {
+		long startTime = System.currentTimeMillis();
+		SceneParser parser = received == null ? new SceneParser(sceneFileName) : null;
 		this.scene = new World();
+		this.sceneFileName = new File(sceneFileName).getAbsolutePath();
+		this.sceneDirectory = new File(sceneFileName).getAbsoluteFile().getParentFile();
 		System.out.println("Started parsing scene file " + sceneFileName);
 
-		try {
-			while ((line = r.readLine()) != null) {
-				line = line.trim();
-				++lineNum;
-
-				if (line.isEmpty() || (line.charAt(0) == '#')) { // This line in the scene file is a comment
-					continue;
-				} else {
-					String code = line.substring(0, 3).toLowerCase();
-					// Split according to white space characters:
-					String[] params = line.substring(3).trim().toLowerCase().split("\\s+");
-
-					if (code.equals("cam")) {
-						// Camera
-						this.scene.camera = new Camera(params);
-						this.scene.camera.setAspectRatio((double)this.imageHeight / this.imageWidth);
-						this.scene.camera.setupCamera();
-						System.out.println(String.format("Parsed camera parameters (line %d)", lineNum));
-					} else if (code.equals("set")) {
-						// Scene parameters
-						this.backgroundColor = new Color(Float.parseFloat(params[0]), Float.parseFloat(params[1]),
-								Float.parseFloat(params[2]));
-						this.shadowRaysNum = Integer.parseInt(params[3]);
-						this.recursionsMaxLevel = Integer.parseInt(params[4]);
-						this.superSamplingLevel = Integer.parseInt(params[5]);
-						System.out.println(String.format("Parsed general settings (line %d)", lineNum));
-					} else if (code.equals("mtl")) {
-						// Material
-						this.scene.materials.add(new Material(params));
-						System.out.println(String.format("Parsed material (line %d)", lineNum));
-					} else if (code.equals("sph")) {
-						// Sphere
-						this.scene.shapes.add(new Sphere(params));
-						System.out.println(String.format("Parsed sphere (line %d)", lineNum));
-					} else if (code.equals("pln")) {
-						// Plane
-						this.scene.shapes.add(new Plane(params));
-						System.out.println(String.format("Parsed plane (line %d)", lineNum));
-					} else if (code.equals("trg")) {
-						// Triangle
-						this.scene.shapes.add(new Triangle(params));
-						System.out.println(String.format("Parsed triangle (line %d)", lineNum));
-					} else if (code.equals("lgt")) {
-						// Light
-						this.scene.lights.add(new Light(params));
-						System.out.println(String.format("Parsed light (line %d)", lineNum));
-					} else {
-						System.out
-								.println(String.format("ERROR: Did not recognize object: %s (line %d)", code, lineNum));
-					}
+		// A cache of the same content replaces both the parsing and the building
+		// of the hierarchies. The scene is recorded into a cache also when it is
+		// sent to workers.
+		String cacheFileName = SceneCache.getFileName(sceneFileName);
+		byte[] contentHash = null;
+		SceneCache cache = received;
+		if (parser != null) {
+			contentHash = parser.getContentHash();
+		}
+		if (parser != null && this.useSceneCache) {
+			try {
+				cache = SceneCache.read(cacheFileName, contentHash, this.contentHashes);
+			} catch (IOException | RayTracerException | RuntimeException e) {
+				System.out.println(String.format("WARNING: Could not read scene cache %s, parsing the scene file",
+						cacheFileName));
+			}
+		}
+		boolean cached = cache != null;
+
+		if (cached) {
+			int lineNum = 0;
+			try {
+				for (int i = 0; i < cache.getObjectsNum(); i++) {
+					lineNum = cache.getObjectLine(i);
+					parseObject(cache.getObjectCode(i), cache.getObjectParams(i), lineNum);
 				}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new RayTracerException(String.format("Invalid format in line: %d.", lineNum));
+			} catch (NumberFormatException e) {
+				throw new RayTracerException(String.format("Invalid number in line: %d.", lineNum));
 			}
-		} catch (ArrayIndexOutOfBoundsException e) {
-			throw new RayTracerException(String.format("Invalid format in line: %d.", lineNum));
-		} finally {
-			r.close();
+			for (int i = 0; i < cache.getShapesNum(); i++) {
+				this.scene.shapes.add(cache.createShape(i));
+			}
+		} else {
+			if (this.useSceneCache || this.workerAddresses != null) {
+				cache = new SceneCache();
+			}
+			parseFile(parser, cache);
+			if (cache != null) {
+				cache.setLinesNum(parser.getLineNum());
+			}
+		}
+
+		// The number of objects parsed, printed once at the end (a line per
+		// object takes longer than parsing large scenes)
+		int spheresNum = 0, planesNum = 0, trianglesNum = 0;
+		for (Shape s : this.scene.shapes) {
+			if (s instanceof Sphere) {
+				spheresNum++;
+			} else if (s instanceof Plane) {
+				planesNum++;
+			} else {
+				trianglesNum++;
+			}
+		}
+		// The faces are kept once for every mesh, however many times it is placed
+		Set<Mesh> meshes = Collections.newSetFromMap(new IdentityHashMap<Mesh, Boolean>());
+		meshes.addAll(this.scene.meshDefinitions.values());
+		int instancesNum = 0;
+		for (Shape s : this.scene.meshes) {
+			if (s instanceof MeshInstance) {
+				instancesNum++;
+			} else {
+				meshes.add((Mesh) s);
+			}
+		}
+		long facesNum = 0;
+		for (Mesh mesh : meshes) {
+			facesNum += mesh.getFacesNum();
 		}
+		System.out.println(String.format(
+				"%s %d lines in %d milliseconds: %d materials, %d lights, %d spheres, %d planes, %d triangles, "
+						+ "%d meshes (%d faces), %d instances",
+				cached ? "Read cache of" : "Parsed", cached ? cache.getLinesNum() : parser.getLineNum(),
+				System.currentTimeMillis() - startTime, this.scene.materials.size(), this.scene.lights.size(),
+				spheresNum, planesNum, trianglesNum, meshes.size(), facesNum, instancesNum));
 
 		if (this.scene.camera == null) {
 			throw new RayTracerException("Camera settings are missing.");
@@ -172,7 +523,15 @@ public class RayTracer {
 		if (this.backgroundColor == null) {
 			throw new RayTracerException("General settings are missing.");
 		}
-		for (Shape s : this.scene.shapes) {
+		if (this.adaptiveThreshold < 0) {
+			this.adaptiveThreshold = 0;
+		}
+		if (this.adaptiveMinLevel <= 0) {
+			this.adaptiveMinLevel = 2;
+		}
+		List<Shape> shapes = new ArrayList<Shape>(this.scene.shapes);
+		shapes.addAll(this.scene.meshes);
+		for (Shape s : shapes) {
 			int mat = s.getMaterialIndex();
 			if (mat < 0 || mat >= this.scene.materials.size()) {
 				throw new RayTracerException(
@@ -182,62 +541,353 @@ public class RayTracer {
 
 		System.out.println("Finished parsing scene file " + sceneFileName);
 
+		startTime = System.currentTimeMillis();
+		this.scene.compile(this.shadowRaysNum, this.sampler, cached ? cache.getHierarchies() : null);
+		this.sceneKey = contentHash;
+		if (this.workerAddresses != null) {
+			this.sceneCache = cache;
+		}
+		if (this.useSceneCache && !cached) {
+			try {
+				cache.write(cacheFileName, contentHash, this.scene);
+				System.out.println("Wrote scene cache " + cacheFileName);
+			} catch (IOException e) {
+				System.out.println(String.format("WARNING: Could not write scene cache %s: %s", cacheFileName,
+						e.getMessage()));
+			}
+		}
+		System.out.println(String.format(
+				"Compiled scene in %d milliseconds, %s BVH with %d nodes (depth %d) over %d shapes, %d unbounded",
+				System.currentTimeMillis() - startTime, cached ? "read" : "built", this.scene.bvh.getNodesNum(),
+				this.scene.bvh.getDepth(), this.scene.bvh.getBoundedNum(), this.scene.bvh.getUnboundedNum()));
+		BVH opaque = this.scene.occlusion.getOpaqueBVH();
+		BVH transparent = this.scene.occlusion.getTransparentBVH();
+		System.out.println(String.format("Shadow casters: %d opaque, %d transparent",
+				opaque.getBoundedNum() + opaque.getUnboundedNum(),
+				transparent.getBoundedNum() + transparent.getUnboundedNum()));
+		for (int i = 0; i < this.scene.lightSamplers.length; i++) {
+			if (this.scene.lightSamplers[i].isPoint() && this.shadowRaysNum > 1) {
+				System.out.println(String.format("Light %d has no radius, using a single shadow ray for it", i + 1));
+			}
+		}
+		if (isSamplingLights()) {
+			System.out.println(String.format("Sampling %d of %d lights per shading point", this.lightSamplesNum,
+					this.scene.lights.size()));
+		}
+
 	}
 
 	/**
-	 * Renders the loaded scene and saves it to the specified file location.
+	 * Parses the lines of the scene file into the scene.
+	 * 
+	 * @param cache
+	 *            - The cache to record the objects into, or null
 	 */
-	public void renderScene(String outputFileName) {
-		long startTime = System.currentTimeMillis();
+	private void parseFile(SceneParser parser, SceneCache cache) throws IOException, RayTracerException {
+		double[] values = new double[16];
+		try {
+			while (parser.nextLine()) {
+				byte type;
+				if (parser.isCode("trg")) {
+					// Triangle
+					values = parser.getDoubles(values);
+					this.scene.shapes.add(new Triangle(values, parser.getParamsNum()));
+					type = CompiledScene.TRIANGLE;
+				} else if (parser.isCode("sph")) {
+					// Sphere
+					values = parser.getDoubles(values);
+					this.scene.shapes.add(new Sphere(values, parser.getParamsNum()));
+					type = CompiledScene.SPHERE;
+				} else if (parser.isCode("pln")) {
+					// Plane
+					values = parser.getDoubles(values);
+					this.scene.shapes.add(new Plane(values, parser.getParamsNum()));
+					type = CompiledScene.PLANE;
+				} else {
+					// Names of files keep their case
+					String code = parser.getCode();
+					boolean isMesh = parser.isCode("obj") || parser.isCode("msh") || parser.isCode("ins");
+					String[] params = isMesh ? parser.getRawParams() : parser.getParams();
+					parseObject(code, params, parser.getLineNum());
+					if (cache != null) {
+						cache.addObject(code, params, parser.getLineNum());
+						String dependency = parser.isCode("obj") ? getScenePath(params[0])
+								: parser.isCode("msh") ? getScenePath(params[1]) : null;
+						if (dependency != null) {
+							cache.addDependency(dependency, SceneParser.getContentHash(dependency, this.contentHashes));
+						}
+					}
+					continue;
+				}
+				if (cache != null) {
+					cache.addShape(type, values, parser.getParamsNum());
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new RayTracerException(String.format("Invalid format in line: %d.", parser.getLineNum()));
+		} catch (NumberFormatException e) {
+			throw new RayTracerException(String.format("Invalid number in line: %d.", parser.getLineNum()));
+		}
+	}
+
+	/**
+	 * Creates a scene object which is not a shape, or a mesh.
+	 */
+	private void parseObject(String code, String[] params, int lineNum) throws IOException, RayTracerException {
+		if (code.equals("cam")) {
+			// Camera
+			this.scene.camera = new Camera(params);
+			this.scene.camera.setAspectRatio((double)this.imageHeight / this.imageWidth);
+			this.scene.camera.setupCamera();
+		} else if (code.equals("set")) {
+			// Scene parameters
+			this.backgroundColor = new Color(Float.parseFloat(params[0]), Float.parseFloat(params[1]),
+					Float.parseFloat(params[2]));
+			this.shadowRaysNum = Integer.parseInt(params[3]);
+			this.recursionsMaxLevel = Integer.parseInt(params[4]);
+			this.superSamplingLevel = Integer.parseInt(params[5]);
+			// Optional adaptive anti-aliasing, the command line takes precedence
+			if (params.length > 6 && this.adaptiveThreshold < 0) {
+				this.adaptiveThreshold = Float.parseFloat(params[6]);
+			}
+			if (params.length > 7 && this.adaptiveMinLevel <= 0) {
+				this.adaptiveMinLevel = Integer.parseInt(params[7]);
+			}
+		} else if (code.equals("mtl")) {
+			// Material
+			this.scene.materials.add(new Material(params));
+		} else if (code.equals("lgt")) {
+			// Light
+			this.scene.lights.add(new Light(params));
+		} else if (code.equals("obj")) {
+			// Mesh, read from a Wavefront OBJ file
+			String fileName = getScenePath(params[0]);
+			try {
+				this.scene.meshes.add(readMesh(fileName, params));
+			} catch (IOException e) {
+				throw new RayTracerException(
+						String.format("Could not read mesh file %s (line %d): %s", fileName, lineNum, e.getMessage()));
+			}
+		} else if (code.equals("msh")) {
+			// Mesh definition, placed only by instances
+			String fileName = getScenePath(params[1]);
+			try {
+				this.scene.meshDefinitions.put(params[0],
+						readMesh(fileName, Arrays.copyOfRange(params, 1, params.length)));
+			} catch (IOException e) {
+				throw new RayTracerException(
+						String.format("Could not read mesh file %s (line %d): %s", fileName, lineNum, e.getMessage()));
+			}
+		} else if (code.equals("ins")) {
+			// Instance of a mesh definition
+			Mesh mesh = this.scene.meshDefinitions.get(params[0]);
+			if (mesh == null) {
+				throw new RayTracerException(String.format("Unknown mesh %s (line %d).", params[0], lineNum));
+			}
+			try {
+				this.scene.meshes.add(new MeshInstance(mesh, params));
+			} catch (SingularTransformException e) {
+				throw new RayTracerException(String.format("%s (line %d)", e.getMessage(), lineNum));
+			}
+		} else {
+			System.out.println(String.format("ERROR: Did not recognize object: %s (line %d)", code, lineNum));
+		}
+	}
 
-		// Create a byte array to hold the pixel data:
-		byte[] rgbData = new byte[this.imageWidth * this.imageHeight * 3];
+	/**
+	 * Reads a mesh file. With the scene cache on, the mesh is mapped from its
+	 * store, which is written first if it is missing or of another content.
+	 *
+	 * @param params
+	 *            - The parameters of the mesh line in the scene
+	 */
+	private Mesh readMesh(String fileName, String[] params) throws IOException, RayTracerException {
+		this.sceneFiles.add(fileName);
+		if (!this.useSceneCache) {
+			return ObjReader.read(fileName, params);
+		}
+		byte[] contentHash = SceneParser.getContentHash(fileName, this.contentHashes);
+		String storeFileName = MeshStore.getFileName(fileName);
+		MeshStore store = null;
+		try {
+			store = MeshStore.read(storeFileName, contentHash, params);
+		} catch (IOException | RuntimeException e) {
+			System.out.println(String.format("WARNING: Could not read mesh store %s, reading the mesh file",
+					storeFileName));
+		}
+		if (store == null) {
+			Mesh mesh = ObjReader.read(fileName, params);
+			try {
+				MeshStore.write(storeFileName, contentHash, mesh);
+				store = MeshStore.read(storeFileName, contentHash, params);
+			} catch (IOException e) {
+				System.out.println(String.format("WARNING: Could not write mesh store %s: %s", storeFileName,
+						e.getMessage()));
+			}
+			if (store == null) {
+				return mesh;
+			}
+		}
+		this.scene.meshStores.put(store.getMesh(), store);
+		return store.getMesh();
+	}
 
-		// Base looping over the pixels
-		System.out.print("Progress:\t|--------------------|\n");
-		System.out.print("\t\t ");
+	/**
+	 * @return The path of a file named in the scene, relative to the directory
+	 *         of the scene file
+	 */
+	private String getScenePath(String fileName) {
+		File file = new File(fileName);
+		return file.isAbsolute() ? fileName : new File(this.sceneDirectory, fileName).getPath();
+	}
 
-		for (int y = 0; y < this.imageHeight; y++) {
-			for (int x = 0; x < this.imageWidth; x++) {
-				// Initialize to a black color
-				Color clr = new Color(0.0F, 0.0F, 0.0F);
-
-				// Support for anti-aliasing
-				for (int i = 0; i < this.superSamplingLevel; i++) {
-					for (int j = 0; j < this.superSamplingLevel; j++) {
-						Ray ray;
-						double trace_x, trace_y;
-						float rand1, rand2;
-
-						// Adding random noise for anti-aliasing not including edges
-						rand1 = rand.nextFloat();
-						rand2 = rand.nextFloat();
-
-						trace_x = (x + (j + rand1) / this.superSamplingLevel) / this.imageWidth;
-						trace_y = (y + (i + rand2) / this.superSamplingLevel) / this.imageHeight;
-						ray = this.scene.camera.getRayPerspective(trace_x, trace_y);
-
-						// add the color (average later)
-						clr.add(this.traceColor(ray, 0));
-					}
+	/**
+	 * Renders the loaded scene and saves it to the specified file location. The
+	 * image is cut into tiles which are rendered in parallel on a work stealing
+	 * pool.
+	 *
+	 * @throws IOException
+	 *             If the image buffers could not be created or the outputs could
+	 *             not be saved
+	 */
+	public void renderScene(String outputFileName) throws IOException {
+		// Create a buffer to hold the pixel data:
+		PixelBuffer image = null;
+		FrameBuffer frameBuffer = null;
+		try {
+			try {
+				image = createImage(outputFileName);
+				this.sampleMap = this.sampleMapFileName != null ? createImage(this.sampleMapFileName) : null;
+				if (this.previewInterval > 0 || this.timeBudget > 0) {
+					frameBuffer = createFrameBuffer(outputFileName);
 				}
+			} catch (IOException e) {
+				throw new IOException("ERROR CREATING IMAGE: " + e.getMessage(), e);
+			}
+			renderScene(outputFileName, image, frameBuffer);
+		} finally {
+			if (image != null) {
+				image.close();
+			}
+			if (frameBuffer != null) {
+				frameBuffer.close();
+			}
+			if (this.sampleMap != null) {
+				this.sampleMap.close();
+				this.sampleMap = null;
+			}
+			if (this.imageStream != null) {
+				// The render failed
+				this.imageStream.abort();
+				this.imageStream = null;
+			}
+		}
+	}
 
-				clr.div((float) Math.pow(this.superSamplingLevel, 2));
+	/**
+	 * Creates the buffer of an image of the render, mapped from a file next to
+	 * the image if it is larger than maxHeapImage.
+	 */
+	private PixelBuffer createImage(String fileName) throws IOException {
+		PixelBuffer image = PixelBuffer.create(this.imageWidth, this.imageHeight, fileName + ".pixels",
+				this.maxHeapImage);
+		if (image.isMapped()) {
+			System.out.println(String.format("Keeping the %dx%d image of %s in %s.pixels", this.imageWidth,
+					this.imageHeight, fileName, fileName));
+		}
+		return image;
+	}
 
-				// Set the color of the output image
-				byte[] bClr = clr.getRGB();
-				rgbData[(y * this.imageWidth + x) * 3] = bClr[0];
-				rgbData[(y * this.imageWidth + x) * 3 + 1] = bClr[1];
-				rgbData[(y * this.imageWidth + x) * 3 + 2] = bClr[2];
-			}
+	/**
+	 * Creates the frame buffer of a render in passes, mapped from a file next to
+	 * the image if it is larger than maxHeapImage.
+	 */
+	private FrameBuffer createFrameBuffer(String fileName) throws IOException {
+		FrameBuffer frameBuffer = FrameBuffer.create(this.imageWidth, this.imageHeight, fileName + ".samples",
+				this.maxHeapImage);
+		if (frameBuffer.isMapped()) {
+			System.out.println(String.format("Keeping the samples of %s in %s.samples", fileName, fileName));
+		}
+		return frameBuffer;
+	}
+
+	/**
+	 * @param frameBuffer
+	 *            - The frame buffer of a render in passes, null for a render in
+	 *            a single pass
+	 */
+	private void renderScene(String outputFileName, PixelBuffer image, FrameBuffer frameBuffer) throws IOException {
+		long startTime = System.currentTimeMillis();
 
-			double precent = 100 * ((double) y / this.imageHeight);
-			if (precent % 5 == 0) {
-				System.out.print("=");
+		this.totalSamples.set(0);
+		this.occluderCacheHits.set(0);
+		this.occluderCacheLookups.set(0);
+		this.secondaryRays.set(0);
+		this.prunedRays.set(0);
+
+		setupTracing();
+		if ((this.previewInterval > 0 || this.timeBudget > 0) && this.adaptiveThreshold > 0) {
+			System.out.println("Adaptive anti-aliasing is not used when rendering in passes");
+		}
+
+		List<Tile> tiles = Tile.split(this.imageWidth, this.imageHeight, this.tileSize);
+		this.renderedPixels = 0;
+		this.progressMarks = 0;
+
+		System.out.println(String.format("Rendering %d tiles on %d threads with the %s sampler", tiles.size(),
+				this.threadsNum, this.sampler.getName()));
+		int shadowRaysNum = this.shadowRaysNum, recursionsMaxLevel = this.recursionsMaxLevel;
+		if (this.timeBudget > 0) {
+			// Part of the budget is left for saving the outputs
+			this.deadline = this.startTime + (long) (this.timeBudget * 1000 * 0.9);
+			fitTimeBudget();
+			if (this.shadowRaysNum != shadowRaysNum || this.recursionsMaxLevel != recursionsMaxLevel) {
+				System.out.println(String.format(
+						"Lowered to %d shadow rays and a recursion depth of %d to fit the time budget",
+						this.shadowRaysNum * this.shadowRaysNum, this.recursionsMaxLevel));
 			}
 		}
+		if (frameBuffer != null) {
+			renderPasses(tiles, image, frameBuffer, outputFileName);
+		} else {
+			List<Tile> left = tiles;
+			if (this.checkpointInterval > 0 || this.resume) {
+				left = openCheckpoint(tiles, image, outputFileName);
+			}
+			if (this.streamImage) {
+				this.imageStream = new ImageStream(image, outputFileName, this.pngLevel, this.pngFilter,
+						this.threadsNum);
+				this.imageStream.start();
+			}
+			System.out.print("Progress:\t|--------------------|\n");
+			System.out.print("\t\t ");
+			if (left != tiles) {
+				Set<Tile> leftTiles = Collections.newSetFromMap(new IdentityHashMap<Tile, Boolean>());
+				leftTiles.addAll(left);
+				long donePixels = 0;
+				for (Tile tile : tiles) {
+					if (!leftTiles.contains(tile)) {
+						donePixels += tile.getPixelsNum();
+						if (this.imageStream != null) {
+							this.imageStream.tileDone(tile);
+						}
+					}
+				}
+				advanceProgress(donePixels);
+			}
 
-		System.out.print("\nDone.\n");
+			ForkJoinPool pool = this.tileScheduler == null ? new ForkJoinPool(this.threadsNum) : null;
+			try {
+				renderTiles(left, image, pool);
+			} finally {
+				if (pool != null) {
+					pool.shutdown();
+				}
+				closeCheckpoint();
+			}
+
+			System.out.print("\nDone.\n");
+		}
 
 		long endTime = System.currentTimeMillis();
 		Long renderTime = endTime - startTime;
@@ -246,46 +896,866 @@ public class RayTracer {
 		// Rendering speed will not affect your score,
 		// unless it is exceptionally slow (more than a couple of minutes)
 		System.out.println("Finished rendering scene in " + renderTime.toString() + " milliseconds.");
+		System.out.println(String.format("Average of %.2f samples per pixel",
+				(double) this.totalSamples.get() / ((long) this.imageWidth * this.imageHeight)));
+		if (this.occluderCacheLookups.get() > 0) {
+			System.out.println(String.format("Shadow occluder cache: %d hits of %d lookups (%.1f%%)",
+					this.occluderCacheHits.get(), this.occluderCacheLookups.get(),
+					100.0 * this.occluderCacheHits.get() / this.occluderCacheLookups.get()));
+		}
+		if (this.secondaryRays.get() > 0) {
+			System.out.println(String.format("Terminated %d of %d secondary rays (%.1f%%)", this.prunedRays.get(),
+					this.secondaryRays.get(), 100.0 * this.prunedRays.get() / this.secondaryRays.get()));
+		}
 
-		// This is already implemented, and should work without adding any code.
-		saveImage(this.imageWidth, rgbData, outputFileName);
+		// A streamed image was compressed while it was rendered and only has to
+		// be finished, otherwise the whole image is compressed now
+		if (this.imageStream != null) {
+			try {
+				this.imageStream.finish();
+			} catch (IOException e) {
+				throw new IOException("ERROR SAVING FILE: " + e.getMessage(), e);
+			}
+			this.imageStream = null;
+		} else {
+			saveImage(image, outputFileName);
+		}
+
+		System.out.println(String.format("Saved file %s in %d milliseconds after the render", outputFileName,
+				System.currentTimeMillis() - endTime));
 
-		System.out.println("Saved file " + outputFileName);
+		if (this.sampleMap != null) {
+			saveImage(this.sampleMap, this.sampleMapFileName);
+			System.out.println("Saved samples map " + this.sampleMapFileName);
+		}
+
+		if (this.checkpoint != null) {
+			// The image is saved, the render does not have to be resumed
+			this.checkpoint.delete();
+			this.checkpoint = null;
+		}
 
+		if (this.timeBudget > 0) {
+			writeBudgetReport(outputFileName, frameBuffer, shadowRaysNum, recursionsMaxLevel);
+			this.deadline = 0;
+		}
 	}
 
-	////////////// FUNCTIONS TO SAVE IMAGES IN PNG FORMAT /////////////
-	///////////////////////////////////////////////////////////////////
+	/**
+	 * Opens the checkpoint of the render, reading the tiles done from it when
+	 * resuming.
+	 *
+	 * @param image
+	 *            - Receives the tiles done
+	 * @return The tiles left to render
+	 */
+	private List<Tile> openCheckpoint(List<Tile> tiles, PixelBuffer image, String outputFileName) {
+		String fileName = Checkpoint.getFileName(outputFileName);
+		List<Tile> left = tiles;
+		try {
+			Checkpoint checkpoint = new Checkpoint(fileName, getRenderKey(), image, this.sampleMap);
+			if (this.resume) {
+				long[] samples = new long[1];
+				Set<Tile> done = Collections.newSetFromMap(new IdentityHashMap<Tile, Boolean>());
+				done.addAll(checkpoint.read(tiles, samples));
+				left = new ArrayList<Tile>();
+				for (Tile tile : tiles) {
+					if (!done.contains(tile)) {
+						left.add(tile);
+					}
+				}
+				this.totalSamples.addAndGet(samples[0]);
+				System.out.println(String.format("Resumed %d of %d tiles from checkpoint %s", done.size(),
+						tiles.size(), fileName));
+			}
+			checkpoint.open(this.checkpointInterval > 0 ? this.checkpointInterval : 60);
+			this.checkpoint = checkpoint;
+		} catch (IOException | RayTracerException e) {
+			System.out.println(String.format("WARNING: Could not use checkpoint %s: %s", fileName, e.getMessage()));
+		}
+		return left;
+	}
 
-	/*
-	 * Saves RGB data as an image in png format to the specified location.
+	private void closeCheckpoint() {
+		if (this.checkpoint != null) {
+			try {
+				this.checkpoint.close();
+			} catch (IOException e) {
+				System.out.println(String.format("WARNING: Could not write checkpoint: %s", e.getMessage()));
+			}
+		}
+	}
+
+	/**
+	 * @return A key of what the pixels of the render depend on: the content of
+	 *         the scene file and of the files it reads, the image and the
+	 *         options which change the pixels
 	 */
-	public static void saveImage(int width, byte[] rgbData, String fileName) {
+	private byte[] getRenderKey() throws IOException, RayTracerException {
+		StringBuilder render = new StringBuilder();
+		render.append(this.imageWidth).append('x').append(this.imageHeight)
+				.append(' ').append(this.tileSize).append(' ').append(this.sampleMap != null);
+		for (String[] option : this.givenOptions) {
+			// The options which change only how the pixels are computed or saved
+			if (!Arrays.asList("threads", "packet-size", "wavefront", "scene-cache", "checkpoint", "resume",
+					"sample-map", "heap-image", "png-level", "png-filter", "png-stream").contains(option[0])) {
+				render.append(' ').append(option[0]).append('=').append(option[1]);
+			}
+		}
+		MessageDigest digest = SceneParser.createDigest();
+		digest.update(this.sceneKey);
+		for (String fileName : this.sceneFiles) {
+			digest.update(SceneParser.getContentHash(fileName, this.contentHashes));
+		}
+		digest.update(render.toString().getBytes(StandardCharsets.UTF_8));
+		return digest.digest();
+	}
+
+	/**
+	 * Chooses how the rays are traced (one by one, in packets or breadth first)
+	 * for the options of the render.
+	 */
+	void setupTracing() {
+		this.packetKernel = null;
+		this.useWavefront = this.wavefrontSize > 0 && !isAdaptive();
+		if (this.wavefrontSize > 0) {
+			System.out.println(this.useWavefront
+					? String.format("Tracing rays breadth first, %d primary rays at a time", this.wavefrontSize)
+					: "Rays are traced depth first with adaptive anti-aliasing");
+		}
+		if (this.packetSize > 0) {
+			if (isAdaptive()) {
+				System.out.println("Primary rays are traced one by one with adaptive anti-aliasing");
+			} else {
+				this.packetKernel = PacketKernel.create();
+				System.out.println(String.format("Tracing primary rays in packets of %d with the %s kernel",
+						this.packetSize, this.packetKernel.getName()));
+			}
+		}
+	}
+
+	/**
+	 * Renders the tiles on the pool, on the tile scheduler of the server or on
+	 * the workers.
+	 *
+	 * @param pool
+	 *            - The pool of this render, null when rendering on the scheduler
+	 */
+	private void renderTiles(List<Tile> tiles, PixelBuffer image, ForkJoinPool pool) {
+		if (tiles.isEmpty()) {
+			return;
+		}
+		if (this.tileScheduler != null) {
+			this.tileScheduler.render(this, tiles, image);
+		} else if (this.workerAddresses != null) {
+			new TileCoordinator(this, this.workerAddresses).render(tiles, image, pool);
+		} else {
+			pool.invoke(new TileTask(this, tiles, 0, tiles.size(), image));
+		}
+	}
+
+	/**
+	 * Renders the image in passes into a frame buffer. Every pass takes the next
+	 * samples of every pixel (as many as all the passes before it). The samples
+	 * of every pixel are added in the same order as when not rendering in
+	 * passes, so the final image is the same.
+	 *
+	 * When rendering progressively, the image of the samples taken so far is
+	 * saved into the output file after every pass, and every previewInterval
+	 * seconds while a pass is rendered. A render which is stopped (the JVM shuts
+	 * down, by Ctrl+C) saves the image it got to.
+	 *
+	 * With a time budget, the passes take only the samples which the time
+	 * measured on the passes before says fit before the deadline, and the tiles
+	 * left when the deadline passes get no more samples (the first pass is
+	 * always completed, not to leave pixels with no samples).
+	 *
+	 * @param image
+	 *            - Receives the final image
+	 * @param frameBuffer
+	 *            - Receives the samples taken by every pixel
+	 */
+	private void renderPasses(List<Tile> tiles, PixelBuffer image, final FrameBuffer frameBuffer,
+			final String outputFileName) {
+		long startTime = System.currentTimeMillis();
+		this.frameBuffer = frameBuffer;
+		boolean isProgressive = this.previewInterval > 0;
+
+		Thread saveOnExit = new Thread() {
+			@Override
+			public void run() {
+				savePreview(frameBuffer, outputFileName);
+				System.out.println("\nStopped, saved the samples taken so far to " + outputFileName);
+			}
+		};
+		ScheduledExecutorService previews = null;
+		if (isProgressive) {
+			Runtime.getRuntime().addShutdownHook(saveOnExit);
+			previews = Executors.newSingleThreadScheduledExecutor();
+			long interval = (long) (this.previewInterval * 1000);
+			previews.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					savePreview(frameBuffer, outputFileName);
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+
+		int samplesNum = this.superSamplingLevel * this.superSamplingLevel;
+		long pixelsNum = (long) this.imageWidth * this.imageHeight;
+		double sampleTime = 0; // milliseconds per sample of a pixel, measured on the last pass
+		ForkJoinPool pool = this.tileScheduler == null ? new ForkJoinPool(this.threadsNum) : null;
 		try {
+			for (int pass = 1, first = 0; first < samplesNum; pass++) {
+				this.passFirst = first;
+				this.passLast = Math.min(samplesNum, Math.max(first + 1, first * 2));
+				if (this.deadline > 0 && first > 0) {
+					long fitting = (long) ((this.deadline - System.currentTimeMillis()) / (sampleTime * pixelsNum));
+					if (fitting <= 0) {
+						break;
+					}
+					this.passLast = (int) Math.min(this.passLast, first + fitting);
+				}
+				long passStartTime = System.currentTimeMillis();
+				renderTiles(tiles, image, pool);
+				sampleTime = Math.max(1E-9,
+						(double) (System.currentTimeMillis() - passStartTime) / (pixelsNum * (this.passLast - first)));
+				first = this.passLast;
+				if (isProgressive && first < samplesNum) {
+					// The last image is saved with the rest of the outputs
+					savePreview(frameBuffer, outputFileName);
+				}
+				System.out.println(String.format("Pass %d: %d of %d samples per pixel in %d milliseconds", pass,
+						first, samplesNum, System.currentTimeMillis() - startTime));
+				if (this.deadline > 0 && System.currentTimeMillis() >= this.deadline) {
+					break;
+				}
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+			if (previews != null) {
+				previews.shutdownNow();
+			}
+			if (isProgressive) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(saveOnExit);
+				} catch (IllegalStateException e) {
+					// The JVM is shutting down, the hook saves the samples
+				}
+			}
+			this.frameBuffer = null;
+		}
+		if (isProgressive) {
+			// A preview still being saved would be moved over the final image
+			try {
+				previews.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		frameBuffer.getRGB(image);
+		if (this.sampleMap != null) {
+			byte[] row = new byte[this.imageWidth * 3];
+			for (int y = 0; y < this.imageHeight; y++) {
+				for (int x = 0; x < this.imageWidth; x++) {
+					float level = (float) frameBuffer.getSamplesNum(x, y) / samplesNum;
+					new Color(level, level, level).clamp().getRGB(row, x * 3);
+				}
+				this.sampleMap.setRow(0, y, row, 0, row.length);
+			}
+		}
+	}
+
+	/**
+	 * Lowers the shadow rays and then the recursion depth of the render until a
+	 * sample of every pixel is expected to take at most half of the time left
+	 * to the deadline, leaving the rest to the next passes and to saving the
+	 * outputs. The time of a sample is measured by tracing a sample of every
+	 * 8th pixel on every axis.
+	 */
+	private void fitTimeBudget() {
+		long pixelsNum = (long) this.imageWidth * this.imageHeight;
+		measureSampleTime(); // the first measure also warms up the code, it is not used
+		while (true) {
+			double passTime = measureSampleTime() * pixelsNum / this.threadsNum;
+			if (passTime <= (this.deadline - System.currentTimeMillis()) / 2.0) {
+				break;
+			}
+			if (this.shadowRaysNum > 1) {
+				this.shadowRaysNum--;
+				this.scene.createLightSamplers(this.shadowRaysNum, this.sampler);
+			} else if (this.recursionsMaxLevel > 1) {
+				this.recursionsMaxLevel--;
+			} else {
+				break;
+			}
+		}
+	}
 
-			BufferedImage image = bytes2RGB(width, rgbData);
-			ImageIO.write(image, "png", new File(fileName));
+	/**
+	 * @return The milliseconds a single sample of a pixel takes on a thread
+	 */
+	private double measureSampleTime() {
+		TraceContext context = getTraceContext();
+		int samplesNum = this.superSamplingLevel * this.superSamplingLevel;
+		int pixelsNum = 0;
+		long startTime = System.nanoTime();
+		for (int y = Math.min(4, this.imageHeight - 1); y < this.imageHeight; y += 8) {
+			for (int x = Math.min(4, this.imageWidth - 1); x < this.imageWidth; x += 8) {
+				samplePixel(x, y, pixelKey(x, y, 0), 0, samplesNum, context);
+				pixelsNum++;
+			}
+		}
+		long time = System.nanoTime() - startTime;
+		// Not counted in the statistics of the render
+		context.occluderCache.hits = context.occluderCache.misses = 0;
+		context.secondaryRays = context.prunedRays = 0;
+		return time / 1E6 / Math.max(1, pixelsNum);
+	}
 
+	/**
+	 * Writes the settings a render with a time budget ended up using, into a
+	 * file next to the output image and to the console.
+	 *
+	 * @param frameBuffer
+	 *            - The samples taken by every pixel
+	 */
+	private void writeBudgetReport(String outputFileName, FrameBuffer frameBuffer, int shadowRaysNum,
+			int recursionsMaxLevel) {
+		int minSamplesNum = Integer.MAX_VALUE, maxSamplesNum = 0;
+		for (int y = 0; y < this.imageHeight; y++) {
+			for (int x = 0; x < this.imageWidth; x++) {
+				minSamplesNum = Math.min(minSamplesNum, frameBuffer.getSamplesNum(x, y));
+				maxSamplesNum = Math.max(maxSamplesNum, frameBuffer.getSamplesNum(x, y));
+			}
+		}
+		String report = String.format(
+				"Time budget: %.3f seconds%n" + "Finished in: %.3f seconds%n"
+						+ "Samples per pixel: %.2f on average, %d to %d of %d%n" + "Shadow rays: %d of %d%n"
+						+ "Recursion depth: %d of %d%n",
+				this.timeBudget, (System.currentTimeMillis() - this.startTime) / 1000.0,
+				(double) this.totalSamples.get() / ((long) this.imageWidth * this.imageHeight), minSamplesNum,
+				maxSamplesNum, this.superSamplingLevel * this.superSamplingLevel,
+				this.shadowRaysNum * this.shadowRaysNum, shadowRaysNum * shadowRaysNum, this.recursionsMaxLevel,
+				recursionsMaxLevel);
+		String reportFileName = outputFileName + ".report";
+		try {
+			Files.write(new File(reportFileName).toPath(), report.getBytes(StandardCharsets.UTF_8));
+			System.out.print(report);
+			System.out.println("Saved report " + reportFileName);
 		} catch (IOException e) {
 			System.out.println("ERROR SAVING FILE: " + e.getMessage());
 		}
+	}
+
+	/**
+	 * Saves the image of the samples taken so far. The image is written aside
+	 * and then moved over the output file, so a viewer never reads it half
+	 * written.
+	 */
+	private void savePreview(FrameBuffer frameBuffer, String outputFileName) {
+		synchronized (this.previewLock) {
+			File temp = new File(outputFileName + ".tmp");
+			try (PixelBuffer image = PixelBuffer.create(frameBuffer.getWidth(), frameBuffer.getHeight(),
+					outputFileName + ".tmp.pixels", this.maxHeapImage)) {
+				frameBuffer.getRGB(image);
+				writeImage(image, temp);
+				Files.move(temp.toPath(), new File(outputFileName).toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				System.out.println("ERROR SAVING FILE: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Renders the pixels of a single tile into the image buffer. Tiles never
+	 * overlap, so several threads can write into the same buffer.
+	 * 
+	 * @param tile
+	 *            - The tile to render
+	 * @param image
+	 *            - The buffer of the whole image
+	 */
+	public void renderTile(Tile tile, PixelBuffer image) {
+		TraceContext context = getTraceContext();
+		if (this.frameBuffer != null) {
+			renderTilePass(tile, context);
+			return;
+		}
+		long tileSamples = renderTile(tile, context);
+		image.setTile(tile, context.tileRGB);
+		if (this.sampleMap != null) {
+			this.sampleMap.setTile(tile, context.tileSamples);
+		}
+		tileRendered(tile, tileSamples);
+	}
+
+	/**
+	 * Renders the pixels of a single tile into the tile buffers of the context,
+	 * row by row: the colors into tileRGB, and the samples they took into
+	 * tileSamples when a samples map is made.
+	 *
+	 * @return The samples the pixels of the tile took
+	 */
+	long renderTile(Tile tile, TraceContext context) {
+		getTileRGB(tile, context);
+		if (context.wavefront != null) {
+			return renderTileWavefront(tile, context);
+		}
+		if (context.packet != null) {
+			return renderTilePackets(tile, context);
+		}
+		Color clr = context.pixelColor;
+		long tileSamples = 0;
+		float maxSamples = this.superSamplingLevel * this.superSamplingLevel;
+
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			for (int x = tile.x; x < tile.x + tile.width; x++) {
+				renderPixel(x, y, context, clr);
+				int pixel = ((y - tile.y) * tile.width + (x - tile.x)) * 3;
+
+				// Set the color of the output image
+				clr.getRGB(context.tileRGB, pixel);
+
+				tileSamples += context.samplesNum;
+				if (this.sampleMap != null) {
+					// Brighter pixels took more samples
+					float level = context.samplesNum / maxSamples;
+					context.tempColor.set(level, level, level).clamp().getRGB(context.tileSamples, pixel);
+				}
+			}
+		}
+		this.totalSamples.addAndGet(tileSamples);
+		collectStatistics(context);
+		return tileSamples;
+	}
+
+	/**
+	 * Adds the samples of the current pass of the pixels of a tile to their sums
+	 * in the frame buffer.
+	 */
+	private void renderTilePass(Tile tile, TraceContext context) {
+		if (this.deadline > 0 && this.passFirst > 0 && System.currentTimeMillis() >= this.deadline) {
+			// Out of time, the tile keeps the samples of the passes before
+			return;
+		}
+		float[] sums = getTileSums(tile, context);
+		this.frameBuffer.getTile(tile, sums);
+		int first = this.passFirst, last = this.passLast;
+		if (context.wavefront != null) {
+			traceTileWavefront(tile, first, last, sums, context);
+		} else if (context.packet != null) {
+			traceTilePackets(tile, first, last, sums, context);
+		} else {
+			int samplesNum = this.superSamplingLevel * this.superSamplingLevel;
+			for (int y = tile.y; y < tile.y + tile.height; y++) {
+				for (int x = tile.x; x < tile.x + tile.width; x++) {
+					int pixel = ((y - tile.y) * tile.width + (x - tile.x)) * 3;
+					long key = pixelKey(x, y, 0);
+					for (int k = first; k < last; k++) {
+						Color sample = samplePixel(x, y, key, k, samplesNum, context);
+						sums[pixel] += sample.getR();
+						sums[pixel + 1] += sample.getG();
+						sums[pixel + 2] += sample.getB();
+					}
+				}
+			}
+		}
+		this.frameBuffer.setTile(tile, sums, last - first);
+		this.totalSamples.addAndGet((long) tile.getPixelsNum() * (last - first));
+		collectStatistics(context);
+	}
+
+	/**
+	 * Renders a tile by tracing the primary rays of its samples in packets. The
+	 * samples of consecutive pixels fill the packets in order, and their colors
+	 * are summed per pixel in the context until the whole tile is traced.
+	 */
+	private long renderTilePackets(Tile tile, TraceContext context) {
+		float[] sums = getTileSums(tile, context);
+		int samplesNum = this.superSamplingLevel * this.superSamplingLevel;
+		traceTilePackets(tile, 0, samplesNum, sums, context);
+		return finishTile(tile, sums, samplesNum, context);
+	}
+
+	/**
+	 * Traces some of the samples of the pixels of a tile in packets, adding
+	 * their colors to the sums of the pixels.
+	 *
+	 * @param first
+	 *            - The first sample of every pixel to trace
+	 * @param last
+	 *            - The sample after the last one to trace
+	 */
+	private void traceTilePackets(Tile tile, int first, int last, float[] sums, TraceContext context) {
+		RayPacket packet = context.packet;
+		int samplesNum = this.superSamplingLevel * this.superSamplingLevel;
+		packet.clear();
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			for (int x = tile.x; x < tile.x + tile.width; x++) {
+				int pixel = (y - tile.y) * tile.width + (x - tile.x);
+				long key = pixelKey(x, y, 0);
+				for (int k = first; k < last; k++) {
+					double[] point = this.sampler.get2D(key, k, samplesNum, 0, context.point2D);
+					Ray ray = this.scene.camera.getRayPerspective((x + point[0]) / this.imageWidth,
+							(y + point[1]) / this.imageHeight, context.cameraRay);
+					int i = packet.add(ray);
+					packet.pixels[i] = pixel;
+					packet.sampleKeys[i] = key;
+					packet.sampleIndices[i] = k;
+					packet.sampleCounts[i] = samplesNum;
+					if (packet.isFull()) {
+						tracePacket(packet, sums, context);
+					}
+				}
+			}
+		}
+		tracePacket(packet, sums, context);
+	}
+
+	/**
+	 * Renders a tile with the wavefront renderer of the context. The primary
+	 * rays of the samples are queued in order, and traced whenever the queue is
+	 * full.
+	 */
+	private long renderTileWavefront(Tile tile, TraceContext context) {
+		float[] sums = getTileSums(tile, context);
+		int samplesNum = this.superSamplingLevel * this.superSamplingLevel;
+		traceTileWavefront(tile, 0, samplesNum, sums, context);
+		return finishTile(tile, sums, samplesNum, context);
+	}
+
+	/**
+	 * Same as traceTilePackets, with the wavefront renderer of the context.
+	 */
+	private void traceTileWavefront(Tile tile, int first, int last, float[] sums, TraceContext context) {
+		WavefrontRenderer wavefront = context.wavefront;
+		int samplesNum = this.superSamplingLevel * this.superSamplingLevel;
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			for (int x = tile.x; x < tile.x + tile.width; x++) {
+				int pixel = (y - tile.y) * tile.width + (x - tile.x);
+				long key = pixelKey(x, y, 0);
+				for (int k = first; k < last; k++) {
+					double[] point = this.sampler.get2D(key, k, samplesNum, 0, context.point2D);
+					Ray ray = this.scene.camera.getRayPerspective((x + point[0]) / this.imageWidth,
+							(y + point[1]) / this.imageHeight, context.cameraRay);
+					wavefront.addPrimary(ray, pixel, key, k, samplesNum);
+					if (wavefront.isFull()) {
+						wavefront.trace(sums, context);
+					}
+				}
+			}
+		}
+		if (!wavefront.isEmpty()) {
+			wavefront.trace(sums, context);
+		}
+	}
+
+	/**
+	 * Gets the sums of the colors of the pixels of a tile from the context,
+	 * zeroed. Takes 3 floats per pixel.
+	 */
+	private float[] getTileSums(Tile tile, TraceContext context) {
+		int pixelsNum = tile.getPixelsNum();
+		if (context.tileColors.length < pixelsNum * 3) {
+			context.tileColors = new float[pixelsNum * 3];
+		}
+		Arrays.fill(context.tileColors, 0, pixelsNum * 3, 0);
+		return context.tileColors;
+	}
+
+	/**
+	 * Makes the tile buffers of the context large enough for the pixels of a
+	 * tile, 3 bytes per pixel.
+	 */
+	private void getTileRGB(Tile tile, TraceContext context) {
+		int pixelsNum = tile.getPixelsNum();
+		if (context.tileRGB.length < pixelsNum * 3) {
+			context.tileRGB = new byte[pixelsNum * 3];
+			context.tileSamples = new byte[pixelsNum * 3];
+		}
+	}
+
+	/**
+	 * Writes the average colors of the pixels of a tile into the tile buffers
+	 * of the context, from the sums of their samples.
+	 *
+	 * @return The samples the pixels of the tile took
+	 */
+	private long finishTile(Tile tile, float[] sums, int samplesNum, TraceContext context) {
+		Color clr = context.pixelColor;
+		for (int pixel = 0; pixel < tile.getPixelsNum() * 3; pixel += 3) {
+			clr.set(sums[pixel], sums[pixel + 1], sums[pixel + 2]).div(samplesNum);
+			clr.getRGB(context.tileRGB, pixel);
+			if (this.sampleMap != null) {
+				context.tempColor.set(1, 1, 1).getRGB(context.tileSamples, pixel);
+			}
+		}
+		this.totalSamples.addAndGet((long) tile.getPixelsNum() * samplesNum);
+		collectStatistics(context);
+		return (long) tile.getPixelsNum() * samplesNum;
+	}
+
+	/**
+	 * Finds the first hits of all the rays in the packet together, shades every
+	 * ray from its hit and adds the colors to the sums of their pixels. Empties
+	 * the packet.
+	 */
+	private void tracePacket(RayPacket packet, float[] sums, TraceContext context) {
+		this.scene.bvh.getFirstIntersections(packet, this.packetKernel, context.stack);
+
+		TraceContext.Frame frame = context.frames[0];
+		Intersection hit = frame.intersection;
+		for (int i = 0; i < packet.size; i++) {
+			Ray ray = packet.getRay(i, context.cameraRay);
+			Color color = context.sampleColor;
+			if (packet.primitives[i] < 0) {
+				color.set(this.backgroundColor);
+			} else if (this.recursionsMaxLevel <= 0) {
+				color.set(0, 0, 0);
+			} else {
+				context.sampleKey = packet.sampleKeys[i];
+				context.sampleIndex = packet.sampleIndices[i];
+				context.sampleCount = packet.sampleCounts[i];
+				hit.primitive = packet.primitives[i];
+				hit.tValue = packet.tHit[i];
+				hit.face = packet.faces[i];
+				this.scene.compiled.setShape(hit);
+				hit.point.set(ray.getOrigin()).addScaled(ray.getDirection(), hit.tValue);
+				shadeIntersection(ray, hit, 1, 1, context, frame, color);
+			}
+			int pixel = packet.pixels[i] * 3;
+			sums[pixel] += color.getR();
+			sums[pixel + 1] += color.getG();
+			sums[pixel + 2] += color.getB();
+		}
+		packet.clear();
+	}
+
+	private void collectStatistics(TraceContext context) {
+		this.occluderCacheHits.addAndGet(context.occluderCache.hits);
+		this.occluderCacheLookups.addAndGet(context.occluderCache.hits + context.occluderCache.misses);
+		context.occluderCache.hits = context.occluderCache.misses = 0;
+		this.secondaryRays.addAndGet(context.secondaryRays);
+		this.prunedRays.addAndGet(context.prunedRays);
+		context.secondaryRays = context.prunedRays = 0;
+	}
+
+	/**
+	 * Adds the statistics of tiles rendered by a worker.
+	 */
+	void addStatistics(long samples, long occluderCacheHits, long occluderCacheLookups, long secondaryRays,
+			long prunedRays) {
+		this.totalSamples.addAndGet(samples);
+		this.occluderCacheHits.addAndGet(occluderCacheHits);
+		this.occluderCacheLookups.addAndGet(occluderCacheLookups);
+		this.secondaryRays.addAndGet(secondaryRays);
+		this.prunedRays.addAndGet(prunedRays);
+	}
+
+	/**
+	 * @return The statistics of the tiles rendered so far, in the order of
+	 *         addStatistics()
+	 */
+	long[] getStatistics() {
+		return new long[] { this.totalSamples.get(), this.occluderCacheHits.get(), this.occluderCacheLookups.get(),
+				this.secondaryRays.get(), this.prunedRays.get() };
+	}
+
+	private boolean isAdaptive() {
+		return this.adaptiveThreshold > 0 && this.adaptiveMinLevel < this.superSamplingLevel
+				&& this.previewInterval <= 0 && this.timeBudget <= 0;
+	}
+
+	/**
+	 * Calculates the color of a single pixel, averaging the super samples taken
+	 * inside it.
+	 */
+	public Color renderPixel(int x, int y) {
+		return renderPixel(x, y, getTraceContext(), new Color(0, 0, 0));
+	}
+
+	/**
+	 * Same as renderPixel(x, y), using the scratch objects of the given context
+	 * and writing the result into outColor.
+	 */
+	public Color renderPixel(int x, int y, TraceContext context, Color outColor) {
+		if (isAdaptive()) {
+			return renderPixelAdaptive(x, y, context, outColor);
+		}
+
+		// Initialize to a black color
+		outColor.set(0.0F, 0.0F, 0.0F);
+
+		// Support for anti-aliasing
+		int samplesNum = this.superSamplingLevel * this.superSamplingLevel;
+		long key = pixelKey(x, y, 0);
+		for (int k = 0; k < samplesNum; k++) {
+			outColor.add(samplePixel(x, y, key, k, samplesNum, context));
+		}
+		context.samplesNum = samplesNum;
+
+		return outColor.div((float) Math.pow(this.superSamplingLevel, 2));
+	}
+
+	/**
+	 * Adaptive anti-aliasing. The pixel is sampled with a coarse stratified grid
+	 * first, and the grid is refined (doubling its resolution up to the super
+	 * sampling level) only while the standard deviation of the samples on some
+	 * channel is above the threshold. Flat areas stop after the first grid, while
+	 * edges, shadow boundaries and noisy reflections get the full sampling. The
+	 * grids take the super sampling level squared samples in all at most: the
+	 * last one takes only the samples left, so a pixel never takes more
+	 * samples than without adaptive sampling.
+	 */
+	private Color renderPixelAdaptive(int x, int y, TraceContext context, Color outColor) {
+		double sumR = 0, sumG = 0, sumB = 0;
+		double sqrR = 0, sqrG = 0, sqrB = 0;
+		int samplesNum = 0;
+		int maxSamplesNum = this.superSamplingLevel * this.superSamplingLevel;
+		int level = this.adaptiveMinLevel;
+		double maxVariance = (double) this.adaptiveThreshold * this.adaptiveThreshold;
+
+		for (int pass = 0;; pass++) {
+			// Every refinement is a new set of samples for the sampler
+			long key = pixelKey(x, y, pass);
+			int count = Math.min(level * level, maxSamplesNum - samplesNum);
+			for (int k = 0; k < count; k++) {
+				Color sample = samplePixel(x, y, key, k, count, context);
+				sumR += sample.getR();
+				sumG += sample.getG();
+				sumB += sample.getB();
+				sqrR += sample.getR() * sample.getR();
+				sqrG += sample.getG() * sample.getG();
+				sqrB += sample.getB() * sample.getB();
+			}
+			samplesNum += count;
+
+			if (samplesNum >= maxSamplesNum) {
+				break;
+			}
+			double variance = Math.max(sqrR / samplesNum - (sumR / samplesNum) * (sumR / samplesNum),
+					Math.max(sqrG / samplesNum - (sumG / samplesNum) * (sumG / samplesNum),
+							sqrB / samplesNum - (sumB / samplesNum) * (sumB / samplesNum)));
+			if (variance <= maxVariance) {
+				break;
+			}
+			level = Math.min(level * 2, this.superSamplingLevel);
+		}
+		context.samplesNum = samplesNum;
+
+		return outColor.set((float) (sumR / samplesNum), (float) (sumG / samplesNum), (float) (sumB / samplesNum));
+	}
+
+	/**
+	 * Traces a single sample of a pixel, placed by the sampler.
+	 * 
+	 * @param key
+	 *            - Identifies the set of samples of the pixel
+	 * @param index
+	 *            - The index of the sample in the set
+	 * @param count
+	 *            - The number of samples in the set
+	 * @return The color of the sample, held by the context
+	 */
+	private Color samplePixel(int x, int y, long key, int index, int count, TraceContext context) {
+		double trace_x, trace_y;
+		double[] point = this.sampler.get2D(key, index, count, 0, context.point2D);
+		context.sampleKey = key;
+		context.sampleIndex = index;
+		context.sampleCount = count;
+
+		trace_x = (x + point[0]) / this.imageWidth;
+		trace_y = (y + point[1]) / this.imageHeight;
+		Ray ray = this.scene.camera.getRayPerspective(trace_x, trace_y, context.cameraRay);
+
+		return this.traceColor(ray, 0, context, context.sampleColor);
+	}
+
+	/**
+	 * The sampler key of a set of samples of a pixel.
+	 */
+	long pixelKey(int x, int y, int pass) {
+		return (((long) y * this.imageWidth + x) << 4) + pass;
+	}
+
+	/**
+	 * Gets the scratch objects of the calling thread, creating them on the first
+	 * call.
+	 */
+	public TraceContext getTraceContext() {
+		return this.traceContexts.get();
+	}
+
+	/**
+	 * Drops the scratch objects of the calling thread, once it is done with the
+	 * tiles of this tracer. The threads of the server render for other tracers
+	 * after this one, and the scratch objects (the wavefront renderer) hold the
+	 * tracer, so they would keep it and its scene alive for as long as the
+	 * threads run.
+	 */
+	void releaseTraceContext() {
+		this.traceContexts.remove();
+	}
+
+	/**
+	 * Counts a tile of the image as done, on the progress bar, in the checkpoint
+	 * and in the image stream.
+	 *
+	 * @param samples
+	 *            - The samples the pixels of the tile took, 0 if not known
+	 */
+	void tileRendered(Tile tile, long samples) {
+		advanceProgress(tile.getPixelsNum());
+		if (this.checkpoint != null) {
+			this.checkpoint.add(tile, samples);
+		}
+		if (this.imageStream != null) {
+			this.imageStream.tileDone(tile);
+		}
+	}
 
+	/**
+	 * Updates the progress bar after some pixels were rendered, prints a mark for
+	 * every 5% of the image.
+	 */
+	private synchronized void advanceProgress(long pixelsNum) {
+		this.renderedPixels += pixelsNum;
+		int marks = (int) (20L * this.renderedPixels / ((long) this.imageWidth * this.imageHeight));
+		while (this.progressMarks < marks) {
+			System.out.print("=");
+			this.progressMarks++;
+		}
 	}
 
+	////////////// FUNCTIONS TO SAVE IMAGES IN PNG FORMAT /////////////
+	///////////////////////////////////////////////////////////////////
+
 	/*
-	 * Producing a BufferedImage that can be saved as PNG from a byte array of RGB
-	 * values.
+	 * Saves an image buffer in png format to the specified location, row by
+	 * row, so the image is never copied whole.
 	 */
-	public static BufferedImage bytes2RGB(int width, byte[] buffer) {
-		int height = buffer.length / width / 3;
-		ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_sRGB);
-		ColorModel cm = new ComponentColorModel(cs, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
-		SampleModel sm = cm.createCompatibleSampleModel(width, height);
-		DataBufferByte db = new DataBufferByte(buffer, width * height);
-		WritableRaster raster = Raster.createWritableRaster(sm, db, null);
-		BufferedImage result = new BufferedImage(cm, raster, false, null);
+	public void saveImage(PixelBuffer image, String fileName) throws IOException {
+		try {
+			writeImage(image, new File(fileName));
+		} catch (IOException e) {
+			throw new IOException("ERROR SAVING FILE: " + e.getMessage(), e);
+		}
+	}
 
-		return result;
+	private void writeImage(PixelBuffer image, File file) throws IOException {
+		byte[] row = new byte[image.getWidth() * 3];
+		try (PngWriter png = new PngWriter(new FileOutputStream(file), image.getWidth(), image.getHeight(),
+				this.pngLevel, this.pngFilter, this.threadsNum)) {
+			for (int y = 0; y < image.getHeight(); y++) {
+				image.getRow(0, y, row, 0, row.length);
+				png.writeRow(row);
+			}
+		}
 	}
 
 	////////////////////////// RAY TRACING /////////////////////////
@@ -302,73 +1772,241 @@ public class RayTracer {
 	 * @return The calculated color
 	 */
 	public Color traceColor(Ray ray, int currRecursionLevel) {
-		Color outColor = new Color(0, 0, 0);
+		return traceColor(ray, currRecursionLevel, getTraceContext(), new Color(0, 0, 0));
+	}
+
+	/**
+	 * Same as traceColor(ray, currRecursionLevel), but does not allocate: the
+	 * scratch objects of the level are taken from the context and the result is
+	 * written into outColor.
+	 * 
+	 * @param ray
+	 *            - The ray to search for
+	 * @param currRecursionLevel
+	 *            - The current recursion level (starts from 0)
+	 * @param context
+	 *            - The scratch objects of the calling thread
+	 * @param outColor
+	 *            - The color to write the result into
+	 * @return The outColor
+	 */
+	public Color traceColor(Ray ray, int currRecursionLevel, TraceContext context, Color outColor) {
+		return traceColor(ray, currRecursionLevel, 1, context, outColor);
+	}
+
+	/**
+	 * Traces a ray which is a part of a path with a given weight, the fraction
+	 * of its color that reaches the pixel. Reflected and refracted rays carry
+	 * the weight on, and are terminated once they can not visibly change the
+	 * pixel.
+	 * 
+	 * @param weight
+	 *            - The weight of the ray in the pixel color
+	 */
+	private Color traceColor(Ray ray, int currRecursionLevel, float weight, TraceContext context, Color outColor) {
+		outColor.set(0, 0, 0);
 
 		if (currRecursionLevel >= this.recursionsMaxLevel) {
 			return outColor;
 		}
+		TraceContext.Frame frame = context.frames[currRecursionLevel];
 		currRecursionLevel += 1;
 
-		Intersection firstIntersected = getFirstIntersection(ray);
+		Intersection firstIntersected = frame.intersection;
 
-		if (firstIntersected != null) {
+		if (getFirstIntersection(ray, firstIntersected, context)) {
+			return shadeIntersection(ray, firstIntersected, currRecursionLevel, weight, context, frame, outColor);
+		} else {
+			return outColor.add(this.backgroundColor);
+		}
+	}
 
-			Material mat = this.scene.materials.get(firstIntersected.shape.getMaterialIndex());
+	/**
+	 * Calculates the color seen by a ray at its first intersection.
+	 * 
+	 * @param firstIntersected
+	 *            - The first intersection of the ray, held by the frame
+	 * @param currRecursionLevel
+	 *            - The recursion level of the rays spawned from the intersection
+	 * @param frame
+	 *            - The frame of the recursion level of the ray
+	 * @return The outColor
+	 */
+	private Color shadeIntersection(Ray ray, Intersection firstIntersected, int currRecursionLevel, float weight,
+			TraceContext context, TraceContext.Frame frame, Color outColor) {
+		outColor.set(0, 0, 0);
 
-			Color baseColor = new Color(0, 0, 0);
-			Color refracColor = new Color(0, 0, 0);
-			Color reflecColor = new Color(0, 0, 0);
+		Material mat = this.scene.materials.get(firstIntersected.shape.getMaterialIndex());
 
-			// get refraction
-			if (mat.isRefractive()) {
-				Ray refractedRay = firstIntersected.shape.getRefractedRay(ray.getDirection(), firstIntersected.point,
-						1);
-				refracColor = traceColor(refractedRay, currRecursionLevel);
-			}
+		Color baseColor = frame.baseColor.set(0, 0, 0);
+		Color refracColor = frame.refracColor.set(0, 0, 0);
+		Color reflecColor = frame.reflecColor.set(0, 0, 0);
+
+		// get refraction
+		float refracWeight = weight * mat.getTranparency();
+		float refracScale = mat.isRefractive() ? getContinuation(refracWeight, currRecursionLevel, 0, context) : 0;
+		if (refracScale > 0) {
+			Ray refractedRay = firstIntersected.shape.getRefractedRay(ray.getDirection(), firstIntersected.point,
+					1, frame.refractedRay);
+			traceColor(refractedRay, currRecursionLevel, refracWeight * refracScale, context, refracColor);
+			refracColor.mul(refracScale);
+		}
 
-			// reflection
-			if (mat.isReflective()) {
-				Ray reflectedRay = firstIntersected.shape.getReflectedRay(ray.getDirection(), firstIntersected.point);
-				reflecColor = traceColor(reflectedRay, currRecursionLevel);
-				reflecColor.mul(mat.getReflection());
-			}
+		// reflection
+		Color reflection = mat.getReflection(frame.tempColor);
+		float reflecWeight = weight * reflection.getMax();
+		float reflecScale = mat.isReflective() ? getContinuation(reflecWeight, currRecursionLevel, 1, context) : 0;
+		if (reflecScale > 0) {
+			Ray reflectedRay = firstIntersected.shape.getReflectedRay(ray.getDirection(), firstIntersected.point,
+					frame.reflectedRay);
+			traceColor(reflectedRay, currRecursionLevel, reflecWeight * reflecScale, context, reflecColor);
+			reflecColor.mul(reflection).mul(reflecScale);
+		}
 
-			// get diffuse and specular
-			for (Light light : this.scene.lights) {
-				Color currColor = getBaseColor(light, ray, firstIntersected);
+		getLocalColor(ray, firstIntersected, mat, context, frame, baseColor);
 
-				// soft shadows
-				if (light.getShadowIntensity() != 0 && !currColor.isBlack()) {
-					float lightPass = getLightPassPrecent(firstIntersected, light);
-					currColor.mul(1 - light.getShadowIntensity() + light.getShadowIntensity() * lightPass);
-				}
-				baseColor.add(currColor);
-			}
-			baseColor.clamp();
+		outColor.add(baseColor.mul(1 - mat.getTranparency()));
+		outColor.add(refracColor.mul(mat.getTranparency()));
+		outColor.add(reflecColor);
+		outColor.clamp();
 
-			outColor.add(baseColor.mul(1 - mat.getTranparency()));
-			outColor.add(refracColor.mul(mat.getTranparency()));
-			outColor.add(reflecColor);
-			outColor.clamp();
+		return outColor;
+	}
 
-			return outColor;
-		} else {
-			return outColor.add(this.backgroundColor);
+	/**
+	 * Calculates the diffuse and specular color of all the lights at the
+	 * intersection, with their shadows.
+	 * 
+	 * @param baseColor
+	 *            - The color to add the result to, clamped after that
+	 * @return The baseColor
+	 */
+	Color getLocalColor(Ray ray, Intersection firstIntersected, Material mat, TraceContext context,
+			TraceContext.Frame frame, Color baseColor) {
+		// the normal facing the ray, shared by all the lights
+		Vector pointNormal = this.scene.compiled.getNormalAt(firstIntersected, frame.normal);
+		if (Vector.dot(ray.getDirection(), pointNormal) > 0) {
+			pointNormal.mul(-1);
 		}
 
+		if (isSamplingLights()) {
+			return getSampledLocalColor(ray, firstIntersected, mat, context, frame, baseColor);
+		}
+
+		// get diffuse and specular
+		for (int i = 0; i < this.scene.lights.size(); i++) {
+			Light light = this.scene.lights.get(i);
+			Color currColor = getBaseColor(light, ray, firstIntersected, mat, frame);
+
+			// soft shadows
+			if (light.getShadowIntensity() != 0 && !currColor.isBlack()) {
+				float lightPass = getLightPassPrecent(firstIntersected, light, i, i, context, frame);
+				currColor.mul(1 - light.getShadowIntensity() + light.getShadowIntensity() * lightPass);
+			}
+			baseColor.add(currColor);
+		}
+		return baseColor.clamp();
 	}
 
-	private Color getBaseColor(Light light, Ray ray, Intersection firstIntersected) {
-		Material mat = this.scene.materials.get(firstIntersected.shape.getMaterialIndex());
-		Color baseColor = mat.getDiffuse();
-		Color specularColor = mat.getSpecular();
+	/**
+	 * @return Whether the shading points take a few lights picked by the light
+	 *         tree instead of all the lights
+	 */
+	boolean isSamplingLights() {
+		return this.lightSamplesNum > 0 && this.lightSamplesNum < this.scene.lights.size();
+	}
 
-		Vector lightDir = new Vector(light.getPosition()).sub(firstIntersected.point).normalize();
-		Vector pointNormal = firstIntersected.shape.getNormalAt(firstIntersected.point);
+	/**
+	 * @return The number of lights every shading point takes, each with its own
+	 *         sampler dimensions
+	 */
+	private int getLightSlotsNum() {
+		return isSamplingLights() ? this.lightSamplesNum : this.scene.lights.size();
+	}
 
-		if (Vector.dot(ray.getDirection(), pointNormal) > 0) {
-			pointNormal.mul(-1);
+	/**
+	 * Same as getLocalColor, with lightSamplesNum lights picked by the light
+	 * tree. Every light is divided by the number of lights taken and by the
+	 * probability it was picked with, which keeps the expected color of all the
+	 * lights.
+	 */
+	private Color getSampledLocalColor(Ray ray, Intersection firstIntersected, Material mat, TraceContext context,
+			TraceContext.Frame frame, Color baseColor) {
+		LightTree tree = this.scene.lightTree;
+		int slotsNum = this.lightSamplesNum;
+		for (int k = 0; k < slotsNum; k++) {
+			// The dimensions of the picks follow the ones of the roulette
+			int dimension = 1 + this.recursionsMaxLevel * (slotsNum + 1) + frame.depth * slotsNum + k;
+			double u = this.sampler.get2D(context.sampleKey, context.sampleIndex, context.sampleCount, dimension,
+					context.point2D)[0];
+			int i = tree.sample(firstIntersected.point, frame.normal, u, frame.lightProbability);
+			if (i < 0) {
+				// No light in front of the point down the tree
+				continue;
+			}
+			Light light = this.scene.lights.get(i);
+			Color currColor = getBaseColor(light, ray, firstIntersected, mat, frame);
+
+			// soft shadows
+			if (light.getShadowIntensity() != 0 && !currColor.isBlack()) {
+				float lightPass = getLightPassPrecent(firstIntersected, light, i, k, context, frame);
+				currColor.mul(1 - light.getShadowIntensity() + light.getShadowIntensity() * lightPass);
+			}
+			baseColor.add(currColor.mul((float) (1 / (slotsNum * frame.lightProbability[0]))));
+		}
+		return baseColor.clamp();
+	}
+
+	/**
+	 * Decides if a reflected or refracted ray is traced, by its weight in the
+	 * pixel color.
+	 * 
+	 * @param weight
+	 *            - The weight of the ray
+	 * @param level
+	 *            - The recursion level of the ray
+	 * @param component
+	 *            - The component of the roulette sample to use (0 for
+	 *            refraction, 1 for reflection)
+	 * @return The factor to scale the traced color by, or 0.0 if the ray should
+	 *         not be traced
+	 */
+	float getContinuation(float weight, int level, int component, TraceContext context) {
+		if (level >= this.recursionsMaxLevel) {
+			return 0;
+		}
+		context.secondaryRays++;
+
+		if (weight < this.minContribution) {
+			context.prunedRays++;
+			return 0;
 		}
+		if (this.rouletteDepth > 0 && level >= this.rouletteDepth && weight < 1) {
+			// The dimensions after the ones of the lights, one per level
+			int dimension = 1 + this.recursionsMaxLevel * getLightSlotsNum() + level;
+			double u = this.sampler.get2D(context.sampleKey, context.sampleIndex, context.sampleCount, dimension,
+					context.point2D)[component];
+			if (u >= weight) {
+				context.prunedRays++;
+				return 0;
+			}
+			return 1 / weight;
+		}
+		return 1;
+	}
+
+	/**
+	 * Calculates the diffuse and specular color of a light at the intersection,
+	 * into the light color of the frame. Expects frame.normal to hold the normal
+	 * facing the ray.
+	 */
+	private Color getBaseColor(Light light, Ray ray, Intersection firstIntersected, Material mat,
+			TraceContext.Frame frame) {
+		Color baseColor = mat.getDiffuse(frame.lightColor);
+		Color specularColor = mat.getSpecular(frame.specularColor);
+
+		Vector lightDir = frame.lightDir.set(light.getPosition()).sub(firstIntersected.point).normalize();
+		Vector pointNormal = frame.normal;
 
 		// add diffuse color
 		float cosAngle = Vector.cos(lightDir, pointNormal);
@@ -379,7 +2017,8 @@ public class RayTracer {
 		baseColor.mul(cosAngle);
 
 		if (!specularColor.isBlack()) {
-			Vector lightReflect = new Vector(pointNormal).mul(2 * Vector.dot(lightDir, pointNormal)).sub(lightDir);
+			Vector lightReflect = frame.lightReflect.set(pointNormal).mul(2 * Vector.dot(lightDir, pointNormal))
+					.sub(lightDir);
 
 			// add specular color
 			cosAngle = Vector.cos(ray.getDirection(), lightReflect);
@@ -395,55 +2034,51 @@ public class RayTracer {
 		return baseColor;
 	}
 
-	private float getLightPassPrecent(Intersection firstIntersected, Light light) {
-
-		Vector up = new Vector(this.scene.camera.getUpDirection());
-		Vector N = new Vector(light.getPosition()).sub(firstIntersected.point);
-		Vector U = Vector.cross(N, up).normalize();
-		Vector V = Vector.cross(N, U).normalize();
-
-		Vector lightPos = new Vector(light.getPosition());
+	/**
+	 * @param slot
+	 *            - The light of the shading point, for the sampler dimensions
+	 */
+	private float getLightPassPrecent(Intersection firstIntersected, Light light, int lightIndex, int slot,
+			TraceContext context, TraceContext.Frame frame) {
+		LightSampler sampler = this.scene.lightSamplers[lightIndex];
+		int samplesNum = sampler.getSamplesNum();
+		Vector U = frame.U;
+		Vector V = frame.V;
+		double rotationU = 0, rotationV = 0;
+
+		if (!sampler.isPoint()) {
+			Vector up = this.scene.camera.getUpDirection();
+			Vector N = frame.N.set(light.getPosition()).sub(firstIntersected.point);
+			Vector.cross(N, up, U).normalize();
+			Vector.cross(N, U, V).normalize();
+
+			// A single shift of the precomputed pattern per point, taken from the
+			// dimensions of the pixel sample that belong to this light and depth
+			int dimension = 1 + frame.depth * getLightSlotsNum() + slot;
+			double[] rotation = this.sampler.get2D(context.sampleKey, context.sampleIndex, context.sampleCount,
+					dimension, context.point2D);
+			rotationU = rotation[0];
+			rotationV = rotation[1];
+		}
 
 		double lightLevel = 0;
 
-		for (int i = 0; i < this.shadowRaysNum; i++) {
-			for (int j = 0; j < this.shadowRaysNum; j++) {
-				double rand1 = this.shadowRaysNum > 1 ? rand.nextDouble() : 0;
-				double rand2 = this.shadowRaysNum > 1 ? rand.nextDouble() : 0;
-
-				Vector lightPoint = new Vector(lightPos);
-				lightPoint.add(new Vector(V)
-						.mul((i + rand1 - (this.shadowRaysNum) / 2) * (light.getRadius() / this.shadowRaysNum)));
-				lightPoint.add(new Vector(U)
-						.mul((j + rand2 - (this.shadowRaysNum) / 2) * (light.getRadius() / this.shadowRaysNum)));
+		for (int k = 0; k < samplesNum; k++) {
+			Vector lightPoint = sampler.getSamplePoint(k, U, V, rotationU, rotationV, frame.lightPoint);
 
-				Vector LightDir = new Vector(firstIntersected.point).sub(lightPoint);
-				double T = LightDir.norm();
+			Vector LightDir = frame.shadowDir.set(firstIntersected.point).sub(lightPoint);
+			double T = LightDir.norm();
 
-				Ray lightRay = new Ray(lightPoint, LightDir);
-				lightLevel += getLightLevel(lightRay, T);
-			}
+			Ray lightRay = frame.shadowRay.set(lightPoint, LightDir);
+			int cacheSlot = lightIndex * this.shadowRaysNum * this.shadowRaysNum + k;
+			lightLevel += getLightLevel(lightRay, T, context, cacheSlot);
 		}
 
-		return (float) (lightLevel / Math.pow(this.shadowRaysNum, 2));
+		return (float) (lightLevel / samplesNum);
 	}
 
-	private double getLightLevel(Ray lightRay, double T) {
-		double lightLevel = 1;
-
-		for (Shape s : this.scene.shapes) {
-			double t = s.hit(lightRay);
-
-			if (t > epsilon && t < T - epsilon) {
-				double trans = this.scene.materials.get(s.getMaterialIndex()).getTranparency();
-				// check if the hit object is blocking all light
-				if (trans == 0) {
-					return 0;
-				}
-				lightLevel *= trans;
-			}
-		}
-		return lightLevel;
+	private double getLightLevel(Ray lightRay, double T, TraceContext context, int slot) {
+		return this.scene.occlusion.getLightLevel(lightRay, T, context.stack, context.occluderCache, slot);
 	}
 
 	/**
@@ -455,25 +2090,28 @@ public class RayTracer {
 	 * @return The intersection found, null if nothing intersected
 	 */
 	public Intersection getFirstIntersection(Ray ray) {
-		double nearestHitValue = Double.MAX_VALUE;
-		Intersection result = new Intersection();
-
-		for (Shape shape : this.scene.shapes) {
-			double tempHitValue = shape.hit(ray);
-			// When the hit value is lower than epsilon (positive number)
-			// it means that the object is in an "unseen" position, thus ignored
-			// (either behind the camera or too close to it)
-			if (tempHitValue >= epsilon && tempHitValue < nearestHitValue) {
-				nearestHitValue = tempHitValue;
-				result.shape = shape;
-				result.tValue = nearestHitValue;
-			}
-		}
-		if (result.shape != null) {
-			result.point = new Vector(ray.getOrigin()).add(new Vector(ray.getDirection()).mul(result.tValue));
+		Intersection result = Intersection.createReusable();
+		if (getFirstIntersection(ray, result, getTraceContext())) {
 			return result;
 		}
 		return null;
 	}
 
+	/**
+	 * Same as getFirstIntersection(ray), but fills an existing intersection (which
+	 * must have a point vector).
+	 * 
+	 * @return true if an object was intersected
+	 */
+	public boolean getFirstIntersection(Ray ray, Intersection result, TraceContext context) {
+		// When the hit value is lower than epsilon (positive number)
+		// it means that the object is in an "unseen" position, thus ignored
+		// (either behind the camera or too close to it)
+		if (this.scene.bvh.getFirstIntersection(ray, result, context.stack)) {
+			result.point.set(ray.getOrigin()).addScaled(ray.getDirection(), result.tValue);
+			return true;
+		}
+		return false;
+	}
+
 }
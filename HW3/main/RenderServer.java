@@ -0,0 +1,235 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import main.RayTracer.RayTracerException;
+
+/**
+ * Renders images on request, in a process which stays up between the renders,
+ * so the renders do not pay for starting the JVM, loading the classes and
+ * warming up the JIT. Parsed scenes are kept for the next renders of the same
+ * scene file, by its path and modification time, the least recently used
+ * scene is dropped when there are more than scenesNum.
+ *
+ * The requests are taken over HTTP, on the loopback address only:
+ *
+ * GET or POST /render?scene=FILE&output=FILE[&width=W&height=H][&OPTION=VALUE...]
+ *
+ * The options are the options of the command line, without the leading "--",
+ * except for the threads, which are shared by all the renders. Up to jobsNum
+ * images are rendered at once, taking tiles in turn on the threads of a
+ * TileScheduler, the other requests wait for their turn. The response is a
+ * line on the render, or the error of the render with status 400 (a wrong
+ * request) or 500.
+ */
+public class RenderServer {
+	private final int port;
+	private final int jobsNum;
+	private final int scenesNum;
+	private final boolean useSceneCache;
+	private final TileScheduler scheduler;
+	private final LinkedHashMap<String, FutureTask<RayTracer>> scenes; // parsed scenes, least recently used first
+
+	/**
+	 * @param threadsNum
+	 *            - The number of threads to render on
+	 * @param jobsNum
+	 *            - The number of images rendered at once
+	 * @param scenesNum
+	 *            - The number of parsed scenes kept
+	 * @param useSceneCache
+	 *            - Whether scenes are parsed with the caches next to their files
+	 */
+	public RenderServer(int port, int threadsNum, int jobsNum, int scenesNum, boolean useSceneCache) {
+		this.port = port;
+		this.jobsNum = jobsNum;
+		this.scenesNum = scenesNum;
+		this.useSceneCache = useSceneCache;
+		this.scheduler = new TileScheduler(threadsNum);
+		this.scenes = new LinkedHashMap<String, FutureTask<RayTracer>>(16, 0.75F, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FutureTask<RayTracer>> eldest) {
+				return size() > RenderServer.this.scenesNum;
+			}
+		};
+	}
+
+	/**
+	 * Starts taking requests, in the background.
+	 */
+	public void start() throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port), 0);
+		server.createContext("/render", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleRender(exchange);
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(this.jobsNum));
+		server.start();
+		System.out.println(String.format("Listening on %s:%d, rendering %d images at once on %d threads",
+				server.getAddress().getHostString(), server.getAddress().getPort(), this.jobsNum,
+				this.scheduler.getThreadsNum()));
+	}
+
+	private void handleRender(HttpExchange exchange) throws IOException {
+		int status = 200;
+		String response;
+		try {
+			Map<String, String> params = new LinkedHashMap<String, String>();
+			parseQuery(exchange.getRequestURI().getRawQuery(), params);
+			parseQuery(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), params);
+			response = render(params);
+		} catch (RayTracerException e) {
+			status = 400;
+			response = e.getMessage();
+		} catch (NumberFormatException e) {
+			status = 400;
+			response = "Invalid number: " + e.getMessage();
+		} catch (IOException | RuntimeException e) {
+			status = 500;
+			response = e.toString();
+		}
+
+		byte[] body = (response + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Adds the parameters of a query string, or of a form posted in the body.
+	 */
+	private static void parseQuery(String query, Map<String, String> params) {
+		if (query == null || query.isEmpty()) {
+			return;
+		}
+		for (String pair : query.trim().split("&")) {
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int equals = pair.indexOf('=');
+			String name = equals < 0 ? pair : pair.substring(0, equals);
+			String value = equals < 0 ? "" : pair.substring(equals + 1);
+			params.put(URLDecoder.decode(name, StandardCharsets.UTF_8).toLowerCase(),
+					URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Renders the image of a request.
+	 *
+	 * @return The line of the response
+	 */
+	private String render(Map<String, String> params) throws IOException, RayTracerException {
+		long startTime = System.currentTimeMillis();
+		String sceneFileName = params.remove("scene");
+		String outputFileName = params.remove("output");
+		if (sceneFileName == null || outputFileName == null) {
+			throw new RayTracerException("Please specify a scene file and an output image file for rendering.");
+		}
+
+		RayTracer tracer = RayTracer.create();
+		tracer.startTime = startTime;
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			if (param.getKey().equals("width")) {
+				tracer.imageWidth = Integer.parseInt(param.getValue());
+			} else if (param.getKey().equals("height")) {
+				tracer.imageHeight = Integer.parseInt(param.getValue());
+			} else {
+				tracer.parseOption(param.getKey(), param.getValue());
+			}
+		}
+		tracer.checkOptions();
+		if (tracer.imageWidth < 1 || tracer.imageHeight < 1) {
+			throw new RayTracerException("Width and height must be positive.");
+		}
+		tracer.threadsNum = this.scheduler.getThreadsNum();
+		tracer.tileScheduler = this.scheduler;
+
+		boolean[] parsed = new boolean[1];
+		tracer.useScene(getScene(sceneFileName, parsed));
+		tracer.renderScene(outputFileName);
+		return String.format("Rendered %s into %s (%dx%d) in %d milliseconds, %s scene", sceneFileName,
+				outputFileName, tracer.imageWidth, tracer.imageHeight, System.currentTimeMillis() - startTime,
+				parsed[0] ? "parsed the" : "reused the parsed");
+	}
+
+	/**
+	 * Gets the ray tracer which parsed a scene file, parsing it if it was not
+	 * parsed since the file was last modified. Renders of a scene which is
+	 * being parsed wait for it instead of parsing it again.
+	 *
+	 * @param parsed
+	 *            - Receives whether the scene was parsed for this render
+	 */
+	private RayTracer getScene(String sceneFileName, boolean[] parsed) throws IOException, RayTracerException {
+		final File file = new File(sceneFileName).getCanonicalFile();
+		if (!file.isFile()) {
+			throw new RayTracerException(String.format("Scene file %s not found.", sceneFileName));
+		}
+		String key = file.getPath() + "@" + file.lastModified() + ":" + file.length();
+
+		FutureTask<RayTracer> scene;
+		synchronized (this.scenes) {
+			scene = this.scenes.get(key);
+			if (scene == null) {
+				scene = new FutureTask<RayTracer>(new Callable<RayTracer>() {
+					@Override
+					public RayTracer call() throws Exception {
+						RayTracer tracer = RayTracer.create();
+						tracer.useSceneCache = useSceneCache;
+						tracer.parseScene(file.getPath());
+						return tracer;
+					}
+				});
+				this.scenes.put(key, scene);
+				parsed[0] = true;
+			}
+		}
+		if (parsed[0]) {
+			scene.run();
+		}
+
+		try {
+			return scene.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while the scene was parsed.");
+		} catch (ExecutionException e) {
+			// Not kept, so the next render tries again
+			synchronized (this.scenes) {
+				this.scenes.remove(key, scene);
+			}
+			Throwable cause = e.getCause();
+			if (cause instanceof RayTracerException) {
+				throw (RayTracerException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package main;
+
+import geometry.BoundingBox;
+
+/**
+ * Intersects the rays of a packet one by one, using the scalar tests of the
+ * compiled scene.
+ */
+public class ScalarPacketKernel implements PacketKernel {
+
+	@Override
+	public void intersect(CompiledScene scene, int primitive, RayPacket packet) {
+		for (int i = 0; i < packet.size; i++) {
+			double t = scene.hit(primitive, packet.ox[i], packet.oy[i], packet.oz[i], packet.dx[i], packet.dy[i],
+					packet.dz[i], packet.tHit[i], packet.faces, i);
+			if (t >= RayTracer.epsilon && t < packet.tHit[i]) {
+				packet.tHit[i] = t;
+				packet.primitives[i] = primitive;
+			}
+		}
+	}
+
+	@Override
+	public boolean hitBox(double[] bounds, int offset, RayPacket packet) {
+		for (int i = 0; i < packet.size; i++) {
+			if (BoundingBox.hit(bounds[offset], bounds[offset + 1], bounds[offset + 2], bounds[offset + 3],
+					bounds[offset + 4], bounds[offset + 5], packet.ox[i], packet.oy[i], packet.oz[i],
+					packet.invDx[i], packet.invDy[i], packet.invDz[i], packet.tHit[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String getName() {
+		return "scalar";
+	}
+}
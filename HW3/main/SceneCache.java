@@ -0,0 +1,314 @@
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import geometry.Plane;
+import geometry.Shape;
+import geometry.Sphere;
+import geometry.Triangle;
+import main.RayTracer.RayTracerException;
+
+/**
+ * A binary copy of a parsed and compiled scene file, kept next to it. It holds
+ * the objects of the scene as they were parsed (the shapes as numbers, the
+ * rest as their parameters) and the acceleration structures built over them,
+ * so later renders of the same file skip both the parsing and the building.
+ * The cache is keyed by a hash of the content of the scene file, a cache of
+ * any other content (or version of the format) is ignored and written again.
+ * The files the scene reads (meshes) are read again, but the cache is also
+ * kept only while their content is the same.
+ *
+ * The file is read through a memory mapping, the arrays are copied out of it
+ * in bulk.
+ */
+public class SceneCache {
+	private static final int magic = 0x52545343; // "RTSC"
+	private static final int version = 3;
+
+	// The objects which are not shapes, in the order of the file: the code
+	// followed by the parameters, and the line of every object
+	private final List<String[]> objects = new ArrayList<String[]>();
+	private final List<Integer> objectLines = new ArrayList<Integer>();
+
+	// The shapes, with the parameters of every shape from its offset on
+	private int shapesNum;
+	private byte[] shapeTypes = new byte[16];
+	private int[] shapeOffsets = new int[17];
+	private double[] shapeParams = new double[16 * 10];
+
+	private int linesNum; // the lines of the scene file
+
+	// The other files the scene reads (meshes), with the hashes of their content
+	private final List<String> dependencies = new ArrayList<String>();
+	private final List<byte[]> dependencyHashes = new ArrayList<byte[]>();
+
+	private ByteBuffer hierarchies; // positioned at the hierarchies, when read from a file
+
+	/**
+	 * @return The name of the cache file of a scene file
+	 */
+	public static String getFileName(String sceneFileName) {
+		return sceneFileName + ".cache";
+	}
+
+	/**
+	 * Records an object which is not a shape.
+	 */
+	public void addObject(String code, String[] params, int lineNum) {
+		String[] object = new String[params.length + 1];
+		object[0] = code;
+		System.arraycopy(params, 0, object, 1, params.length);
+		this.objects.add(object);
+		this.objectLines.add(lineNum);
+	}
+
+	/**
+	 * Records a shape, by the numbers of its line.
+	 *
+	 * @param type
+	 *            - The type of the shape, as in CompiledScene
+	 */
+	public void addShape(byte type, double[] params, int paramsNum) {
+		if (this.shapesNum == this.shapeTypes.length) {
+			this.shapeTypes = Arrays.copyOf(this.shapeTypes, this.shapesNum * 2);
+			this.shapeOffsets = Arrays.copyOf(this.shapeOffsets, this.shapesNum * 2 + 1);
+		}
+		int offset = this.shapeOffsets[this.shapesNum];
+		if (offset + paramsNum > this.shapeParams.length) {
+			this.shapeParams = Arrays.copyOf(this.shapeParams, Math.max(offset + paramsNum, offset * 2));
+		}
+		System.arraycopy(params, 0, this.shapeParams, offset, paramsNum);
+		this.shapeTypes[this.shapesNum] = type;
+		this.shapeOffsets[++this.shapesNum] = offset + paramsNum;
+	}
+
+	public int getLinesNum() {
+		return linesNum;
+	}
+
+	public void setLinesNum(int linesNum) {
+		this.linesNum = linesNum;
+	}
+
+	/**
+	 * Records a file the scene reads, the cache is valid only as long as its
+	 * content is the same.
+	 *
+	 * @param hash
+	 *            - The hash of the content of the file
+	 */
+	public void addDependency(String fileName, byte[] hash) {
+		this.dependencies.add(fileName);
+		this.dependencyHashes.add(hash);
+	}
+
+	public int getObjectsNum() {
+		return objects.size();
+	}
+
+	public String getObjectCode(int i) {
+		return objects.get(i)[0];
+	}
+
+	public String[] getObjectParams(int i) {
+		String[] object = objects.get(i);
+		return Arrays.copyOfRange(object, 1, object.length);
+	}
+
+	public int getObjectLine(int i) {
+		return objectLines.get(i);
+	}
+
+	public int getShapesNum() {
+		return shapesNum;
+	}
+
+	/**
+	 * Creates a shape the same way it was created from the scene file.
+	 */
+	public Shape createShape(int i) {
+		int offset = this.shapeOffsets[i];
+		int paramsNum = this.shapeOffsets[i + 1] - offset;
+		double[] params = Arrays.copyOfRange(this.shapeParams, offset, offset + paramsNum);
+		switch (this.shapeTypes[i]) {
+		case CompiledScene.SPHERE:
+			return new Sphere(params, paramsNum);
+		case CompiledScene.PLANE:
+			return new Plane(params, paramsNum);
+		default:
+			return new Triangle(params, paramsNum);
+		}
+	}
+
+	/**
+	 * @return The acceleration structures, for World.compile(), or null if the
+	 *         cache was not read from a file
+	 */
+	public ByteBuffer getHierarchies() {
+		return hierarchies;
+	}
+
+	/**
+	 * Writes the cache with the hierarchies of the compiled world. The file is
+	 * written aside and then moved over the old one, so a cache is never seen
+	 * half written.
+	 *
+	 * @param key
+	 *            - The hash of the scene file content
+	 */
+	public void write(String fileName, byte[] key, World world) throws IOException {
+		File file = new File(fileName);
+		File temp = new File(fileName + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+			write(out, key, world);
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Same as write(fileName, key, world), into a stream.
+	 */
+	public void write(DataOutputStream out, byte[] key, World world) throws IOException {
+		out.writeInt(magic);
+		out.writeInt(version);
+		out.write(key);
+		out.writeInt(this.linesNum);
+
+		out.writeInt(this.dependencies.size());
+		for (int i = 0; i < this.dependencies.size(); i++) {
+			writeString(out, this.dependencies.get(i));
+			out.write(this.dependencyHashes.get(i));
+		}
+
+		out.writeInt(this.objects.size());
+		for (int i = 0; i < this.objects.size(); i++) {
+			String[] object = this.objects.get(i);
+			out.writeInt(this.objectLines.get(i));
+			out.writeInt(object.length);
+			for (String s : object) {
+				writeString(out, s);
+			}
+		}
+
+		out.writeInt(this.shapesNum);
+		out.write(this.shapeTypes, 0, this.shapesNum);
+		for (int i = 0; i <= this.shapesNum; i++) {
+			out.writeInt(this.shapeOffsets[i]);
+		}
+		for (int i = 0; i < this.shapeOffsets[this.shapesNum]; i++) {
+			out.writeDouble(this.shapeParams[i]);
+		}
+
+		world.writeHierarchies(out);
+	}
+
+	/**
+	 * Reads a cache file.
+	 *
+	 * @param key
+	 *            - The hash of the scene file content
+	 * @param hashes
+	 *            - The hashes of the files taken so far, by name, which the
+	 *            hashes of the files the scene reads are added to
+	 * @return The cache, or null if there is no cache file of this content
+	 */
+	public static SceneCache read(String fileName, byte[] key, Map<String, byte[]> hashes)
+			throws IOException, RayTracerException {
+		File file = new File(fileName);
+		if (!file.isFile()) {
+			return null;
+		}
+		ByteBuffer in;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (channel.size() < 8 + SceneParser.hashLength || channel.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		return read(in, key, hashes);
+	}
+
+	/**
+	 * Same as read(fileName, key, hashes), from a buffer holding what write()
+	 * wrote.
+	 *
+	 * @return The cache, or null if it is not of this content, or the files the
+	 *         scene reads are not the same
+	 */
+	public static SceneCache read(ByteBuffer in, byte[] key, Map<String, byte[]> hashes)
+			throws IOException, RayTracerException {
+		if (in.getInt() != magic || in.getInt() != version || !Arrays.equals(readHash(in), key)) {
+			return null;
+		}
+
+		SceneCache cache = new SceneCache();
+		cache.linesNum = in.getInt();
+
+		int dependenciesNum = in.getInt();
+		for (int i = 0; i < dependenciesNum; i++) {
+			String dependency = readString(in);
+			byte[] hash = readHash(in);
+			if (!new File(dependency).isFile() || !Arrays.equals(SceneParser.getContentHash(dependency, hashes), hash)) {
+				return null;
+			}
+			cache.dependencies.add(dependency);
+			cache.dependencyHashes.add(hash);
+		}
+		int objectsNum = in.getInt();
+		for (int i = 0; i < objectsNum; i++) {
+			cache.objectLines.add(in.getInt());
+			String[] object = new String[in.getInt()];
+			for (int j = 0; j < object.length; j++) {
+				object[j] = readString(in);
+			}
+			cache.objects.add(object);
+		}
+
+		cache.shapesNum = in.getInt();
+		cache.shapeTypes = new byte[cache.shapesNum];
+		in.get(cache.shapeTypes);
+		cache.shapeOffsets = new int[cache.shapesNum + 1];
+		in.asIntBuffer().get(cache.shapeOffsets);
+		in.position(in.position() + cache.shapeOffsets.length * Integer.BYTES);
+		cache.shapeParams = new double[cache.shapeOffsets[cache.shapesNum]];
+		in.asDoubleBuffer().get(cache.shapeParams);
+		in.position(in.position() + cache.shapeParams.length * Double.BYTES);
+
+		cache.hierarchies = in;
+		return cache;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readHash(ByteBuffer in) {
+		byte[] hash = new byte[SceneParser.hashLength];
+		in.get(hash);
+		return hash;
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
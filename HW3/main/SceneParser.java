@@ -0,0 +1,347 @@
+package main;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+import main.RayTracer.RayTracerException;
+
+/**
+ * Reads a scene file line by line, straight from a memory mapped file. Every
+ * line is split to its object code (the first 3 characters) and the positions
+ * of its parameters, which are parsed only when asked for. Numbers are parsed
+ * from the bytes without creating strings; the common case (up to 15 digits
+ * after the point) is exact, anything else falls back to Double.parseDouble,
+ * so the values are always the ones it would give.
+ *
+ * Also reads files in which the code is the first word of the line, however
+ * long (like the v and f lines of mesh files), keeping its first 3 characters.
+ */
+public class SceneParser {
+	// Powers of 10 which are exact doubles
+	private static final double[] powersOf10 = { 1E0, 1E1, 1E2, 1E3, 1E4, 1E5, 1E6, 1E7, 1E8, 1E9, 1E10, 1E11,
+			1E12, 1E13, 1E14, 1E15, 1E16, 1E17, 1E18, 1E19, 1E20, 1E21, 1E22 };
+	// The number of digits a long holds without overflow, and a double without
+	// rounding
+	private static final int maxDigits = 15;
+	// The length of a content hash, in bytes
+	static final int hashLength = 32;
+
+	private final MappedByteBuffer data;
+	private final int length;
+	private final boolean wordCodes; // the code is the first word, not the first 3 characters
+	private int position;
+	private int lineNum;
+
+	private final byte[] code = new byte[3];
+	private int paramsNum;
+	private int[] paramStarts = new int[16];
+	private int[] paramEnds = new int[16];
+
+	public SceneParser(String fileName) throws IOException, RayTracerException {
+		this(fileName, false);
+	}
+
+	/**
+	 * @param wordCodes
+	 *            - Whether the code of a line is its first word, instead of its
+	 *            first 3 characters
+	 */
+	public SceneParser(String fileName, boolean wordCodes) throws IOException, RayTracerException {
+		this.wordCodes = wordCodes;
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "r"); FileChannel channel = file.getChannel()) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new RayTracerException(String.format("Scene file %s is too large.", fileName));
+			}
+			this.length = (int) channel.size();
+			// The mapping stays valid after the channel is closed
+			this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, this.length);
+		}
+	}
+
+	/**
+	 * Moves to the next line which is not empty or a comment.
+	 *
+	 * @return false at the end of the file
+	 */
+	public boolean nextLine() {
+		while (this.position < this.length) {
+			this.lineNum++;
+			int start = skipSpaces(this.position);
+			int end = start;
+			while (end < this.length && this.data.get(end) != '\n') {
+				end++;
+			}
+			this.position = end + 1;
+
+			if (start == end || this.data.get(start) == '#') {
+				continue;
+			}
+			readLine(start, end);
+			return true;
+		}
+		return false;
+	}
+
+	private void readLine(int start, int end) {
+		// The code is the first 3 characters, even if no space follows them (or
+		// the first word)
+		int codeEnd = Math.min(start + 3, end);
+		if (this.wordCodes) {
+			codeEnd = start;
+			while (codeEnd < end && !isSpace(this.data.get(codeEnd))) {
+				codeEnd++;
+			}
+		}
+		for (int i = 0; i < 3; i++) {
+			this.code[i] = start + i < codeEnd ? toLowerCase(this.data.get(start + i)) : 0;
+		}
+
+		this.paramsNum = 0;
+		int i = skipSpaces(codeEnd);
+		while (i < end) {
+			int tokenEnd = i;
+			while (tokenEnd < end && !isSpace(this.data.get(tokenEnd))) {
+				tokenEnd++;
+			}
+			if (this.paramsNum == this.paramStarts.length) {
+				this.paramStarts = Arrays.copyOf(this.paramStarts, this.paramsNum * 2);
+				this.paramEnds = Arrays.copyOf(this.paramEnds, this.paramsNum * 2);
+			}
+			this.paramStarts[this.paramsNum] = i;
+			this.paramEnds[this.paramsNum] = tokenEnd;
+			this.paramsNum++;
+			i = skipSpaces(tokenEnd);
+		}
+	}
+
+	private int skipSpaces(int i) {
+		while (i < this.length && this.data.get(i) != '\n' && isSpace(this.data.get(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+	}
+
+	private static byte toLowerCase(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	/**
+	 * @return The SHA-256 digest of the whole content of the file, of
+	 *         hashLength bytes
+	 */
+	public byte[] getContentHash() {
+		MessageDigest digest = createDigest();
+		digest.update(this.data.duplicate().position(0).limit(this.length));
+		return digest.digest();
+	}
+
+	/**
+	 * @return The hash of getContentHash() of a file
+	 */
+	public static byte[] getContentHash(String fileName) throws IOException, RayTracerException {
+		return new SceneParser(fileName).getContentHash();
+	}
+
+	/**
+	 * Same as getContentHash(fileName), hashing every file once.
+	 *
+	 * @param hashes
+	 *            - The hashes of the files taken so far, by name, which the
+	 *            hash is added to
+	 */
+	public static byte[] getContentHash(String fileName, Map<String, byte[]> hashes)
+			throws IOException, RayTracerException {
+		byte[] hash = hashes.get(fileName);
+		if (hash == null) {
+			hash = getContentHash(fileName);
+			hashes.put(fileName, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * @return A SHA-256 digest, for the hashes which key the files kept between
+	 *         runs
+	 */
+	static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public int getLineNum() {
+		return lineNum;
+	}
+
+	/**
+	 * Checks if the object code of the line is the given (lower case) code.
+	 */
+	public boolean isCode(String objectCode) {
+		for (int i = 0; i < 3; i++) {
+			if (this.code[i] != (i < objectCode.length() ? objectCode.charAt(i) : 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getCode() {
+		StringBuilder result = new StringBuilder(3);
+		for (byte b : this.code) {
+			if (b != 0) {
+				result.append((char) (b & 0xFF));
+			}
+		}
+		return result.toString();
+	}
+
+	public int getParamsNum() {
+		return paramsNum;
+	}
+
+	/**
+	 * @return The parameters of the line as lower case strings
+	 */
+	public String[] getParams() {
+		String[] result = getRawParams();
+		for (int i = 0; i < this.paramsNum; i++) {
+			result[i] = result[i].toLowerCase();
+		}
+		return result;
+	}
+
+	/**
+	 * @return The parameters of the line as they are written, for names of
+	 *         files
+	 */
+	public String[] getRawParams() {
+		String[] result = new String[Math.max(1, this.paramsNum)];
+		result[0] = "";
+		for (int i = 0; i < this.paramsNum; i++) {
+			result[i] = getParam(i);
+		}
+		return result;
+	}
+
+	private String getParam(int index) {
+		byte[] bytes = new byte[this.paramEnds[index] - this.paramStarts[index]];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = this.data.get(this.paramStarts[index] + i);
+		}
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Parses all the parameters of the line as numbers.
+	 *
+	 * @param out
+	 *            - The array to write into, a larger one is created if it is too
+	 *            small
+	 * @return The array with the values
+	 */
+	public double[] getDoubles(double[] out) throws RayTracerException {
+		if (out.length < this.paramsNum) {
+			out = new double[this.paramsNum];
+		}
+		for (int i = 0; i < this.paramsNum; i++) {
+			out[i] = getDouble(i);
+		}
+		return out;
+	}
+
+	public double getDouble(int index) throws RayTracerException {
+		int i = this.paramStarts[index];
+		int end = this.paramEnds[index];
+		boolean negative = false;
+		if (i < end && (this.data.get(i) == '-' || this.data.get(i) == '+')) {
+			negative = this.data.get(i) == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0; // significant digits, leading zeros are not counted
+		int scale = 0; // the number of digits after the point
+		boolean point = false;
+		boolean any = false;
+		for (; i < end; i++) {
+			byte b = this.data.get(i);
+			if (b >= '0' && b <= '9') {
+				any = true;
+				if (mantissa != 0 || b != '0') {
+					if (++digits > maxDigits) {
+						return parseSlow(index);
+					}
+				}
+				mantissa = mantissa * 10 + (b - '0');
+				if (point) {
+					scale++;
+				}
+			} else if (b == '.' && !point) {
+				point = true;
+			} else {
+				// Exponents and anything unusual
+				return parseSlow(index);
+			}
+		}
+		if (!any) {
+			return parseSlow(index);
+		}
+		if (scale >= powersOf10.length) {
+			return parseSlow(index);
+		}
+		// Both are exact, so the single division is correctly rounded
+		double value = mantissa / powersOf10[scale];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses the index at the start of a parameter, up to the first slash (the
+	 * vertex of a face, followed by its texture and normal indices).
+	 */
+	public int getIndex(int index) throws RayTracerException {
+		int i = this.paramStarts[index];
+		int end = this.paramEnds[index];
+		boolean negative = false;
+		if (i < end && (this.data.get(i) == '-' || this.data.get(i) == '+')) {
+			negative = this.data.get(i) == '-';
+			i++;
+		}
+		int start = i;
+		long value = 0;
+		for (; i < end && this.data.get(i) != '/'; i++) {
+			byte b = this.data.get(i);
+			if (b < '0' || b > '9' || value > Integer.MAX_VALUE) {
+				break;
+			}
+			value = value * 10 + (b - '0');
+		}
+		if (i == start || (i < end && this.data.get(i) != '/') || value > Integer.MAX_VALUE) {
+			throw new RayTracerException(
+					String.format("Invalid index %s in line: %d.", getParam(index), this.lineNum));
+		}
+		return (int) (negative ? -value : value);
+	}
+
+	private double parseSlow(int index) throws RayTracerException {
+		try {
+			return Double.parseDouble(getParam(index).toLowerCase());
+		} catch (NumberFormatException e) {
+			throw new RayTracerException(
+					String.format("Invalid number %s in line: %d.", getParam(index), this.lineNum));
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A rectangular block of pixels of the output image, the unit of work handed to
+ * the render threads.
+ */
+public class Tile {
+	private static final int stripTiles = 8;
+
+	public final int x, y; // top left pixel
+	public final int width, height;
+	private final long order; // position of the tile on the Z-order curve
+
+	public Tile(int x, int y, int width, int height, long order) {
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.order = order;
+	}
+
+	/**
+	 * Cuts an image into tiles of (at most) tileSize x tileSize pixels. The tiles
+	 * are ordered along a Z-order (Morton) curve, so tiles rendered one after the
+	 * other are close on the image and likely to hit the same geometry. The curve
+	 * runs in strips of stripTiles rows of tiles, top to bottom, so the rows of
+	 * the image are done in order and can be saved while the rest is rendered.
+	 *
+	 * @param imageWidth
+	 *            The width of the image in pixels
+	 * @param imageHeight
+	 *            The height of the image in pixels
+	 * @param tileSize
+	 *            The size of a tile edge in pixels
+	 * @return The list of tiles covering the image
+	 */
+	public static List<Tile> split(int imageWidth, int imageHeight, int tileSize) {
+		List<Tile> tiles = new ArrayList<Tile>();
+		for (int ty = 0; ty * tileSize < imageHeight; ty++) {
+			for (int tx = 0; tx * tileSize < imageWidth; tx++) {
+				int x = tx * tileSize;
+				int y = ty * tileSize;
+				tiles.add(new Tile(x, y, Math.min(tileSize, imageWidth - x), Math.min(tileSize, imageHeight - y),
+						((long) (ty / stripTiles) << 40) | interleave(tx) | (interleave(ty % stripTiles) << 1)));
+			}
+		}
+		Collections.sort(tiles, new Comparator<Tile>() {
+			@Override
+			public int compare(Tile t1, Tile t2) {
+				return Long.compare(t1.order, t2.order);
+			}
+		});
+		return tiles;
+	}
+
+	/**
+	 * Spreads the bits of a value so there is a zero bit between every two of
+	 * them, used to build the Morton code of a tile.
+	 */
+	private static long interleave(long v) {
+		v &= 0xFFFFFFFFL;
+		v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+		v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+		v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		v = (v | (v << 2)) & 0x3333333333333333L;
+		v = (v | (v << 1)) & 0x5555555555555555L;
+		return v;
+	}
+
+	public int getPixelsNum() {
+		return width * height;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("<Tile: [%d,%d %dx%d]>", x, y, width, height);
+	}
+}
@@ -0,0 +1,293 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Renders the tiles of an image on worker processes (see TileWorker), for
+ * images too large for a single machine. The scene is parsed once, here, and
+ * sent to every worker as its scene cache (the parsed objects and the built
+ * hierarchies), compressed. The workers read the files the scene reads
+ * (meshes) by the same paths, so they have to see the same files.
+ *
+ * The tiles are handed out as the workers return them: every worker is kept
+ * busy with two tiles per thread, so it never waits for the next tile, and a
+ * fast worker takes more tiles than a slow one. The tiles of a worker which
+ * fails (its connection breaks, it goes silent, or it can not render a tile
+ * and closes the connection) are handed to the other workers, and if all the
+ * workers fail, the tiles left are rendered here.
+ *
+ * The protocol, in DataOutputStream numbers:
+ * - The coordinator sends: magic, version, the path of the scene file, the
+ * image width and height, the number of options and every option as its name
+ * and value, the 32 bytes of the scene key and the length and bytes of the
+ * compressed cache.
+ * - The worker answers: magic and its number of threads, or 0 and an error.
+ * - The coordinator sends tiles: the index, x, y, width and height of a tile,
+ * the worker answers them in any order, with the same 5 numbers followed by
+ * the number of samples of the tile (a long) and its RGB bytes, row by row.
+ * An index of -1 ends the render.
+ * - The worker answers the end with -1 and the statistics of its tiles: the
+ * occluder cache hits and lookups, the secondary rays and the pruned rays.
+ * - From the moment it reads the magic, the worker also sends a heartbeat
+ * (an index of -2) every heartbeatInterval, between its answers, so a worker
+ * rendering a slow tile is told from one which hangs or is cut off. A worker
+ * not heard from for workerTimeout has failed.
+ */
+public class TileCoordinator {
+	static final int magic = 0x52544457; // "RTDW"
+	static final int version = 3;
+	static final int heartbeat = -2;
+	static final int heartbeatInterval = 5000; // milliseconds
+	private static final int workerTimeout = 30000; // milliseconds
+
+	private final RayTracer tracer;
+	private final List<InetSocketAddress> workers;
+	private List<Tile> tiles;
+	private PixelBuffer image;
+	private byte[] scene; // the message of the scene, sent to every worker
+
+	// The state of the render, under the lock of the coordinator
+	private final ArrayDeque<Integer> pending = new ArrayDeque<Integer>(); // tiles not handed out
+	private int tilesLeft; // tiles not returned yet
+	private int connected; // workers still rendering
+
+	public TileCoordinator(RayTracer tracer, List<InetSocketAddress> workers) {
+		this.tracer = tracer;
+		this.workers = workers;
+	}
+
+	/**
+	 * Parses the addresses of workers, given as host:port separated by commas.
+	 */
+	public static List<InetSocketAddress> parseAddresses(String addresses) {
+		List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+		for (String address : addresses.split(",")) {
+			address = address.trim();
+			int colon = address.lastIndexOf(':');
+			if (colon < 0) {
+				result.add(new InetSocketAddress("localhost", Integer.parseInt(address)));
+			} else {
+				result.add(InetSocketAddress.createUnresolved(address.substring(0, colon),
+						Integer.parseInt(address.substring(colon + 1))));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Renders the tiles on the workers, and waits until they are done.
+	 *
+	 * @param image
+	 *            - The buffer of the whole image
+	 * @param pool
+	 *            - The pool to render on if all the workers fail
+	 */
+	public void render(List<Tile> tiles, PixelBuffer image, ForkJoinPool pool) {
+		this.tiles = tiles;
+		this.image = image;
+		try {
+			this.scene = createSceneMessage();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		for (int i = 0; i < tiles.size(); i++) {
+			this.pending.addLast(i);
+		}
+		this.tilesLeft = tiles.size();
+		this.connected = this.workers.size();
+
+		Thread[] threads = new Thread[this.workers.size()];
+		for (int i = 0; i < threads.length; i++) {
+			final InetSocketAddress address = this.workers.get(i);
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(address);
+				}
+			}, "worker-" + address);
+			threads[i].start();
+		}
+
+		List<Tile> left = new ArrayList<Tile>();
+		synchronized (this) {
+			while (this.tilesLeft > 0 && this.connected > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (this.connected == 0) {
+				// Nobody takes the tiles left any more
+				for (int index : this.pending) {
+					left.add(tiles.get(index));
+				}
+				this.pending.clear();
+			}
+		}
+		if (!left.isEmpty()) {
+			System.out.println(String.format("\nWARNING: No workers left, rendering the %d tiles left here",
+					left.size()));
+			pool.invoke(new TileTask(this.tracer, left, 0, left.size(), image));
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return The message of the scene, up to the worker answer
+	 */
+	private byte[] createSceneMessage() throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(compressed))) {
+			this.tracer.sceneCache.write(out, this.tracer.sceneKey, this.tracer.scene);
+		}
+
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(message);
+		out.writeInt(magic);
+		out.writeInt(version);
+		out.writeUTF(this.tracer.sceneFileName);
+		out.writeInt(this.tracer.imageWidth);
+		out.writeInt(this.tracer.imageHeight);
+		out.writeInt(this.tracer.givenOptions.size());
+		for (String[] option : this.tracer.givenOptions) {
+			out.writeUTF(option[0]);
+			out.writeUTF(option[1]);
+		}
+		out.write(this.tracer.sceneKey);
+		out.writeInt(compressed.size());
+		compressed.writeTo(out);
+		out.flush();
+		return message.toByteArray();
+	}
+
+	/**
+	 * Hands out tiles to a worker until all the tiles are returned, or the
+	 * worker fails.
+	 */
+	private void serve(InetSocketAddress address) {
+		List<Integer> sent = new ArrayList<Integer>(); // the tiles the worker has
+		byte[] data = new byte[0]; // the pixels of the tile returned
+		try (Socket socket = new Socket()) {
+			if (address.isUnresolved()) {
+				address = new InetSocketAddress(address.getHostString(), address.getPort());
+			}
+			socket.connect(address, 10000);
+			socket.setTcpNoDelay(true);
+			// A read which times out fails the worker like a broken connection
+			socket.setSoTimeout(workerTimeout);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			out.write(this.scene);
+			out.flush();
+			if (readAnswer(in) != magic) {
+				throw new IOException("Not a ray tracer worker.");
+			}
+			int threadsNum = in.readInt();
+			if (threadsNum <= 0) {
+				throw new IOException(in.readUTF());
+			}
+			System.out.println(String.format("\nWorker %s is rendering on %d threads", address, threadsNum));
+
+			List<Integer> next = new ArrayList<Integer>();
+			while (true) {
+				next.clear();
+				synchronized (this) {
+					while (sent.isEmpty() && this.pending.isEmpty() && this.tilesLeft > 0) {
+						// The tiles of a worker which fails may come back
+						wait();
+					}
+					if (sent.isEmpty() && this.tilesLeft == 0) {
+						break;
+					}
+					while (sent.size() < threadsNum * 2 && !this.pending.isEmpty()) {
+						next.add(this.pending.removeFirst());
+						sent.add(next.get(next.size() - 1));
+					}
+				}
+				for (int index : next) {
+					Tile tile = this.tiles.get(index);
+					out.writeInt(index);
+					out.writeInt(tile.x);
+					out.writeInt(tile.y);
+					out.writeInt(tile.width);
+					out.writeInt(tile.height);
+				}
+				out.flush();
+
+				Integer index = readAnswer(in);
+				Tile tile = this.tiles.get(index);
+				if (!sent.contains(index) || in.readInt() != tile.x || in.readInt() != tile.y
+						|| in.readInt() != tile.width || in.readInt() != tile.height) {
+					throw new IOException("The worker returned a tile it was not given.");
+				}
+				long samples = in.readLong();
+				if (data.length < tile.getPixelsNum() * 3) {
+					data = new byte[tile.getPixelsNum() * 3];
+				}
+				in.readFully(data, 0, tile.getPixelsNum() * 3);
+				this.image.setTile(tile, data);
+				synchronized (this) {
+					sent.remove(index);
+					this.tilesLeft--;
+					if (this.tilesLeft == 0) {
+						notifyAll();
+					}
+				}
+				this.tracer.addStatistics(samples, 0, 0, 0, 0);
+				this.tracer.tileRendered(tile, samples);
+			}
+
+			out.writeInt(-1);
+			out.flush();
+			if (readAnswer(in) != -1) {
+				throw new IOException("The worker did not end the render.");
+			}
+			this.tracer.addStatistics(0, in.readLong(), in.readLong(), in.readLong(), in.readLong());
+		} catch (IOException | RuntimeException | InterruptedException e) {
+			synchronized (this) {
+				this.pending.addAll(sent);
+				sent.clear();
+				notifyAll();
+			}
+			System.out.println(String.format("\nWARNING: Worker %s failed, its tiles are handed to the others: %s",
+					address, e));
+		} finally {
+			synchronized (this) {
+				this.connected--;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Reads the number which starts the next answer of a worker, skipping its
+	 * heartbeats.
+	 */
+	private static int readAnswer(DataInputStream in) throws IOException {
+		int value;
+		do {
+			value = in.readInt();
+		} while (value == heartbeat);
+		return value;
+	}
+}
@@ -0,0 +1,159 @@
+package main;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Renders the tiles of several images at once on a fixed set of threads, for
+ * the render server. The threads take a tile of every image being rendered in
+ * turn, so an image which starts while others are rendered gets its share of
+ * the threads right away, and a small image is not held back until a large
+ * one is done.
+ *
+ * The threads stay up between the images, so they keep the code compiled by
+ * the JIT warm for the next ones.
+ */
+public class TileScheduler {
+	private final Thread[] threads;
+	private final ArrayDeque<Job> jobs = new ArrayDeque<Job>(); // the images with tiles left, in turn
+
+	/**
+	 * The tiles of an image being rendered.
+	 */
+	private static class Job {
+		final RayTracer tracer;
+		final List<Tile> tiles;
+		final PixelBuffer image;
+		int next; // the next tile to take
+		int rendering; // the tiles taken and not done yet
+		Throwable error; // the first error of a tile
+
+		Job(RayTracer tracer, List<Tile> tiles, PixelBuffer image) {
+			this.tracer = tracer;
+			this.tiles = tiles;
+			this.image = image;
+		}
+	}
+
+	public TileScheduler(int threadsNum) {
+		this.threads = new Thread[threadsNum];
+		for (int i = 0; i < threadsNum; i++) {
+			this.threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					renderTiles();
+				}
+			}, "render-" + (i + 1));
+			this.threads[i].setDaemon(true);
+			this.threads[i].start();
+		}
+	}
+
+	public int getThreadsNum() {
+		return threads.length;
+	}
+
+	/**
+	 * Renders the tiles of an image, and waits until they are done.
+	 *
+	 * @param image
+	 *            - The buffer of the whole image
+	 */
+	public void render(RayTracer tracer, List<Tile> tiles, PixelBuffer image) {
+		Job job = new Job(tracer, tiles, image);
+		boolean interrupted = false;
+		synchronized (this) {
+			this.jobs.addLast(job);
+			notifyAll();
+			while (job.next < job.tiles.size() || job.rendering > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// The tiles taken by the threads are rendered anyway
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (job.error instanceof RuntimeException) {
+			throw (RuntimeException) job.error;
+		} else if (job.error instanceof Error) {
+			throw (Error) job.error;
+		} else if (job.error != null) {
+			throw new RuntimeException(job.error);
+		}
+	}
+
+	/**
+	 * The loop of the threads: takes a tile of the image whose turn it is, and
+	 * puts the image back at the end of the turns while it has tiles left.
+	 */
+	private void renderTiles() {
+		List<Job> rendered = new ArrayList<Job>(); // the images this thread has scratch objects of
+		while (true) {
+			Job job;
+			int tile;
+			synchronized (this) {
+				releaseDoneJobs(rendered);
+				while (this.jobs.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				job = this.jobs.removeFirst();
+				if (!rendered.contains(job)) {
+					rendered.add(job);
+				}
+				tile = job.next++;
+				job.rendering++;
+				if (job.next < job.tiles.size()) {
+					this.jobs.addLast(job);
+				}
+			}
+
+			Throwable error = null;
+			try {
+				job.tracer.renderTile(job.tiles.get(tile), job.image);
+			} catch (Throwable e) {
+				error = e;
+			}
+
+			synchronized (this) {
+				job.rendering--;
+				if (error != null && job.error == null) {
+					// The rest of the tiles of the image are not rendered
+					job.error = error;
+					this.jobs.remove(job);
+					job.next = job.tiles.size();
+				}
+				if (job.next >= job.tiles.size() && job.rendering == 0) {
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the scratch objects of the calling thread for the images which have
+	 * no tiles left to take, so the threads do not keep the tracers of the
+	 * images done alive. Called under the lock of the scheduler.
+	 *
+	 * @param rendered
+	 *            - The images the thread rendered tiles of
+	 */
+	private void releaseDoneJobs(List<Job> rendered) {
+		for (Iterator<Job> it = rendered.iterator(); it.hasNext();) {
+			Job job = it.next();
+			if (job.next >= job.tiles.size()) {
+				job.tracer.releaseTraceContext();
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package main;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders a range of tiles on a ForkJoin pool. The range is split in halves
+ * until a single tile is left, so idle threads can steal the pending halves of
+ * busy ones.
+ */
+@SuppressWarnings({ "serial" })
+public class TileTask extends RecursiveAction {
+	private final RayTracer tracer;
+	private final List<Tile> tiles;
+	private final int start, end;
+	private final PixelBuffer image;
+
+	public TileTask(RayTracer tracer, List<Tile> tiles, int start, int end, PixelBuffer image) {
+		this.tracer = tracer;
+		this.tiles = tiles;
+		this.start = start;
+		this.end = end;
+		this.image = image;
+	}
+
+	@Override
+	protected void compute() {
+		if (end - start == 1) {
+			tracer.renderTile(tiles.get(start), image);
+			return;
+		}
+		int mid = (start + end) >>> 1;
+		invokeAll(new TileTask(tracer, tiles, start, mid, image), new TileTask(tracer, tiles, mid, end, image));
+	}
+}
@@ -0,0 +1,223 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
+
+import main.RayTracer.RayTracerException;
+
+/**
+ * Renders tiles for the coordinator of a distributed render (see
+ * TileCoordinator, which also describes the protocol). Every connection is a
+ * render of a single image: the scene is loaded from the cache the
+ * coordinator sent, and the tiles are rendered as they come, on threadsNum
+ * threads, and returned as soon as they are done.
+ */
+public class TileWorker {
+	private final int port;
+	private final int threadsNum;
+
+	public TileWorker(int port, int threadsNum) {
+		this.port = port;
+		this.threadsNum = threadsNum;
+	}
+
+	/**
+	 * Takes renders from coordinators, until the process is stopped.
+	 */
+	public void run() throws IOException {
+		try (ServerSocket server = new ServerSocket(this.port)) {
+			System.out.println(String.format("Waiting for coordinators on port %d, rendering on %d threads",
+					server.getLocalPort(), this.threadsNum));
+			while (true) {
+				final Socket socket = server.accept();
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "coordinator-" + socket.getRemoteSocketAddress()).start();
+			}
+		}
+	}
+
+	private void serve(final Socket connection) {
+		ExecutorService pool = null;
+		ScheduledExecutorService heartbeats = null;
+		try (Socket socket = connection) {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			if (in.readInt() != TileCoordinator.magic) {
+				return;
+			}
+			// Every write is under the lock of the stream, so the heartbeats go
+			// between the answers
+			heartbeats = Executors.newSingleThreadScheduledExecutor();
+			heartbeats.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						synchronized (out) {
+							out.writeInt(TileCoordinator.heartbeat);
+							out.flush();
+						}
+					} catch (IOException e) {
+						// The coordinator is gone, the read of the next tile fails too
+					}
+				}
+			}, 0, TileCoordinator.heartbeatInterval, TimeUnit.MILLISECONDS);
+
+			final RayTracer tracer;
+			try {
+				tracer = readScene(in);
+			} catch (RayTracerException | RuntimeException e) {
+				synchronized (out) {
+					out.writeInt(TileCoordinator.magic);
+					out.writeInt(0);
+					out.writeUTF(String.valueOf(e.getMessage()));
+					out.flush();
+				}
+				return;
+			}
+			synchronized (out) {
+				out.writeInt(TileCoordinator.magic);
+				out.writeInt(this.threadsNum);
+				out.flush();
+			}
+
+			pool = Executors.newFixedThreadPool(this.threadsNum);
+			while (true) {
+				final int index = in.readInt();
+				if (index < 0) {
+					break;
+				}
+				final Tile tile = new Tile(in.readInt(), in.readInt(), in.readInt(), in.readInt(), 0);
+				if (tile.x < 0 || tile.y < 0 || tile.width < 1 || tile.height < 1
+						|| tile.x + tile.width > tracer.imageWidth || tile.y + tile.height > tracer.imageHeight) {
+					throw new IOException("The tile is out of the image.");
+				}
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						// The tile is sent from the buffers of the thread, the image
+						// is never held here
+						TraceContext context = tracer.getTraceContext();
+						long samples;
+						try {
+							samples = tracer.renderTile(tile, context);
+						} catch (RuntimeException | Error e) {
+							// The tile would never be answered while the heartbeats
+							// go on, so the connection is closed for the coordinator
+							// to hand the tiles to the other workers
+							System.out.println(String.format("WARNING: Could not render tile %s: %s", tile, e));
+							try {
+								connection.close();
+							} catch (IOException closeError) {
+								// Closed already
+							}
+							return;
+						}
+						try {
+							synchronized (out) {
+								out.writeInt(index);
+								out.writeInt(tile.x);
+								out.writeInt(tile.y);
+								out.writeInt(tile.width);
+								out.writeInt(tile.height);
+								out.writeLong(samples);
+								out.write(context.tileRGB, 0, tile.getPixelsNum() * 3);
+								out.flush();
+							}
+						} catch (IOException e) {
+							// The coordinator is gone, the read of the next tile fails too
+						}
+					}
+				});
+			}
+
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			long[] statistics = tracer.getStatistics();
+			synchronized (out) {
+				// The samples were sent with the tiles
+				out.writeInt(-1);
+				for (int i = 1; i < statistics.length; i++) {
+					out.writeLong(statistics[i]);
+				}
+				out.flush();
+			}
+			System.out.println(String.format("\nRendered %d samples for %s", statistics[0],
+					socket.getRemoteSocketAddress()));
+		} catch (IOException | InterruptedException e) {
+			System.out.println("WARNING: The render was stopped: " + e.getMessage());
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			if (heartbeats != null) {
+				heartbeats.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Reads the scene of a render, after the magic number.
+	 *
+	 * @return The ray tracer of the render, with the scene loaded
+	 */
+	private RayTracer readScene(DataInputStream in) throws IOException, RayTracerException {
+		if (in.readInt() != TileCoordinator.version) {
+			throw new RayTracerException("The coordinator is of another version.");
+		}
+		String sceneFileName = in.readUTF();
+		RayTracer tracer = RayTracer.create();
+		tracer.imageWidth = in.readInt();
+		tracer.imageHeight = in.readInt();
+		int optionsNum = in.readInt();
+		List<String[]> options = new ArrayList<String[]>();
+		for (int i = 0; i < optionsNum; i++) {
+			options.add(new String[] { in.readUTF(), in.readUTF() });
+		}
+		byte[] key = new byte[SceneParser.hashLength];
+		in.readFully(key);
+		byte[] compressed = new byte[in.readInt()];
+		in.readFully(compressed);
+
+		for (String[] option : options) {
+			// The threads are the ones of the worker, and the scene is not read
+			// from its file
+			if (!option[0].equals("threads") && !option[0].equals("scene-cache")) {
+				tracer.parseOption(option[0], option[1]);
+			}
+		}
+		tracer.checkOptions();
+		tracer.threadsNum = this.threadsNum;
+
+		byte[] bytes;
+		try (InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(compressed))) {
+			bytes = inflater.readAllBytes();
+		}
+		SceneCache cache = SceneCache.read(ByteBuffer.wrap(bytes), key, tracer.contentHashes);
+		if (cache == null) {
+			throw new RayTracerException("The files the scene reads are not the same on the worker.");
+		}
+		tracer.parseScene(sceneFileName, cache);
+		tracer.setupTracing();
+		return tracer;
+	}
+}
@@ -0,0 +1,83 @@
+package main;
+
+import utility.Color;
+import utility.Vector;
+
+/**
+ * Scratch objects used by a single render thread while tracing. Everything the
+ * shading code needs is created once here and reused for every ray, so tracing
+ * does not allocate in the steady state. The recursion of traceColor uses one
+ * frame per level, so a level never overwrites the objects of its caller.
+ */
+public class TraceContext {
+	public final Frame[] frames; // one per recursion level
+	public final int[] stack; // traversal stack for the BVH queries
+	public final OcclusionQuery.OccluderCache occluderCache; // last occluder per light and shadow sample
+	public final RayPacket packet; // primary rays traced together, null when packets are not used
+	public float[] tileColors = new float[0]; // the sums of the samples of every pixel in the tile
+	public byte[] tileRGB = new byte[0]; // the colors of the pixels of the tile, row by row
+	public byte[] tileSamples = new byte[0]; // the samples map of the pixels of the tile
+	public WavefrontRenderer wavefront; // breadth first tracing of the tiles, null when not used
+
+	// Scratch used per pixel
+	public final Ray cameraRay = new Ray();
+	public final Color pixelColor = new Color(0, 0, 0);
+	public final Color sampleColor = new Color(0, 0, 0);
+	public final Color tempColor = new Color(0, 0, 0);
+	public int samplesNum; // the number of samples taken by the last pixel
+
+	// The pixel sample being traced, the shadow patterns are rotated by further
+	// dimensions of the same sample
+	public long sampleKey;
+	public int sampleIndex;
+	public int sampleCount;
+	public final double[] point2D = new double[2];
+
+	// Secondary rays considered and the ones not traced because of their low
+	// contribution, since the last time they were collected
+	public long secondaryRays;
+	public long prunedRays;
+
+	/**
+	 * The scratch objects of a single recursion level of traceColor.
+	 */
+	public static class Frame {
+		public final int depth; // the recursion level of the frame
+		public final Intersection intersection = Intersection.createReusable();
+		public final Vector normal = new Vector(0, 0, 0);
+		public final Ray reflectedRay = new Ray();
+		public final Ray refractedRay = new Ray();
+
+		public final Color baseColor = new Color(0, 0, 0);
+		public final Color refracColor = new Color(0, 0, 0);
+		public final Color reflecColor = new Color(0, 0, 0);
+		public final Color lightColor = new Color(0, 0, 0);
+		public final Color specularColor = new Color(0, 0, 0);
+		public final Color tempColor = new Color(0, 0, 0);
+
+		// Light and shadow calculations
+		public final Vector lightDir = new Vector(0, 0, 0);
+		public final Vector lightReflect = new Vector(0, 0, 0);
+		public final Vector N = new Vector(0, 0, 0);
+		public final Vector U = new Vector(0, 0, 0);
+		public final Vector V = new Vector(0, 0, 0);
+		public final Vector lightPoint = new Vector(0, 0, 0);
+		public final Vector shadowDir = new Vector(0, 0, 0);
+		public final Ray shadowRay = new Ray();
+		public final double[] lightProbability = new double[1]; // of a light picked by the light tree
+
+		public Frame(int depth) {
+			this.depth = depth;
+		}
+	}
+
+	public TraceContext(int recursionsMaxLevel, int stackSize, int shadowSlotsNum, int packetSize) {
+		this.frames = new Frame[Math.max(1, recursionsMaxLevel)];
+		for (int i = 0; i < this.frames.length; i++) {
+			this.frames[i] = new Frame(i);
+		}
+		this.stack = new int[stackSize];
+		this.occluderCache = new OcclusionQuery.OccluderCache(shadowSlotsNum);
+		this.packet = packetSize > 0 ? new RayPacket(packetSize) : null;
+	}
+}
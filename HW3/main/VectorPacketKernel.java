@@ -0,0 +1,202 @@
+package main;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Intersects the rays of a packet using the SIMD units of the CPU, through the
+ * incubating vector API. Each test runs over as many rays at once as the
+ * preferred vector shape of the platform holds, and computes exactly the same
+ * values as the scalar tests of the compiled scene. Vectors may run past the
+ * end of the packet, into rays that never hit anything (see RayPacket).
+ *
+ * Requires the jdk.incubator.vector module, created only through
+ * PacketKernel.create().
+ */
+class VectorPacketKernel implements PacketKernel {
+	private static final VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public void intersect(CompiledScene scene, int primitive, RayPacket packet) {
+		int o = scene.getOffset(primitive);
+		switch (scene.getType(primitive)) {
+		case CompiledScene.SPHERE:
+			intersectSphere(scene.getSpheres(), o, primitive, packet);
+			break;
+		case CompiledScene.PLANE:
+			intersectPlane(scene.getPlanes(), o, primitive, packet);
+			break;
+		case CompiledScene.MESH:
+			// The faces of a mesh are searched ray by ray
+			intersectScalar(scene, primitive, packet);
+			break;
+		default:
+			intersectTriangle(scene.getTriangles(), o, primitive, packet);
+			break;
+		}
+	}
+
+	@Override
+	public boolean hitBox(double[] bounds, int offset, RayPacket p) {
+		// The slab test, min and max of NaN are NaN like in the scalar test
+		double minX = bounds[offset], minY = bounds[offset + 1], minZ = bounds[offset + 2];
+		double maxX = bounds[offset + 3], maxY = bounds[offset + 4], maxZ = bounds[offset + 5];
+		for (int i = 0; i < p.size; i += species.length()) {
+			DoubleVector o = DoubleVector.fromArray(species, p.ox, i);
+			DoubleVector inv = DoubleVector.fromArray(species, p.invDx, i);
+			DoubleVector t1 = DoubleVector.broadcast(species, minX).sub(o).mul(inv);
+			DoubleVector t2 = DoubleVector.broadcast(species, maxX).sub(o).mul(inv);
+			DoubleVector tNear = t1.min(t2);
+			DoubleVector tFar = t1.max(t2);
+
+			o = DoubleVector.fromArray(species, p.oy, i);
+			inv = DoubleVector.fromArray(species, p.invDy, i);
+			t1 = DoubleVector.broadcast(species, minY).sub(o).mul(inv);
+			t2 = DoubleVector.broadcast(species, maxY).sub(o).mul(inv);
+			tNear = tNear.max(t1.min(t2));
+			tFar = tFar.min(t1.max(t2));
+
+			o = DoubleVector.fromArray(species, p.oz, i);
+			inv = DoubleVector.fromArray(species, p.invDz, i);
+			t1 = DoubleVector.broadcast(species, minZ).sub(o).mul(inv);
+			t2 = DoubleVector.broadcast(species, maxZ).sub(o).mul(inv);
+			tNear = tNear.max(t1.min(t2));
+			tFar = tFar.min(t1.max(t2));
+
+			VectorMask<Double> hit = tFar.compare(VectorOperators.GE, tNear).and(tFar.compare(VectorOperators.GE, 0))
+					.and(tNear.compare(VectorOperators.LE, DoubleVector.fromArray(species, p.tHit, i)));
+			if (hit.anyTrue()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String getName() {
+		return String.format("SIMD (%d lanes)", species.length());
+	}
+
+	private static void intersectScalar(CompiledScene scene, int primitive, RayPacket p) {
+		for (int i = 0; i < p.size; i++) {
+			double t = scene.hit(primitive, p.ox[i], p.oy[i], p.oz[i], p.dx[i], p.dy[i], p.dz[i], p.tHit[i], p.faces,
+					i);
+			if (t >= RayTracer.epsilon && t < p.tHit[i]) {
+				p.tHit[i] = t;
+				p.primitives[i] = primitive;
+			}
+		}
+	}
+
+	private static void intersectSphere(double[] s, int o, int primitive, RayPacket p) {
+		for (int i = 0; i < p.size; i += species.length()) {
+			DoubleVector EOx = DoubleVector.broadcast(species, s[o]).sub(DoubleVector.fromArray(species, p.ox, i));
+			DoubleVector EOy = DoubleVector.broadcast(species, s[o + 1]).sub(DoubleVector.fromArray(species, p.oy, i));
+			DoubleVector EOz = DoubleVector.broadcast(species, s[o + 2]).sub(DoubleVector.fromArray(species, p.oz, i));
+			DoubleVector dx = DoubleVector.fromArray(species, p.dx, i);
+			DoubleVector dy = DoubleVector.fromArray(species, p.dy, i);
+			DoubleVector dz = DoubleVector.fromArray(species, p.dz, i);
+
+			DoubleVector v = EOx.mul(dx).add(EOy.mul(dy)).add(EOz.mul(dz));
+			DoubleVector disc = DoubleVector.broadcast(species, s[o + 3])
+					.sub(EOx.mul(EOx).add(EOy.mul(EOy)).add(EOz.mul(EOz)).sub(v.mul(v)));
+			VectorMask<Double> hit = disc.compare(VectorOperators.GE, 0);
+			if (!hit.anyTrue()) {
+				continue;
+			}
+			DoubleVector t = v.sub(disc.sqrt());
+			hit = hit.and(t.compare(VectorOperators.GE, RayTracer.epsilon))
+					.and(t.compare(VectorOperators.LT, DoubleVector.fromArray(species, p.tHit, i)));
+			if (hit.anyTrue()) {
+				t.intoArray(p.tHit, i, hit);
+				setPrimitive(p, i, hit.toLong(), primitive);
+			}
+		}
+	}
+
+	private static void intersectPlane(double[] pl, int o, int primitive, RayPacket p) {
+		double nx = pl[o], ny = pl[o + 1], nz = pl[o + 2];
+		for (int i = 0; i < p.size; i += species.length()) {
+			DoubleVector dn = DoubleVector.fromArray(species, p.dx, i).mul(nx).add(DoubleVector.fromArray(species, p.dy, i).mul(ny))
+					.add(DoubleVector.fromArray(species, p.dz, i).mul(nz));
+			VectorMask<Double> hit = dn.compare(VectorOperators.NE, 0);
+			if (!hit.anyTrue()) {
+				continue;
+			}
+			DoubleVector on = DoubleVector.fromArray(species, p.ox, i).mul(nx).add(DoubleVector.fromArray(species, p.oy, i).mul(ny))
+					.add(DoubleVector.fromArray(species, p.oz, i).mul(nz));
+			DoubleVector t = DoubleVector.broadcast(species, pl[o + 3]).sub(on).div(dn);
+			hit = hit.and(t.compare(VectorOperators.GE, RayTracer.epsilon))
+					.and(t.compare(VectorOperators.LT, DoubleVector.fromArray(species, p.tHit, i)));
+			if (hit.anyTrue()) {
+				t.intoArray(p.tHit, i, hit);
+				setPrimitive(p, i, hit.toLong(), primitive);
+			}
+		}
+	}
+
+	private static void intersectTriangle(double[] tr, int o, int primitive, RayPacket p) {
+		// Moller-Trumbore, the same steps as the scalar test
+		double e1x = tr[o + 3], e1y = tr[o + 4], e1z = tr[o + 5];
+		double e2x = tr[o + 6], e2y = tr[o + 7], e2z = tr[o + 8];
+		for (int i = 0; i < p.size; i += species.length()) {
+			DoubleVector dx = DoubleVector.fromArray(species, p.dx, i);
+			DoubleVector dy = DoubleVector.fromArray(species, p.dy, i);
+			DoubleVector dz = DoubleVector.fromArray(species, p.dz, i);
+
+			// p = d x e2
+			DoubleVector px = dy.mul(e2z).sub(dz.mul(e2y));
+			DoubleVector py = dz.mul(e2x).sub(dx.mul(e2z));
+			DoubleVector pz = dx.mul(e2y).sub(dy.mul(e2x));
+			DoubleVector det = px.mul(e1x).add(py.mul(e1y)).add(pz.mul(e1z));
+			VectorMask<Double> hit = det.compare(VectorOperators.NE, 0);
+			if (!hit.anyTrue()) {
+				continue;
+			}
+			DoubleVector invDet = DoubleVector.broadcast(species, 1).div(det);
+
+			// s = o - v1
+			DoubleVector sx = DoubleVector.fromArray(species, p.ox, i).sub(tr[o]);
+			DoubleVector sy = DoubleVector.fromArray(species, p.oy, i).sub(tr[o + 1]);
+			DoubleVector sz = DoubleVector.fromArray(species, p.oz, i).sub(tr[o + 2]);
+			DoubleVector u = sx.mul(px).add(sy.mul(py)).add(sz.mul(pz)).mul(invDet);
+			// Negated so NaN passes like in the scalar test, and fails on t
+			hit = hit.andNot(u.compare(VectorOperators.LT, 0).or(u.compare(VectorOperators.GT, 1)));
+			if (!hit.anyTrue()) {
+				continue;
+			}
+
+			// q = s x e1
+			DoubleVector qx = sy.mul(e1z).sub(sz.mul(e1y));
+			DoubleVector qy = sz.mul(e1x).sub(sx.mul(e1z));
+			DoubleVector qz = sx.mul(e1y).sub(sy.mul(e1x));
+			DoubleVector v = dx.mul(qx).add(dy.mul(qy)).add(dz.mul(qz)).mul(invDet);
+			hit = hit.andNot(v.compare(VectorOperators.LT, 0).or(u.add(v).compare(VectorOperators.GT, 1)));
+			if (!hit.anyTrue()) {
+				continue;
+			}
+
+			DoubleVector t = qx.mul(e2x).add(qy.mul(e2y)).add(qz.mul(e2z)).mul(invDet);
+			hit = hit.and(t.compare(VectorOperators.GE, RayTracer.epsilon))
+					.and(t.compare(VectorOperators.LT, DoubleVector.fromArray(species, p.tHit, i)));
+			if (hit.anyTrue()) {
+				t.intoArray(p.tHit, i, hit);
+				setPrimitive(p, i, hit.toLong(), primitive);
+			}
+		}
+	}
+
+	/**
+	 * Takes the primitive as the nearest hit of the rays in the lanes from i on
+	 * whose bits are set. The hit values are stored by the kernels themselves:
+	 * vectors are passed between methods only when they are inlined, otherwise
+	 * they are boxed on the heap.
+	 */
+	private static void setPrimitive(RayPacket p, int i, long lanes, int primitive) {
+		for (; lanes != 0; lanes &= lanes - 1) {
+			p.primitives[i + Long.numberOfTrailingZeros(lanes)] = primitive;
+		}
+	}
+}
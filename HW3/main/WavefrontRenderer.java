@@ -0,0 +1,347 @@
+package main;
+
+import java.util.Arrays;
+
+import scene.Material;
+import utility.Color;
+
+/**
+ * Traces the rays of many pixel samples breadth first, instead of following
+ * every sample depth first through traceColor. The rays of a recursion level
+ * are kept in a queue, sorted by their directions, and go through one stage at
+ * a time:
+ * - Closest hits of all the rays (in packets when a packet kernel is used).
+ * - Shading of all the hits, with their shadow rays.
+ * - Reflected and refracted rays, which become the queue of the next level.
+ * Every ray remembers its parent, and once all the levels are traced the colors
+ * are combined from the deepest level up, with the same operations (and
+ * clamping) as traceColor, so the results are the same.
+ */
+public class WavefrontRenderer {
+	// The roles of the rays
+	private static final byte primary = 0;
+	private static final byte refracted = 1;
+	private static final byte reflected = 2;
+
+	// The rays are sorted into bins of their direction, per axis
+	private static final int directionBins = 8;
+
+	private final RayTracer tracer;
+	private final int primaryCapacity;
+
+	private int raysNum;
+	private int primariesNum;
+	private int levelsNum; // the number of levels traced
+	private int[] levelStarts; // the index of the first ray of every level
+
+	// The rays, directions are normalized
+	private double[] ox = {}, oy = {}, oz = {};
+	private double[] dx = {}, dy = {}, dz = {};
+	private int[] parents = {}; // the ray that spawned the ray, or the pixel of a primary ray
+	private byte[] roles = {};
+	private float[] weights = {}; // the weight of the ray in the pixel color
+	private float[] scales = {}; // the factor to scale the color of the ray by (Russian roulette)
+
+	// The pixel sample of every ray
+	private long[] sampleKeys = {};
+	private int[] sampleIndices = {};
+	private int[] sampleCounts = {};
+
+	// The results, colors take 3 floats per ray. The color of a ray holds the
+	// colors of the lights until it is combined.
+	private int[] primitives = {};
+	private double[] tValues = {};
+	private int[] faces = {}; // the face hit, if the primitive is a mesh
+	private float[] colors = {};
+	private float[] refracColors = {}; // the scaled color of the refracted ray
+	private float[] reflecColors = {}; // the scaled and filtered color of the reflected ray
+
+	private int[] order = {}; // the rays of every level, sorted by direction
+	private final int[] binCounts = new int[directionBins * directionBins * directionBins + 1];
+
+	/**
+	 * @param tracer
+	 *            - The tracer of the scene
+	 * @param primaryCapacity
+	 *            - The number of primary rays traced together
+	 */
+	public WavefrontRenderer(RayTracer tracer, int primaryCapacity) {
+		this.tracer = tracer;
+		this.primaryCapacity = primaryCapacity;
+		this.levelStarts = new int[Math.max(1, tracer.recursionsMaxLevel) + 1];
+		allocate(primaryCapacity * 2);
+	}
+
+	public boolean isFull() {
+		return this.primariesNum == this.primaryCapacity;
+	}
+
+	public boolean isEmpty() {
+		return this.primariesNum == 0;
+	}
+
+	/**
+	 * Adds the primary ray of a pixel sample.
+	 *
+	 * @param pixel
+	 *            - The index of the pixel to add the color of the sample to
+	 */
+	public void addPrimary(Ray ray, int pixel, long sampleKey, int sampleIndex, int sampleCount) {
+		int i = addRay(ray, pixel, primary, 1, 1);
+		this.sampleKeys[i] = sampleKey;
+		this.sampleIndices[i] = sampleIndex;
+		this.sampleCounts[i] = sampleCount;
+		this.primariesNum++;
+	}
+
+	/**
+	 * Traces all the rays added, adds the color of every primary ray to the sums
+	 * of its pixel (3 floats per pixel) and empties the queues.
+	 */
+	public void trace(float[] sums, TraceContext context) {
+		int level = 0;
+		this.levelStarts[0] = 0;
+		while (level < this.tracer.recursionsMaxLevel && this.levelStarts[level] < this.raysNum) {
+			int start = this.levelStarts[level];
+			int end = this.raysNum;
+			sortByDirection(start, end);
+			findHits(start, end, context);
+			shade(start, end, level, context);
+			this.levelStarts[++level] = end;
+		}
+		this.levelsNum = level;
+		if (level == 0) {
+			// Nothing is traced with no recursion levels, the rays are black
+			this.levelStarts[1] = this.raysNum;
+			Arrays.fill(this.colors, 0, this.raysNum * 3, 0);
+		}
+
+		combine(context);
+
+		for (int i = 0; i < this.primariesNum; i++) {
+			int pixel = this.parents[i] * 3;
+			sums[pixel] += this.colors[i * 3];
+			sums[pixel + 1] += this.colors[i * 3 + 1];
+			sums[pixel + 2] += this.colors[i * 3 + 2];
+		}
+		this.raysNum = 0;
+		this.primariesNum = 0;
+	}
+
+	/**
+	 * Orders the rays in [start, end) by the bins of their directions (a
+	 * counting sort), so rays that go the same way are traced one after the
+	 * other.
+	 */
+	private void sortByDirection(int start, int end) {
+		Arrays.fill(this.binCounts, 0);
+		for (int i = start; i < end; i++) {
+			this.binCounts[directionBin(i) + 1]++;
+		}
+		for (int b = 1; b < this.binCounts.length; b++) {
+			this.binCounts[b] += this.binCounts[b - 1];
+		}
+		for (int i = start; i < end; i++) {
+			this.order[start + this.binCounts[directionBin(i)]++] = i;
+		}
+	}
+
+	private int directionBin(int i) {
+		return (bin(this.dx[i]) * directionBins + bin(this.dy[i])) * directionBins + bin(this.dz[i]);
+	}
+
+	private static int bin(double d) {
+		return Math.max(0, Math.min(directionBins - 1, (int) ((d + 1) * directionBins / 2)));
+	}
+
+	/**
+	 * Finds the closest hit of every ray in [start, end).
+	 */
+	private void findHits(int start, int end, TraceContext context) {
+		World scene = this.tracer.scene;
+		RayPacket packet = context.packet;
+
+		if (this.tracer.packetKernel != null && packet != null) {
+			// The packet keeps the index of every ray in the queue as its pixel
+			packet.clear();
+			for (int k = start; k < end; k++) {
+				int i = this.order[k];
+				packet.pixels[packet.add(getRay(i, context.cameraRay))] = i;
+				if (packet.isFull() || k == end - 1) {
+					scene.bvh.getFirstIntersections(packet, this.tracer.packetKernel, context.stack);
+					for (int j = 0; j < packet.size; j++) {
+						this.primitives[packet.pixels[j]] = packet.primitives[j];
+						this.tValues[packet.pixels[j]] = packet.tHit[j];
+						this.faces[packet.pixels[j]] = packet.faces[j];
+					}
+					packet.clear();
+				}
+			}
+			return;
+		}
+
+		Intersection hit = context.frames[0].intersection;
+		for (int k = start; k < end; k++) {
+			int i = this.order[k];
+			if (scene.bvh.getFirstIntersection(getRay(i, context.cameraRay), hit, context.stack)) {
+				this.primitives[i] = hit.primitive;
+				this.tValues[i] = hit.tValue;
+				this.faces[i] = hit.face;
+			} else {
+				this.primitives[i] = -1;
+			}
+		}
+	}
+
+	/**
+	 * Calculates the color of the lights at the hit of every ray in [start,
+	 * end), and adds the reflected and refracted rays of the hits as the next
+	 * level.
+	 */
+	private void shade(int start, int end, int level, TraceContext context) {
+		World scene = this.tracer.scene;
+		TraceContext.Frame frame = context.frames[level];
+		Intersection hit = frame.intersection;
+
+		for (int k = start; k < end; k++) {
+			int i = this.order[k];
+			if (this.primitives[i] < 0) {
+				setColor(this.colors, i, this.tracer.backgroundColor);
+				continue;
+			}
+
+			context.sampleKey = this.sampleKeys[i];
+			context.sampleIndex = this.sampleIndices[i];
+			context.sampleCount = this.sampleCounts[i];
+			Ray ray = getRay(i, context.cameraRay);
+			hit.primitive = this.primitives[i];
+			hit.tValue = this.tValues[i];
+			hit.face = this.faces[i];
+			hit.point.set(ray.getOrigin()).addScaled(ray.getDirection(), hit.tValue);
+			scene.compiled.setShape(hit);
+			Material mat = scene.materials.get(hit.shape.getMaterialIndex());
+
+			Color baseColor = this.tracer.getLocalColor(ray, hit, mat, context, frame, frame.baseColor.set(0, 0, 0));
+			setColor(this.colors, i, baseColor);
+
+			float refracWeight = this.weights[i] * mat.getTranparency();
+			float refracScale = mat.isRefractive() ? this.tracer.getContinuation(refracWeight, level + 1, 0, context)
+					: 0;
+			if (refracScale > 0) {
+				Ray refractedRay = hit.shape.getRefractedRay(ray.getDirection(), hit.point, 1, frame.refractedRay);
+				addRay(refractedRay, i, refracted, refracWeight * refracScale, refracScale);
+			}
+
+			float reflecWeight = this.weights[i] * mat.getReflection(frame.tempColor).getMax();
+			float reflecScale = mat.isReflective() ? this.tracer.getContinuation(reflecWeight, level + 1, 1, context)
+					: 0;
+			if (reflecScale > 0) {
+				Ray reflectedRay = hit.shape.getReflectedRay(ray.getDirection(), hit.point, frame.reflectedRay);
+				addRay(reflectedRay, i, reflected, reflecWeight * reflecScale, reflecScale);
+			}
+		}
+	}
+
+	/**
+	 * Combines the colors of the rays from the deepest level up, every ray into
+	 * the ray that spawned it, the same way traceColor does.
+	 */
+	private void combine(TraceContext context) {
+		World scene = this.tracer.scene;
+		Color color = context.tempColor;
+		TraceContext.Frame frame = context.frames[0];
+
+		for (int level = this.levelsNum - 1; level >= 0; level--) {
+			for (int i = this.levelStarts[level]; i < this.levelStarts[level + 1]; i++) {
+				if (this.primitives[i] >= 0) {
+					Material mat = scene.materials.get(scene.compiled.getShape(this.primitives[i]).getMaterialIndex());
+					color.set(0, 0, 0);
+					color.add(getColor(this.colors, i, frame.baseColor).mul(1 - mat.getTranparency()));
+					color.add(getColor(this.refracColors, i, frame.refracColor).mul(mat.getTranparency()));
+					color.add(getColor(this.reflecColors, i, frame.reflecColor));
+					color.clamp();
+					setColor(this.colors, i, color);
+				}
+
+				int parent = this.parents[i];
+				if (this.roles[i] == refracted) {
+					setColor(this.refracColors, parent, getColor(this.colors, i, color).mul(this.scales[i]));
+				} else if (this.roles[i] == reflected) {
+					Material mat = scene.materials.get(scene.compiled.getShape(this.primitives[parent])
+							.getMaterialIndex());
+					getColor(this.colors, i, color).mul(mat.getReflection(frame.tempColor)).mul(this.scales[i]);
+					setColor(this.reflecColors, parent, color);
+				}
+			}
+		}
+	}
+
+	private int addRay(Ray ray, int parent, byte role, float weight, float scale) {
+		if (this.raysNum == this.parents.length) {
+			allocate(this.raysNum * 2);
+		}
+		int i = this.raysNum++;
+		this.ox[i] = ray.getOrigin().getX();
+		this.oy[i] = ray.getOrigin().getY();
+		this.oz[i] = ray.getOrigin().getZ();
+		this.dx[i] = ray.getDirection().getX();
+		this.dy[i] = ray.getDirection().getY();
+		this.dz[i] = ray.getDirection().getZ();
+		this.parents[i] = parent;
+		this.roles[i] = role;
+		this.weights[i] = weight;
+		this.scales[i] = scale;
+		if (role != primary) {
+			// A secondary ray belongs to the pixel sample of its parent
+			this.sampleKeys[i] = this.sampleKeys[parent];
+			this.sampleIndices[i] = this.sampleIndices[parent];
+			this.sampleCounts[i] = this.sampleCounts[parent];
+		}
+		Arrays.fill(this.refracColors, i * 3, i * 3 + 3, 0);
+		Arrays.fill(this.reflecColors, i * 3, i * 3 + 3, 0);
+		return i;
+	}
+
+	private Ray getRay(int i, Ray out) {
+		out.getOrigin().set(this.ox[i], this.oy[i], this.oz[i]);
+		out.getDirection().set(this.dx[i], this.dy[i], this.dz[i]);
+		return out;
+	}
+
+	private static Color getColor(float[] colors, int i, Color out) {
+		return out.set(colors[i * 3], colors[i * 3 + 1], colors[i * 3 + 2]);
+	}
+
+	private static void setColor(float[] colors, int i, Color color) {
+		colors[i * 3] = color.getR();
+		colors[i * 3 + 1] = color.getG();
+		colors[i * 3 + 2] = color.getB();
+	}
+
+	/**
+	 * Grows the queues to hold the given number of rays, keeping the rays in
+	 * them.
+	 */
+	private void allocate(int capacity) {
+		this.ox = Arrays.copyOf(this.ox, capacity);
+		this.oy = Arrays.copyOf(this.oy, capacity);
+		this.oz = Arrays.copyOf(this.oz, capacity);
+		this.dx = Arrays.copyOf(this.dx, capacity);
+		this.dy = Arrays.copyOf(this.dy, capacity);
+		this.dz = Arrays.copyOf(this.dz, capacity);
+		this.parents = Arrays.copyOf(this.parents, capacity);
+		this.roles = Arrays.copyOf(this.roles, capacity);
+		this.weights = Arrays.copyOf(this.weights, capacity);
+		this.scales = Arrays.copyOf(this.scales, capacity);
+		this.sampleKeys = Arrays.copyOf(this.sampleKeys, capacity);
+		this.sampleIndices = Arrays.copyOf(this.sampleIndices, capacity);
+		this.sampleCounts = Arrays.copyOf(this.sampleCounts, capacity);
+		this.primitives = Arrays.copyOf(this.primitives, capacity);
+		this.tValues = Arrays.copyOf(this.tValues, capacity);
+		this.faces = Arrays.copyOf(this.faces, capacity);
+		this.colors = Arrays.copyOf(this.colors, capacity * 3);
+		this.refracColors = Arrays.copyOf(this.refracColors, capacity * 3);
+		this.reflecColors = Arrays.copyOf(this.reflecColors, capacity * 3);
+		this.order = Arrays.copyOf(this.order, capacity);
+	}
+}
@@ -1,22 +1,135 @@
 package main;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import geometry.Mesh;
 import geometry.Shape;
 import scene.Camera;
 import scene.Light;
+import scene.LightSampler;
+import scene.LightTree;
 import scene.Material;
+import sampling.Sampler;
 
 public class World {
 	public Camera camera; // the camera
 	public List<Light> lights; // the lights
 	public List<Shape> shapes; // the shapes
+	public List<Shape> meshes; // the placed meshes and mesh instances, compiled after the shapes
+	public Map<String, Mesh> meshDefinitions; // the meshes placed by instances, by name
+	public Map<Mesh, MeshStore> meshStores; // the stores the meshes were mapped from
 	public List<Material> materials; // the materials
+	public CompiledScene compiled; // the flat representation of the shapes
+	public BVH bvh; // the acceleration structure over the shapes
+	public OcclusionQuery occlusion; // the acceleration structures for shadow rays
+	public LightSampler[] lightSamplers; // the shadow sampling pattern of every light
+	public LightTree lightTree; // the hierarchy for picking lights by importance
 
 	public World() {
 		this.lights = new ArrayList<Light>();
 		this.shapes = new ArrayList<Shape>();
+		this.meshes = new ArrayList<Shape>();
+		this.meshDefinitions = new LinkedHashMap<String, Mesh>();
+		this.meshStores = new IdentityHashMap<Mesh, MeshStore>();
 		this.materials = new ArrayList<Material>();
 	}
+
+	/**
+	 * Creates a world which shares the shapes, lights, materials and compiled
+	 * structures of this one, with a camera of its own. Used to render a
+	 * compiled world at another image size, or with other shadow patterns,
+	 * while it is rendered.
+	 */
+	public World copy() {
+		World world = new World();
+		world.camera = new Camera(this.camera);
+		world.lights = this.lights;
+		world.shapes = this.shapes;
+		world.meshes = this.meshes;
+		world.meshDefinitions = this.meshDefinitions;
+		world.meshStores = this.meshStores;
+		world.materials = this.materials;
+		world.compiled = this.compiled;
+		world.bvh = this.bvh;
+		world.occlusion = this.occlusion;
+		world.lightSamplers = this.lightSamplers;
+		world.lightTree = this.lightTree;
+		return world;
+	}
+
+	/**
+	 * Compiles the shapes into their flat representation and builds the
+	 * acceleration structure over it, and precomputes the shadow sampling of the
+	 * lights. Should be called once all the shapes, materials and lights were
+	 * added to the world.
+	 * 
+	 * @param shadowRaysNum
+	 *            - The square root of the number of shadow rays per light
+	 * @param sampler
+	 *            - The sampler to take the shadow patterns from
+	 */
+	public void compile(int shadowRaysNum, Sampler sampler) {
+		compile(shadowRaysNum, sampler, null);
+	}
+
+	/**
+	 * Same as compile(shadowRaysNum, sampler), with the acceleration structures
+	 * read from a buffer written by writeHierarchies() instead of being built.
+	 * 
+	 * @param hierarchies
+	 *            - The buffer to read from, or null to build them
+	 */
+	public void compile(int shadowRaysNum, Sampler sampler, ByteBuffer hierarchies) {
+		List<Shape> primitives = new ArrayList<Shape>(this.shapes);
+		primitives.addAll(this.meshes);
+		this.compiled = new CompiledScene(primitives, this.materials, this.meshStores);
+		if (hierarchies != null) {
+			this.bvh = new BVH(this.compiled, hierarchies);
+			BVH opaque = new BVH(this.compiled, hierarchies);
+			BVH transparent = new BVH(this.compiled, hierarchies);
+			this.occlusion = new OcclusionQuery(this.compiled, opaque, transparent);
+		} else {
+			this.bvh = new BVH(this.compiled);
+			this.occlusion = new OcclusionQuery(this.compiled);
+		}
+		createLightSamplers(shadowRaysNum, sampler);
+		this.lightTree = new LightTree(this.lights);
+	}
+
+	/**
+	 * Creates the shadow sampling patterns of the lights, again when the number
+	 * of shadow rays changes.
+	 */
+	public void createLightSamplers(int shadowRaysNum, Sampler sampler) {
+		this.lightSamplers = new LightSampler[this.lights.size()];
+		for (int i = 0; i < this.lightSamplers.length; i++) {
+			// Negative keys, not to share the patterns of the pixels
+			this.lightSamplers[i] = new LightSampler(this.lights.get(i), shadowRaysNum, sampler, -1 - i);
+		}
+	}
+
+	/**
+	 * Writes the acceleration structures of the compiled world, to be read by
+	 * compile() instead of building them.
+	 */
+	public void writeHierarchies(DataOutputStream out) throws IOException {
+		this.bvh.write(out);
+		this.occlusion.getOpaqueBVH().write(out);
+		this.occlusion.getTransparentBVH().write(out);
+	}
+
+	/**
+	 * @return The size of a traversal stack large enough for every query on the
+	 *         world
+	 */
+	public int getStackSize() {
+		return Math.max(this.bvh.createStack().length, this.occlusion.getStackSize());
+	}
 }
@@ -0,0 +1,79 @@
+package sampling;
+
+/**
+ * Correlated multi-jittered sampling (Kensler, "Correlated Multi-Jittered
+ * Sampling", 2013). A set of m x n samples is stratified both on the m x n grid
+ * and on the fine n x m grids of every axis. The pattern of every set and
+ * dimension is chosen by a hash, nothing is stored.
+ */
+public class CorrelatedMultiJitterSampler implements Sampler {
+	@Override
+	public double[] get2D(long key, int index, int count, int dimension, double[] out) {
+		int p = Samplers.hash(key, dimension);
+		int m = Math.max(1, (int) Math.ceil(Math.sqrt(count)));
+		int n = Math.max(1, (count + m - 1) / m);
+
+		int s = permute(index, m * n, p * 0x51633E2D);
+		int sx = permute(s % m, m, p * 0xA511E9B3);
+		int sy = permute(s / m, n, p * 0x63D83595);
+		double jx = randomUnit(s, p * 0xA399D265);
+		double jy = randomUnit(s, p * 0x711AD6A5);
+
+		out[0] = (s % m + (sy + jx) / n) / m;
+		out[1] = (s / m + (sx + jy) / m) / n;
+		return out;
+	}
+
+	/**
+	 * A random permutation of [0, l) chosen by p, evaluated at i without storing
+	 * it.
+	 */
+	static int permute(int i, int l, int p) {
+		int w = l - 1;
+		w |= w >>> 1;
+		w |= w >>> 2;
+		w |= w >>> 4;
+		w |= w >>> 8;
+		w |= w >>> 16;
+		do {
+			i ^= p;
+			i *= 0xE170893D;
+			i ^= p >>> 16;
+			i ^= (i & w) >>> 4;
+			i ^= p >>> 8;
+			i *= 0x0929EB3F;
+			i ^= p >>> 23;
+			i ^= (i & w) >>> 1;
+			i *= 1 | p >>> 27;
+			i *= 0x6935FA69;
+			i ^= (i & w) >>> 11;
+			i *= 0x74DCB303;
+			i ^= (i & w) >>> 2;
+			i *= 0x9E501CC3;
+			i ^= (i & w) >>> 2;
+			i *= 0xC860A3DF;
+			i &= w;
+			i ^= i >>> 5;
+		} while (Integer.compareUnsigned(i, l) >= 0);
+		return Integer.remainderUnsigned(i + p, l);
+	}
+
+	static double randomUnit(int i, int p) {
+		i ^= p;
+		i ^= i >>> 17;
+		i ^= i >>> 10;
+		i *= 0xB36534E5;
+		i ^= i >>> 12;
+		i ^= i >>> 21;
+		i *= 0x93FC4795;
+		i ^= 0xDF6E307F;
+		i ^= i >>> 17;
+		i *= 1 | p >>> 18;
+		return Samplers.toUnit(i);
+	}
+
+	@Override
+	public String getName() {
+		return "cmj";
+	}
+}
@@ -0,0 +1,41 @@
+package sampling;
+
+/**
+ * The 2D Halton sequence (bases 2 and 3). Every set and dimension gets its own
+ * toroidal shift of the sequence (Cranley-Patterson rotation), taken from a
+ * hash, so neighbouring pixels and different lights do not share a pattern.
+ */
+public class HaltonSampler implements Sampler {
+	@Override
+	public double[] get2D(long key, int index, int count, int dimension, double[] out) {
+		int seed = Samplers.hash(key, dimension);
+		out[0] = rotate(radicalInverse(index, 2), Samplers.toUnit(seed));
+		out[1] = rotate(radicalInverse(index, 3), Samplers.toUnit(seed * 0x2C1B3C6D + 0x297A2D39));
+		return out;
+	}
+
+	/**
+	 * Mirrors the digits of the index in the given base around the decimal point.
+	 */
+	static double radicalInverse(int index, int base) {
+		double inverseBase = 1.0 / base;
+		double factor = inverseBase;
+		double result = 0;
+		while (index > 0) {
+			result += (index % base) * factor;
+			index /= base;
+			factor *= inverseBase;
+		}
+		return result;
+	}
+
+	private static double rotate(double value, double rotation) {
+		double r = value + rotation;
+		return r >= 1 ? r - 1 : r;
+	}
+
+	@Override
+	public String getName() {
+		return "halton";
+	}
+}
@@ -0,0 +1,31 @@
+package sampling;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Jittered sampling: when the set size is a square (n x n), the unit square is
+ * split into n x n cells and every sample is placed at a random spot of its
+ * own cell. Other set sizes get uniform random points. Uses the random
+ * generator of the calling thread.
+ */
+public class RandomSampler implements Sampler {
+	@Override
+	public double[] get2D(long key, int index, int count, int dimension, double[] out) {
+		Random rand = ThreadLocalRandom.current();
+		int n = (int) Math.sqrt(count);
+		if (n * n == count) {
+			out[0] = (index % n + rand.nextDouble()) / n;
+			out[1] = (index / n + rand.nextDouble()) / n;
+		} else {
+			out[0] = rand.nextDouble();
+			out[1] = rand.nextDouble();
+		}
+		return out;
+	}
+
+	@Override
+	public String getName() {
+		return "random";
+	}
+}
@@ -0,0 +1,35 @@
+package sampling;
+
+/**
+ * A source of 2D sample points in [0, 1)^2, used both for the positions of the
+ * anti-aliasing rays inside a pixel and for the shadow rays on area lights.
+ * Every request names a set of samples (a pixel, or a light pattern) by a key,
+ * the index of the sample in the set and the size of the set, so a sampler can
+ * spread the points of the set well instead of drawing them independently.
+ * Different dimensions of the same set (for example the shadows of different
+ * lights seen from the same pixel sample) get decorrelated patterns.
+ * Implementations must be thread safe.
+ */
+public interface Sampler {
+	/**
+	 * Gets a single sample point.
+	 * 
+	 * @param key
+	 *            - Identifies the set of samples (a pixel for example)
+	 * @param index
+	 *            - The index of the sample in the set
+	 * @param count
+	 *            - The number of samples in the set
+	 * @param dimension
+	 *            - The pair of dimensions sampled, 0 for the pixel position
+	 * @param out
+	 *            - An array of at least 2 to write the point into
+	 * @return The out array
+	 */
+	double[] get2D(long key, int index, int count, int dimension, double[] out);
+
+	/**
+	 * @return The name of the sampler, as given on the command line
+	 */
+	String getName();
+}
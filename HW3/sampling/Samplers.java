@@ -0,0 +1,50 @@
+package sampling;
+
+/**
+ * Creates samplers by name and holds the hash functions they share.
+ */
+public final class Samplers {
+	private Samplers() {
+	}
+
+	/**
+	 * Creates a sampler by its command line name.
+	 * 
+	 * @param name
+	 *            - One of random, halton, sobol or cmj
+	 * @return The sampler, or null if the name is unknown
+	 */
+	public static Sampler create(String name) {
+		if (name.equals("random")) {
+			return new RandomSampler();
+		} else if (name.equals("halton")) {
+			return new HaltonSampler();
+		} else if (name.equals("sobol")) {
+			return new SobolSampler();
+		} else if (name.equals("cmj")) {
+			return new CorrelatedMultiJitterSampler();
+		}
+		return null;
+	}
+
+	/**
+	 * Hashes a set key and a dimension into a 32 bit seed (based on the
+	 * finalizer of MurmurHash3).
+	 */
+	public static int hash(long key, int dimension) {
+		long h = key * 0x9E3779B97F4A7C15L + dimension * 0xC2B2AE3D27D4EB4FL;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	/**
+	 * Converts the bits of an unsigned 32 bit value to a fraction in [0, 1).
+	 */
+	public static double toUnit(int bits) {
+		return (bits & 0xFFFFFFFFL) * (1.0 / 4294967296.0);
+	}
+}
@@ -0,0 +1,54 @@
+package sampling;
+
+/**
+ * The first two dimensions of the Sobol sequence, a (0,2)-sequence: every
+ * power of two prefix of it is stratified in each axis and every power of four
+ * prefix is stratified on a square grid. The points are Owen scrambled with a
+ * hash of the set and dimension (Burley, "Practical Hash-based Owen
+ * Scrambling", 2020), which keeps the stratification while decorrelating
+ * pixels and dimensions.
+ */
+public class SobolSampler implements Sampler {
+	@Override
+	public double[] get2D(long key, int index, int count, int dimension, double[] out) {
+		int seed = Samplers.hash(key, dimension);
+		// Shuffle the order of the points too, so sets smaller than a power of two
+		// do not always take the same prefix
+		int i = nestedUniformScramble(index, seed);
+		out[0] = Samplers.toUnit(nestedUniformScramble(Integer.reverse(i), seed * 0x68E31DA4 + 0x1B56C4E9));
+		out[1] = Samplers.toUnit(nestedUniformScramble(sobolSecondDimension(i), seed * 0x5851F42D + 0x14057B7E));
+		return out;
+	}
+
+	/**
+	 * The second dimension of the Sobol sequence, as 32 fraction bits.
+	 */
+	static int sobolSecondDimension(int index) {
+		int result = 0;
+		for (int v = 1 << 31; index != 0; index >>>= 1, v ^= v >>> 1) {
+			if ((index & 1) != 0) {
+				result ^= v;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Owen scrambling of 32 fraction bits: every bit is flipped depending on a
+	 * hash of the bits above it.
+	 */
+	static int nestedUniformScramble(int x, int seed) {
+		x = Integer.reverse(x);
+		x += seed;
+		x ^= x * 0x6C50B47C;
+		x ^= x * 0xB82F1E52;
+		x ^= x * 0xC7AFE638;
+		x ^= x * 0x8D22F6E6;
+		return Integer.reverse(x);
+	}
+
+	@Override
+	public String getName() {
+		return "sobol";
+	}
+}
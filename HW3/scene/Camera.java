@@ -23,6 +23,13 @@ public class Camera {
 		this.screenWidth = screenWidth;
 	}
 
+	/**
+	 * Copies the settings of a camera, the copy has to be set up again.
+	 */
+	public Camera(Camera other) {
+		this(other.position, other.lookAt, other.up, other.screenDist, other.screenWidth);
+	}
+
 	public Vector getPosition() {
 		return position;
 	}
@@ -48,6 +55,20 @@ public class Camera {
 		return new Ray(new Vector(position), rayDirection);
 	}
 
+	/**
+	 * Same as getRayPerspective(x_pos, y_pos), but sets an existing ray instead of
+	 * creating a new one.
+	 */
+	public Ray getRayPerspective(double x_pos, double y_pos, Ray out) {
+		out.getOrigin().set(this.position);
+		out.getDirection().set(L)
+				.addScaled(u, x_pos * screenWidth)
+				.addScaled(v, -y_pos * screenHeight)
+				.sub(this.position)
+				.normalize();
+		return out;
+	}
+
 	public void setAspectRatio(double ratio) {
 		this.screenHeight = this.screenWidth * ratio;
 	}
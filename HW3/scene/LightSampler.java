@@ -0,0 +1,102 @@
+package scene;
+
+import sampling.Sampler;
+import utility.Vector;
+
+/**
+ * Precomputed shadow ray sampling pattern of a single light. The light is a
+ * square of the light radius, sampled by shadowRaysNum x shadowRaysNum points
+ * taken once from the sampler of the render. Every shading point only shifts
+ * the whole pattern by a rotation (Cranley-Patterson) which keeps the points
+ * well spread, and costs a single 2D sample instead of one per shadow ray.
+ * A light with no radius (or a single shadow ray) is a point light, which is
+ * sampled with a single ray.
+ */
+public class LightSampler {
+	private Light light;
+	private int samplesNum;
+	private double radius;
+	private double shift; // the offset of the pattern from the light center, in the unit square
+	// The points of the pattern in the unit square, along the two light axes
+	private double[] points;
+
+	/**
+	 * @param light
+	 *            - The light to sample
+	 * @param shadowRaysNum
+	 *            - The square root of the number of shadow rays
+	 * @param sampler
+	 *            - The sampler to take the pattern from
+	 * @param key
+	 *            - Identifies the light for the sampler
+	 */
+	public LightSampler(Light light, int shadowRaysNum, Sampler sampler, long key) {
+		this.light = light;
+
+		if (light.getRadius() == 0 || shadowRaysNum <= 1) {
+			this.samplesNum = 1;
+			this.points = new double[] { 0, 0 };
+			return;
+		}
+
+		this.samplesNum = shadowRaysNum * shadowRaysNum;
+		this.radius = light.getRadius();
+		// The square spans cells -(n/2) to n-(n/2) (integer division) around the
+		// light center
+		this.shift = (double) (shadowRaysNum / 2) / shadowRaysNum;
+		this.points = new double[this.samplesNum * 2];
+		double[] point = new double[2];
+		for (int k = 0; k < this.samplesNum; k++) {
+			sampler.get2D(key, k, this.samplesNum, 0, point);
+			this.points[k * 2] = point[0];
+			this.points[k * 2 + 1] = point[1];
+		}
+	}
+
+	public Light getLight() {
+		return light;
+	}
+
+	public int getSamplesNum() {
+		return samplesNum;
+	}
+
+	/**
+	 * @return true if the light is sampled as a point, with a single ray
+	 */
+	public boolean isPoint() {
+		return samplesNum == 1;
+	}
+
+	/**
+	 * Calculates the position of a sample on the light.
+	 * 
+	 * @param k
+	 *            - The index of the sample
+	 * @param U
+	 *            - The first axis of the light square (normalized)
+	 * @param V
+	 *            - The second axis of the light square (normalized)
+	 * @param rotationU
+	 *            - The rotation of the pattern along U, in [0, 1)
+	 * @param rotationV
+	 *            - The rotation of the pattern along V, in [0, 1)
+	 * @param out
+	 *            - The vector to write the position into
+	 * @return The out vector
+	 */
+	public Vector getSamplePoint(int k, Vector U, Vector V, double rotationU, double rotationV, Vector out) {
+		out.set(this.light.getPosition());
+		if (this.samplesNum == 1) {
+			return out;
+		}
+		out.addScaled(V, (rotate(this.points[k * 2], rotationV) - this.shift) * this.radius);
+		out.addScaled(U, (rotate(this.points[k * 2 + 1], rotationU) - this.shift) * this.radius);
+		return out;
+	}
+
+	private static double rotate(double value, double rotation) {
+		double r = value + rotation;
+		return r >= 1 ? r - 1 : r;
+	}
+}
@@ -0,0 +1,187 @@
+package scene;
+
+import java.util.List;
+
+import utility.Vector;
+
+/**
+ * A hierarchy over the lights, for picking a few lights of a scene with many
+ * lights at every shading point instead of all of them. Every node bounds the
+ * centers of its lights by a sphere and sums their power, and a light is
+ * picked by walking down from the root, choosing a child by its importance
+ * for the point: its power times the largest cosine any of its lights may
+ * have with the normal. The lights do not fall off with distance, so the angle is what
+ * makes a light matter to a point, and a child whose lights are all behind the
+ * surface is never chosen. A pick costs a walk of the depth of the tree,
+ * whatever the number of lights.
+ *
+ * The probability of the picked light is returned with it, so its color can
+ * be divided by it and the expected color stays the one of all the lights.
+ */
+public class LightTree {
+	private int nodesNum;
+	private double[] spheres; // the center and radius of a sphere around the lights under every node
+	private double[] powers; // the power of the lights under every node
+	private int[] children; // the first child of an inner node (the second follows it), -1 - light of a leaf
+
+	public LightTree(List<Light> lights) {
+		int n = lights.size();
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		int maxNodes = Math.max(1, 2 * n - 1);
+		this.spheres = new double[maxNodes * 4];
+		this.powers = new double[maxNodes];
+		this.children = new int[maxNodes];
+		if (n > 0) {
+			this.nodesNum = 1;
+			build(lights, order, 0, n, 0);
+		}
+	}
+
+	/**
+	 * The power of a light, as the most it may add to a color: its diffuse part
+	 * and its specular part at full intensity.
+	 */
+	public static double getPower(Light light) {
+		return (light.getColor().getR() + light.getColor().getG() + light.getColor().getB()) / 3
+				* (1 + light.getSpecularIntensity());
+	}
+
+	private void build(List<Light> lights, int[] order, int start, int end, int node) {
+		// The bounds of the centers of the lights, min x, y, z and max x, y, z
+		double[] b = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		double power = 0;
+		for (int i = start; i < end; i++) {
+			Light light = lights.get(order[i]);
+			for (int axis = 0; axis < 3; axis++) {
+				double c = get(light.getPosition(), axis);
+				b[axis] = Math.min(b[axis], c);
+				b[3 + axis] = Math.max(b[3 + axis], c);
+			}
+			power += getPower(light);
+		}
+		this.powers[node] = power;
+		double hx = (b[3] - b[0]) / 2, hy = (b[4] - b[1]) / 2, hz = (b[5] - b[2]) / 2;
+		int o = node * 4;
+		this.spheres[o] = b[0] + hx;
+		this.spheres[o + 1] = b[1] + hy;
+		this.spheres[o + 2] = b[2] + hz;
+		this.spheres[o + 3] = Math.sqrt(hx * hx + hy * hy + hz * hz);
+
+		if (end - start == 1) {
+			this.children[node] = -1 - order[start];
+			return;
+		}
+
+		// Split at the median of the longest axis of the centers
+		int axis = 0;
+		for (int a = 1; a < 3; a++) {
+			if (b[3 + a] - b[a] > b[3 + axis] - b[axis]) {
+				axis = a;
+			}
+		}
+		sort(lights, order, start, end, axis);
+		int mid = (start + end) / 2;
+
+		int left = this.nodesNum;
+		this.nodesNum += 2;
+		this.children[node] = left;
+		build(lights, order, start, mid, left);
+		build(lights, order, mid, end, left + 1);
+	}
+
+	private static void sort(List<Light> lights, int[] order, int start, int end, int axis) {
+		// Insertion sort of the range by the centers along the axis
+		for (int i = start + 1; i < end; i++) {
+			int light = order[i];
+			double c = get(lights.get(light).getPosition(), axis);
+			int j = i - 1;
+			while (j >= start && get(lights.get(order[j]).getPosition(), axis) > c) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = light;
+		}
+	}
+
+	private static double get(Vector v, int axis) {
+		return axis == 0 ? v.getX() : (axis == 1 ? v.getY() : v.getZ());
+	}
+
+	/**
+	 * Picks a light for a shading point.
+	 *
+	 * @param normal
+	 *            - The normal at the point, facing the ray
+	 * @param u
+	 *            - A uniform number in [0, 1)
+	 * @param probability
+	 *            - Receives the probability the light was picked with
+	 * @return The index of the light, or -1 if no light can light the point
+	 */
+	public int sample(Vector point, Vector normal, double u, double[] probability) {
+		if (this.nodesNum == 0) {
+			return -1;
+		}
+		double px = point.getX(), py = point.getY(), pz = point.getZ();
+		double nx = normal.getX(), ny = normal.getY(), nz = normal.getZ();
+		double p = 1;
+		int node = 0;
+		while (this.children[node] >= 0) {
+			int left = this.children[node];
+			double leftImportance = getImportance(left, px, py, pz, nx, ny, nz);
+			double rightImportance = getImportance(left + 1, px, py, pz, nx, ny, nz);
+			double total = leftImportance + rightImportance;
+			if (total <= 0) {
+				return -1;
+			}
+			double leftProbability = leftImportance / total;
+			// The number is scaled back to [0, 1) in the chosen child, to choose
+			// again with it
+			if (u < leftProbability) {
+				u = u / leftProbability;
+				p *= leftProbability;
+				node = left;
+			} else {
+				u = (u - leftProbability) / (1 - leftProbability);
+				p *= 1 - leftProbability;
+				node = left + 1;
+			}
+			u = Math.min(u, Math.nextDown(1.0));
+		}
+		probability[0] = p;
+		return -1 - this.children[node];
+	}
+
+	/**
+	 * @return The power of a node times the largest cosine of the normal with
+	 *         the direction from the point to any point of its sphere
+	 */
+	private double getImportance(int node, double px, double py, double pz, double nx, double ny, double nz) {
+		double[] s = this.spheres;
+		int o = node * 4;
+		double dx = s[o] - px, dy = s[o + 1] - py, dz = s[o + 2] - pz;
+		double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		double radius = s[o + 3];
+		if (distance <= radius) {
+			// The point may be among the lights
+			return this.powers[node];
+		}
+		// The sphere is seen from the point in a cone of half angle a around the
+		// direction to its center, which is at an angle b from the normal. The
+		// cosine is the largest at the side of the cone closest to the normal,
+		// cos(b - a), or 1 if the normal is in the cone.
+		double sinA = radius / distance;
+		double cosA = Math.sqrt(1 - sinA * sinA);
+		double cosB = (dx * nx + dy * ny + dz * nz) / distance;
+		if (cosB >= cosA) {
+			return this.powers[node];
+		}
+		double sinB = Math.sqrt(Math.max(0, 1 - cosB * cosB));
+		double cosAngle = cosB * cosA + sinB * sinA;
+		return cosAngle > 0 ? this.powers[node] * cosAngle : 0;
+	}
+}
@@ -33,6 +33,23 @@ public class Material {
 		return new Color(this.reflection);
 	}
 
+	/*
+	 * The following getters copy the color into an existing one, so the shading
+	 * code does not allocate a color on every call.
+	 */
+
+	public Color getDiffuse(Color out) {
+		return out.set(this.diffuse);
+	}
+
+	public Color getSpecular(Color out) {
+		return out.set(this.specular);
+	}
+
+	public Color getReflection(Color out) {
+		return out.set(this.reflection);
+	}
+
 	public float getPhong() {
 		return phong;
 	}
@@ -13,6 +13,36 @@ public class Color {
 		this(other.r, other.g, other.b);
 	}
 
+	public float getR() {
+		return r;
+	}
+
+	public float getG() {
+		return g;
+	}
+
+	public float getB() {
+		return b;
+	}
+
+	/**
+	 * @return The largest of the three channels
+	 */
+	public float getMax() {
+		return Math.max(r, Math.max(g, b));
+	}
+
+	public Color set(float r, float g, float b) {
+		this.r = r;
+		this.g = g;
+		this.b = b;
+		return this;
+	}
+
+	public Color set(Color other) {
+		return set(other.r, other.g, other.b);
+	}
+
 	public Color add(Color other) {
 		this.r += other.r;
 		this.g += other.g;
@@ -53,11 +83,23 @@ public class Color {
 	}
 
 	public byte[] getRGB() {
-		byte[] result = new byte[3];
-		result[0] = (byte) (Math.round(this.r * 255));
-		result[1] = (byte) (Math.round(this.g * 255));
-		result[2] = (byte) (Math.round(this.b * 255));
-		return result;
+		return getRGB(new byte[3], 0);
+	}
+
+	/**
+	 * Writes the color as three bytes into an existing buffer.
+	 * 
+	 * @param buffer
+	 *            - The buffer to write into
+	 * @param offset
+	 *            - The index of the red byte in the buffer
+	 * @return The buffer
+	 */
+	public byte[] getRGB(byte[] buffer, int offset) {
+		buffer[offset] = (byte) (Math.round(this.r * 255));
+		buffer[offset + 1] = (byte) (Math.round(this.g * 255));
+		buffer[offset + 2] = (byte) (Math.round(this.b * 255));
+		return buffer;
 	}
 
 	public String toString() {
@@ -77,6 +119,6 @@ public class Color {
 	}
 	
 	public boolean isBlack() {
-		return this.equals(new Color(0,0,0));
+		return this.r == 0 && this.g == 0 && this.b == 0;
 	}
 }
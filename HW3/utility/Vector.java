@@ -25,6 +25,17 @@ public class Vector {
 		return z;
 	}
 
+	public Vector set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	public Vector set(Vector other) {
+		return set(other.x, other.y, other.z);
+	}
+
 	public Vector add(Vector other) {
 		this.x += other.x; 
 		this.y += other.y; 
@@ -39,6 +50,17 @@ public class Vector {
 		return this;
 	}
 	
+	/**
+	 * Adds a scaled vector to this one (this += other * scalar), saves creating a
+	 * temporary vector for the scaled one.
+	 */
+	public Vector addScaled(Vector other, double scalar) {
+		this.x += other.x * scalar;
+		this.y += other.y * scalar;
+		this.z += other.z * scalar;
+		return this;
+	}
+
 	public Vector mul(double scalar) {
 		this.x *= scalar;
 		this.y *= scalar;
@@ -63,10 +85,18 @@ public class Vector {
 	}
 
 	public static Vector cross(Vector v, Vector u) {
+		return cross(v, u, new Vector(0, 0, 0));
+	}
+
+	/**
+	 * Calculates the cross product into an existing vector. The result may be one
+	 * of the operands.
+	 */
+	public static Vector cross(Vector v, Vector u, Vector out) {
 		double cross_x = v.y * u.z - v.z * u.y;
 		double cross_y = v.z * u.x - v.x * u.z;
 		double cross_z = v.x * u.y - v.y * u.x;
-		return new Vector(cross_x, cross_y, cross_z);
+		return out.set(cross_x, cross_y, cross_z);
 	}
 	
 	public static float cos(Vector v, Vector u) {